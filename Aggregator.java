@@ -0,0 +1,41 @@
+package trees;
+
+/**
+ * A monoid over the values of a tree, by which the trees aggregate the
+ * values of their sub-trees, e.g., their sum or their maximum.
+ * {@link #combine} should be associative, and {@link #identity} should be
+ * its identity element. It need not be commutative: the trees combine the
+ * aggregates in the order of the keys.
+ *
+ * The aggregates are shared between threads without synchronization of
+ * their own, so they should be immutable.
+ *
+ * @param <V> The values' type
+ * @param <A> The aggregates' type
+ */
+public interface Aggregator<V, A> {
+
+	/**
+	 * Returns the aggregate of no values.
+	 *
+	 * @return The identity element
+	 */
+	A identity();
+
+	/**
+	 * Returns the aggregate of a single value.
+	 *
+	 * @param value The value
+	 * @return The value's aggregate
+	 */
+	A lift(V value);
+
+	/**
+	 * Returns the aggregate of the values of two consecutive ranges of keys.
+	 *
+	 * @param left The aggregate of the lower range
+	 * @param right The aggregate of the upper range
+	 * @return The aggregate of both ranges
+	 */
+	A combine(A left, A right);
+}
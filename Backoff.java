@@ -0,0 +1,157 @@
+package trees;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A backoff strategy for the retry loops of the trees.
+ * The first retries spin for an exponentially growing number of
+ * {@link Thread#onSpinWait} calls, the next ones yield the processor, and the
+ * rest park the thread for an exponentially growing time, up to a maximum.
+ * Spinning suits a dedicated processor, where the conflicting thread is
+ * likely to finish soon, while yielding and parking let the conflicting
+ * thread run when the processors are oversubscribed.
+ *
+ * A strategy counts the retries and parks of the trees that use it, which
+ * may be used to tune it.
+ */
+public class Backoff {
+
+	/** The default number of spinning retries. */
+	public final static int DEFAULT_SPINS = 4;
+
+	/** The default number of yielding retries, after the spinning ones. */
+	public final static int DEFAULT_YIELDS = 4;
+
+	/** The default maximal time a retry parks, in nanoseconds. */
+	public final static long DEFAULT_MAX_PARK = TimeUnit.MILLISECONDS.toNanos(1);
+
+	/** The time the first parking retry parks, in nanoseconds. */
+	private final static long MIN_PARK = TimeUnit.MICROSECONDS.toNanos(1);
+
+	/** The maximal number of {@link Thread#onSpinWait} calls of a retry, as a power of two. */
+	private final static int MAX_SPIN_SHIFT = 10;
+
+	/** The number of spinning retries. */
+	private final int spins;
+
+	/** The number of yielding retries. */
+	private final int yields;
+
+	/** The maximal time a retry parks, in nanoseconds. */
+	private final long maxPark;
+
+	/** The number of retries. */
+	private final LongAdder retries = new LongAdder();
+
+	/** The number of retries that parked. */
+	private final LongAdder parks = new LongAdder();
+
+	/**
+	 * Constructor, create a strategy with the default parameters.
+	 */
+	public Backoff() {
+		this(DEFAULT_SPINS, DEFAULT_YIELDS, DEFAULT_MAX_PARK);
+	}
+
+	/**
+	 * Constructor, create a strategy with the given parameters.
+	 * A strategy with no spinning and no yielding retries, whose maximal
+	 * parking time is zero, retries immediately.
+	 *
+	 * @param spins The number of spinning retries
+	 * @param yields The number of yielding retries, after the spinning ones
+	 * @param maxPark The maximal time a retry parks, in nanoseconds
+	 */
+	public Backoff(final int spins, final int yields, final long maxPark) {
+		if (spins < 0 || yields < 0 || maxPark < 0) {
+			throw new IllegalArgumentException();
+		}
+		this.spins = spins;
+		this.yields = yields;
+		this.maxPark = maxPark;
+	}
+
+	/**
+	 * Back off before the given attempt of an operation.
+	 * The first attempt, whose number is zero, is not delayed.
+	 *
+	 * @param attempt The number of the attempt
+	 */
+	public void backoff(final int attempt) {
+		if (attempt == 0) return;
+		retries.increment();
+		if (attempt <= spins) {
+			spin(attempt);
+		} else if (attempt <= spins + yields) {
+			Thread.yield();
+		} else if (maxPark > 0) {
+			parks.increment();
+			final int shift = Math.min(attempt - spins - yields - 1, Long.numberOfLeadingZeros(MIN_PARK) - 1);
+			LockSupport.parkNanos(Math.min(maxPark, MIN_PARK << shift));
+		}
+	}
+
+	/**
+	 * Back off before the given attempt of an operation that holds locks 
+	 * other operations may wait for. The first retries spin as in 
+	 * {@link #backoff}, and the rest yield the processor rather than park, 
+	 * so the locks are not held for long.
+	 *
+	 * @param attempt The number of the attempt
+	 */
+	public void backoffHoldingLocks(final int attempt) {
+		if (attempt == 0) return;
+		retries.increment();
+		if (attempt <= spins) {
+			spin(attempt);
+		} else {
+			Thread.yield();
+		}
+	}
+
+	/**
+	 * Spin before the given attempt.
+	 *
+	 * @param attempt The number of the attempt
+	 */
+	private static void spin(final int attempt) {
+		for (int i = 1 << Math.min(attempt, MAX_SPIN_SHIFT); i > 0; i--) {
+			Thread.onSpinWait();
+		}
+	}
+
+	/**
+	 * Returns the number of retries since the strategy was created or reset.
+	 *
+	 * @return The number of retries
+	 */
+	public long retries() {
+		return retries.sum();
+	}
+
+	/**
+	 * Returns the number of retries that parked since the strategy was
+	 * created or reset.
+	 *
+	 * @return The number of parks
+	 */
+	public long parks() {
+		return parks.sum();
+	}
+
+	/**
+	 * Reset the counters.
+	 */
+	public void reset() {
+		retries.reset();
+		parks.reset();
+	}
+
+	@Override
+	public String toString() {
+		return "Backoff[spins=" + spins + ", yields=" + yields + ", maxPark=" + maxPark +
+				"ns, retries=" + retries() + ", parks=" + parks() + "]";
+	}
+}
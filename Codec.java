@@ -0,0 +1,30 @@
+package trees.logicalordering;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Converts keys or items to and from a binary representation, for the use 
+ * of {@link LogicalOrderingAVL#dump} and {@link LogicalOrderingAVL#load}.
+ * 
+ * @param <T> The type of the converted values
+ */
+public interface Codec<T> {
+
+	/**
+	 * Returns the binary representation of the given value.
+	 * 
+	 * @param value The value
+	 * @return The value's binary representation
+	 */
+	byte[] encode(T value);
+
+	/**
+	 * Returns the value represented by the remaining bytes of the given 
+	 * buffer. The buffer may be a view of a mapped file, and should not be 
+	 * retained after the method returns.
+	 * 
+	 * @param bytes The binary representation
+	 * @return The value
+	 */
+	T decode(ByteBuffer bytes);
+}
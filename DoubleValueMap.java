@@ -0,0 +1,117 @@
+package trees.logicalordering;
+
+import java.util.Comparator;
+
+import trees.Backoff;
+
+/**
+ * A concurrent ordered map from keys to {@code double} values, which are 
+ * kept unboxed. Updates of the value of a present key, such as 
+ * {@link #addAndGet}, are a compare-and-set of the key's cell, which 
+ * neither locks the tree nor allocates; see {@link PrimitiveValueMap}.
+ * 
+ * The values are stored as their {@link Double#doubleToLongBits} bits, and 
+ * are therefore compared as by {@link Double#equals}: all NaNs are equal, 
+ * and 0.0 differs from -0.0.
+ *
+ * @param <K> The keys' type
+ */
+public class DoubleValueMap<K> extends PrimitiveValueMap<K> {
+
+	/** 
+	 * The bits of a sealed cell, a NaN that {@link Double#doubleToLongBits} 
+	 * never returns. 
+	 */
+	private final static long SEALED = 0x7ff0000000000001L;
+
+	/**
+	 * Constructor, create an empty map of {@link Comparable} keys.
+	 *
+	 * @param min The minimal value
+	 * @param max The maximal value
+	 */
+	public DoubleValueMap(final K min, final K max) {
+		this(min, max, null);
+	}
+
+	/**
+	 * Constructor, create an empty map.
+	 *
+	 * @param min The minimal value
+	 * @param max The maximal value
+	 * @param comparator The keys' comparator, or null if the keys are
+	 * {@link Comparable}
+	 */
+	public DoubleValueMap(final K min, final K max, final Comparator<? super K> comparator) {
+		super(min, max, comparator, SEALED);
+	}
+
+	/**
+	 * Returns the value of the given key.
+	 *
+	 * @param key The key
+	 * @param defaultValue The value to return if the key is absent
+	 * @return The key's value, or {@code defaultValue}
+	 */
+	public double get(final K key, final double defaultValue) {
+		return Double.longBitsToDouble(getBits(key, Double.doubleToLongBits(defaultValue)));
+	}
+
+	/**
+	 * Set the value of the given key, inserting the key if it is absent.
+	 *
+	 * @param key The key
+	 * @param value The value
+	 * @param defaultValue The value to return if the key was absent
+	 * @return The previous value, or {@code defaultValue}
+	 */
+	public double put(final K key, final double value, final double defaultValue) {
+		return Double.longBitsToDouble(putBits(key, Double.doubleToLongBits(value), 
+				Double.doubleToLongBits(defaultValue)));
+	}
+
+	/**
+	 * Add the given delta to the value of the given key. An absent key is 
+	 * inserted, as if its value were 0.
+	 *
+	 * @param key The key
+	 * @param delta The delta
+	 * @return The new value
+	 */
+	public double addAndGet(final K key, final double delta) {
+		final Backoff backoff = tree.backoff();
+		for (int attempt = 0; ; attempt++) {
+			backoff.backoff(attempt);
+			final Cell cell = cellOrInsert(key, Double.doubleToLongBits(delta));
+			if (cell == null) return delta;
+			final long bits = cell.bits;
+			if (isSealed(bits)) continue;
+			final double sum = Double.longBitsToDouble(bits) + delta;
+			if (cell.compareAndSet(bits, Double.doubleToLongBits(sum))) return sum;
+		}
+	}
+
+	/**
+	 * Set the value of the given key, if it equals the expected value.
+	 *
+	 * @param key The key
+	 * @param expect The expected value
+	 * @param update The new value
+	 * @return true if the value was set, and false if the key is absent or
+	 * its value differs
+	 */
+	public boolean compareAndSet(final K key, final double expect, final double update) {
+		return compareAndSetBits(key, Double.doubleToLongBits(expect), Double.doubleToLongBits(update));
+	}
+
+	/**
+	 * Remove the given key.
+	 *
+	 * @param key The key
+	 * @param defaultValue The value to return if the key is absent
+	 * @return The removed value, or {@code defaultValue}
+	 */
+	public double remove(final K key, final double defaultValue) {
+		return Double.longBitsToDouble(removeBits(key, Double.doubleToLongBits(defaultValue)));
+	}
+}
@@ -0,0 +1,170 @@
+package trees.logicalordering;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * A hashed timer wheel that holds elements until their deadline passes.
+ * Time is divided into ticks, and an element is placed in the slot of the
+ * tick of its deadline. Elements whose deadline is more than one rotation
+ * away are kept in their slot until the rotation in which they are due.
+ * Since the deadline of an element may change after it was scheduled, every
+ * entry records the deadline it was scheduled with, and entries whose
+ * deadline no longer matches the element's are dropped.
+ *
+ * Elements that are scheduled to a tick that was already drained are kept
+ * in a separate slot, which is drained on every call.
+ *
+ * Scheduling only locks the target slot, and draining is done by one
+ * thread at a time.
+ *
+ * @param <E> The elements' type
+ */
+abstract class ExpiryWheel<E> {
+
+	/** The slots of the wheel. */
+	private final Slot[] slots;
+
+	/** The length of a tick, in nanoseconds. */
+	private final long tick;
+
+	/** The slot of the elements scheduled to a tick that was already drained. */
+	private final Slot overdue = new Slot();
+
+	/** The last tick whose slot was, or is being, drained. */
+	private volatile long drained;
+
+	/** Is the wheel being drained? */
+	private boolean draining;
+
+	/**
+	 * Constructor, create an empty wheel.
+	 *
+	 * @param size The number of slots
+	 * @param tick The length of a tick, in nanoseconds
+	 */
+	@SuppressWarnings({"unchecked", "rawtypes"})
+	ExpiryWheel(final int size, final long tick) {
+		slots = new ExpiryWheel.Slot[size];
+		for (int i = 0; i < size; i++) {
+			slots[i] = new Slot();
+		}
+		this.tick = tick;
+		drained = Math.floorDiv(System.nanoTime(), tick) - 1;
+	}
+
+	/**
+	 * Returns the current deadline of the given element.
+	 *
+	 * @param element The element
+	 * @return The element's deadline (with respect to {@link System#nanoTime})
+	 */
+	abstract long deadline(E element);
+
+	/**
+	 * Schedule the given element.
+	 *
+	 * @param element The element
+	 * @param deadline The element's deadline (with respect to {@link System#nanoTime})
+	 */
+	void schedule(final E element, final long deadline) {
+		final long t = Math.floorDiv(deadline, tick);
+		final Slot slot = slots[(int) Math.floorMod(t, (long) slots.length)];
+		synchronized (slot) {
+			// the drainer advances drained before it locks the slot
+			if (t > drained) {
+				slot.add(element, deadline);
+				return;
+			}
+		}
+		overdue.add(element, deadline);
+	}
+
+	/**
+	 * Collect the elements whose deadline passed from the slots of the ticks
+	 * since the last call.
+	 * If the wheel is being drained by another thread, returns immediately.
+	 *
+	 * @param now The current time (with respect to {@link System#nanoTime})
+	 * @param due The list to add the due elements to
+	 */
+	void drain(final long now, final List<E> due) {
+		final long from, to;
+		synchronized (this) {
+			if (draining) return;
+			draining = true;
+			to = Math.floorDiv(now, tick);
+			// the last drained tick may have been drained before it ended
+			from = Math.max(drained, to - slots.length + 1);
+			if (to > drained) drained = to;
+		}
+		try {
+			for (long t = from; t <= to; t++) {
+				slots[(int) Math.floorMod(t, (long) slots.length)].drain(now, due);
+			}
+			overdue.drain(now, due);
+		} finally {
+			synchronized (this) {
+				draining = false;
+			}
+		}
+	}
+
+	/**
+	 * A slot of the wheel.
+	 */
+	private final class Slot {
+
+		/** The slot's elements. */
+		private Object[] elements = new Object[0];
+
+		/** The deadlines the elements were scheduled with. */
+		private long[] deadlines = new long[0];
+
+		/** The number of elements in the slot. */
+		private int size;
+
+		/**
+		 * Add an element to the slot.
+		 *
+		 * @param element The element
+		 * @param deadline The deadline the element is scheduled with
+		 */
+		synchronized void add(final Object element, final long deadline) {
+			if (size == elements.length) {
+				final int length = Math.max(4, size * 2);
+				elements = Arrays.copyOf(elements, length);
+				deadlines = Arrays.copyOf(deadlines, length);
+			}
+			elements[size] = element;
+			deadlines[size] = deadline;
+			size++;
+		}
+
+		/**
+		 * Move the elements whose deadline passed to the given list, drop the
+		 * stale entries, and keep the rest.
+		 *
+		 * @param now The current time
+		 * @param due The list to add the due elements to
+		 */
+		@SuppressWarnings("unchecked")
+		synchronized void drain(final long now, final List<E> due) {
+			int kept = 0;
+			for (int i = 0; i < size; i++) {
+				final E element = (E) elements[i];
+				final long deadline = deadlines[i];
+				if (deadline(element) != deadline) continue;
+				if (deadline - now <= 0) {
+					due.add(element);
+					continue;
+				}
+				elements[kept] = element;
+				deadlines[kept] = deadline;
+				kept++;
+			}
+			Arrays.fill(elements, kept, size, null);
+			size = kept;
+		}
+	}
+}
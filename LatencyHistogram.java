@@ -0,0 +1,135 @@
+package trees;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A histogram of latencies, which is updated without locking.
+ * The values are counted in buckets whose width grows with the value, as in
+ * HdrHistogram: the values below {@code 2^(SUB_BUCKET_BITS + 1)} have a
+ * bucket each, and every following power of two is split into
+ * {@code 2^SUB_BUCKET_BITS} buckets, so a percentile is reported within a
+ * relative error of {@code 2^-SUB_BUCKET_BITS} (about 3%). The histogram
+ * covers every non-negative {@code long} in a fixed array of counters.
+ *
+ * A percentile that is read while values are recorded reflects some of
+ * them; the counters are read one at a time.
+ */
+public class LatencyHistogram {
+
+	/** The number of bits of a value below its highest one that select its bucket. */
+	private final static int SUB_BUCKET_BITS = 5;
+
+	/** The number of buckets. */
+	private final static int BUCKETS = (Long.SIZE - SUB_BUCKET_BITS) << SUB_BUCKET_BITS;
+
+	/** The number of values in each bucket. */
+	private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+
+	/** The maximal recorded value. */
+	private final AtomicLong max = new AtomicLong();
+
+	/**
+	 * Returns the index of the bucket of the given value.
+	 *
+	 * @param value The value, which is not negative
+	 * @return The bucket's index
+	 */
+	private static int index(final long value) {
+		final int shift = Math.max(0, Long.SIZE - 1 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS);
+		return (shift << SUB_BUCKET_BITS) + (int) (value >>> shift);
+	}
+
+	/**
+	 * Returns the highest value of the given bucket.
+	 *
+	 * @param index The bucket's index
+	 * @return The highest value that is counted by the bucket
+	 */
+	private static long highest(final int index) {
+		if (index < 2 << SUB_BUCKET_BITS) return index;
+		final int shift = (index >> SUB_BUCKET_BITS) - 1;
+		final long mantissa = index - (shift << SUB_BUCKET_BITS);
+		return ((mantissa + 1) << shift) - 1;
+	}
+
+	/**
+	 * Record the given value. A negative value is recorded as 0.
+	 *
+	 * @param value The value
+	 */
+	public void record(long value) {
+		if (value < 0) value = 0;
+		counts.incrementAndGet(index(value));
+		long current = max.get();
+		while (value > current && !max.compareAndSet(current, value)) {
+			current = max.get();
+		}
+	}
+
+	/**
+	 * Returns the number of recorded values.
+	 *
+	 * @return The number of values
+	 */
+	public long count() {
+		long count = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			count += counts.get(i);
+		}
+		return count;
+	}
+
+	/**
+	 * Returns the maximal recorded value.
+	 *
+	 * @return The maximal value, or 0 if no value was recorded
+	 */
+	public long max() {
+		return max.get();
+	}
+
+	/**
+	 * Returns the value that the given percentage of the recorded values do
+	 * not exceed, rounded up to the highest value of its bucket.
+	 *
+	 * @param percentile The percentage, between 0 and 100
+	 * @return The percentile, or 0 if no value was recorded
+	 */
+	public long percentile(final double percentile) {
+		if (percentile < 0 || percentile > 100) throw new IllegalArgumentException();
+		final long[] snapshot = new long[BUCKETS];
+		long count = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			snapshot[i] = counts.get(i);
+			count += snapshot[i];
+		}
+		if (count == 0) return 0;
+		final long rank = Math.max(1, (long) Math.ceil(percentile / 100 * count));
+		long seen = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			seen += snapshot[i];
+			if (seen >= rank) {
+				return Math.min(highest(i), max.get());
+			}
+		}
+		return max.get();
+	}
+
+	/**
+	 * Reset the histogram. Values that are recorded concurrently may or may
+	 * not be counted.
+	 */
+	public void reset() {
+		for (int i = 0; i < BUCKETS; i++) {
+			counts.set(i, 0);
+		}
+		max.set(0);
+	}
+
+	@Override
+	public String toString() {
+		return "LatencyHistogram[count=" + count() + ", p50=" + percentile(50) + ", p99=" + percentile(99) +
+				", p99.9=" + percentile(99.9) + ", max=" + max() + "]";
+	}
+}
@@ -0,0 +1,186 @@
+package trees;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Records the latencies of a sample of the lookups, insertions and removals
+ * of the trees it is set on (e.g., by
+ * {@link trees.logicalordering.LogicalOrderingAVL#setLatencyRecorder}).
+ * One in every {@code samplingInterval} operations, chosen at random, is
+ * timed by {@link System#nanoTime}, and its latency is recorded in the
+ * {@link LatencyHistogram} of its kind. The other operations only draw a
+ * random number.
+ *
+ * A recorder is an MXBean, so its percentiles can be monitored by
+ * registering it, e.g.:
+ * <pre>
+ * ManagementFactory.getPlatformMBeanServer().registerMBean(recorder,
+ *         new ObjectName("trees:type=LatencyRecorder,name=orders"));
+ * </pre>
+ */
+public class LatencyRecorder implements LatencyRecorderMXBean {
+
+	/** The kind of the lookups. */
+	public final static int LOOKUP = 0;
+
+	/** The kind of the insertions and the updates. */
+	public final static int INSERT = 1;
+
+	/** The kind of the removals. */
+	public final static int REMOVE = 2;
+
+	/** The start time of an operation that is not sampled. */
+	public final static long NOT_SAMPLED = Long.MIN_VALUE;
+
+	/** The histograms, by the kinds of the operations. */
+	private final LatencyHistogram[] histograms = {
+			new LatencyHistogram(), new LatencyHistogram(), new LatencyHistogram()};
+
+	/** The number of operations per sampled operation. */
+	private volatile int samplingInterval;
+
+	/**
+	 * Constructor, create a recorder.
+	 *
+	 * @param samplingInterval The number of operations per sampled
+	 * operation, or 1 to time every operation
+	 */
+	public LatencyRecorder(final int samplingInterval) {
+		setSamplingInterval(samplingInterval);
+	}
+
+	/**
+	 * Returns the start time of an operation, or {@link #NOT_SAMPLED} if the
+	 * operation is not sampled.
+	 *
+	 * @return The start time, or {@link #NOT_SAMPLED}
+	 */
+	public long start() {
+		final int samplingInterval = this.samplingInterval;
+		if (samplingInterval > 1 && ThreadLocalRandom.current().nextInt(samplingInterval) != 0) {
+			return NOT_SAMPLED;
+		}
+		return System.nanoTime();
+	}
+
+	/**
+	 * Record the latency of an operation that ends now, if it was sampled.
+	 *
+	 * @param kind The kind of the operation, {@link #LOOKUP}, {@link #INSERT}
+	 * or {@link #REMOVE}
+	 * @param start The start time returned by {@link #start}
+	 */
+	public void record(final int kind, final long start) {
+		if (start == NOT_SAMPLED) return;
+		histograms[kind].record(System.nanoTime() - start);
+	}
+
+	/**
+	 * Returns the histogram of the given kind of operations.
+	 *
+	 * @param kind The kind of the operations
+	 * @return The histogram
+	 */
+	public LatencyHistogram histogram(final int kind) {
+		return histograms[kind];
+	}
+
+	@Override
+	public int getSamplingInterval() {
+		return samplingInterval;
+	}
+
+	@Override
+	public void setSamplingInterval(final int samplingInterval) {
+		if (samplingInterval < 1) throw new IllegalArgumentException();
+		this.samplingInterval = samplingInterval;
+	}
+
+	@Override
+	public long getLookupCount() {
+		return histograms[LOOKUP].count();
+	}
+
+	@Override
+	public long getLookupP50() {
+		return histograms[LOOKUP].percentile(50);
+	}
+
+	@Override
+	public long getLookupP99() {
+		return histograms[LOOKUP].percentile(99);
+	}
+
+	@Override
+	public long getLookupP999() {
+		return histograms[LOOKUP].percentile(99.9);
+	}
+
+	@Override
+	public long getLookupMax() {
+		return histograms[LOOKUP].max();
+	}
+
+	@Override
+	public long getInsertCount() {
+		return histograms[INSERT].count();
+	}
+
+	@Override
+	public long getInsertP50() {
+		return histograms[INSERT].percentile(50);
+	}
+
+	@Override
+	public long getInsertP99() {
+		return histograms[INSERT].percentile(99);
+	}
+
+	@Override
+	public long getInsertP999() {
+		return histograms[INSERT].percentile(99.9);
+	}
+
+	@Override
+	public long getInsertMax() {
+		return histograms[INSERT].max();
+	}
+
+	@Override
+	public long getRemoveCount() {
+		return histograms[REMOVE].count();
+	}
+
+	@Override
+	public long getRemoveP50() {
+		return histograms[REMOVE].percentile(50);
+	}
+
+	@Override
+	public long getRemoveP99() {
+		return histograms[REMOVE].percentile(99);
+	}
+
+	@Override
+	public long getRemoveP999() {
+		return histograms[REMOVE].percentile(99.9);
+	}
+
+	@Override
+	public long getRemoveMax() {
+		return histograms[REMOVE].max();
+	}
+
+	@Override
+	public void reset() {
+		for (LatencyHistogram histogram : histograms) {
+			histogram.reset();
+		}
+	}
+
+	@Override
+	public String toString() {
+		return "LatencyRecorder[samplingInterval=" + samplingInterval + ", lookup=" + histograms[LOOKUP] +
+				", insert=" + histograms[INSERT] + ", remove=" + histograms[REMOVE] + "]";
+	}
+}
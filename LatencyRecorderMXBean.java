@@ -0,0 +1,70 @@
+package trees;
+
+/**
+ * The management interface of a {@link LatencyRecorder}, whose latencies
+ * are in nanoseconds.
+ */
+public interface LatencyRecorderMXBean {
+
+	/**
+	 * @return The number of operations per sampled operation
+	 */
+	int getSamplingInterval();
+
+	/**
+	 * Set the number of operations per sampled operation.
+	 *
+	 * @param samplingInterval The number of operations, at least 1
+	 */
+	void setSamplingInterval(int samplingInterval);
+
+	/** @return The number of sampled lookups */
+	long getLookupCount();
+
+	/** @return The median latency of the sampled lookups */
+	long getLookupP50();
+
+	/** @return The 99th percentile of the latencies of the sampled lookups */
+	long getLookupP99();
+
+	/** @return The 99.9th percentile of the latencies of the sampled lookups */
+	long getLookupP999();
+
+	/** @return The maximal latency of a sampled lookup */
+	long getLookupMax();
+
+	/** @return The number of sampled insertions */
+	long getInsertCount();
+
+	/** @return The median latency of the sampled insertions */
+	long getInsertP50();
+
+	/** @return The 99th percentile of the latencies of the sampled insertions */
+	long getInsertP99();
+
+	/** @return The 99.9th percentile of the latencies of the sampled insertions */
+	long getInsertP999();
+
+	/** @return The maximal latency of a sampled insertion */
+	long getInsertMax();
+
+	/** @return The number of sampled removals */
+	long getRemoveCount();
+
+	/** @return The median latency of the sampled removals */
+	long getRemoveP50();
+
+	/** @return The 99th percentile of the latencies of the sampled removals */
+	long getRemoveP99();
+
+	/** @return The 99.9th percentile of the latencies of the sampled removals */
+	long getRemoveP999();
+
+	/** @return The maximal latency of a sampled removal */
+	long getRemoveMax();
+
+	/**
+	 * Reset the histograms.
+	 */
+	void reset();
+}
@@ -0,0 +1,130 @@
+package trees.pavt;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * The kinds of locks the nodes of the PaVT trees may use.
+ * All of them are reentrant, since an operation may reach the same node
+ * twice, e.g., as a child and as a snapshot.
+ */
+public enum Locking {
+
+	/**
+	 * Locks built on the node's monitor. A thread that waits for the lock
+	 * waits on the monitor, which pins a virtual thread to its carrier.
+	 */
+	MONITOR {
+		@Override
+		public Lock newLock() {
+			return new MonitorLock();
+		}
+	},
+
+	/** {@link ReentrantLock}s, which park a waiting thread. */
+	REENTRANT {
+		@Override
+		public Lock newLock() {
+			return new ReentrantLock();
+		}
+	},
+
+	/** {@link SpinLock}s, which spin and yield. */
+	SPIN {
+		@Override
+		public Lock newLock() {
+			return new SpinLock();
+		}
+	};
+
+	/**
+	 * Returns a new lock of this kind.
+	 *
+	 * @return The lock
+	 */
+	public abstract Lock newLock();
+
+	/**
+	 * A reentrant lock that waits on its monitor.
+	 */
+	private static final class MonitorLock implements Lock {
+
+		/** The thread that holds the lock, or null. */
+		private Thread owner;
+
+		/** The number of times the owner acquired the lock. */
+		private int holds;
+
+		@Override
+		public synchronized void lock() {
+			final Thread current = Thread.currentThread();
+			boolean interrupted = false;
+			while (owner != null && owner != current) {
+				try {
+					wait();
+				} catch (InterruptedException e) {
+					interrupted = true;
+				}
+			}
+			owner = current;
+			holds++;
+			if (interrupted) current.interrupt();
+		}
+
+		@Override
+		public synchronized void lockInterruptibly() throws InterruptedException {
+			final Thread current = Thread.currentThread();
+			while (owner != null && owner != current) {
+				wait();
+			}
+			owner = current;
+			holds++;
+		}
+
+		@Override
+		public synchronized boolean tryLock() {
+			final Thread current = Thread.currentThread();
+			if (owner != null && owner != current) return false;
+			owner = current;
+			holds++;
+			return true;
+		}
+
+		@Override
+		public synchronized boolean tryLock(final long time, final TimeUnit unit) throws InterruptedException {
+			final Thread current = Thread.currentThread();
+			final long deadline = System.nanoTime() + unit.toNanos(time);
+			while (owner != null && owner != current) {
+				final long remaining = deadline - System.nanoTime();
+				if (remaining <= 0) return false;
+				TimeUnit.NANOSECONDS.timedWait(this, remaining);
+			}
+			owner = current;
+			holds++;
+			return true;
+		}
+
+		@Override
+		public synchronized void unlock() {
+			if (owner != Thread.currentThread()) {
+				throw new IllegalMonitorStateException();
+			}
+			if (--holds == 0) {
+				owner = null;
+				notify();
+			}
+		}
+
+		/**
+		 * Conditions are not supported.
+		 *
+		 * @throws UnsupportedOperationException Always
+		 */
+		@Override
+		public Condition newCondition() {
+			throw new UnsupportedOperationException();
+		}
+	}
+}
@@ -1,15 +1,50 @@
 package trees.logicalordering;
 
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
 import java.util.AbstractMap;
 import java.util.AbstractSet;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Comparator;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
+import java.util.NoSuchElementException;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
 
+import trees.Aggregator;
+import trees.Backoff;
+import trees.LatencyRecorder;
+import trees.TreeStats;
+import trees.TreeValidation;
+import trees.ValidationReport;
+
 /**
  * Implementation of concurrent AVL tree based on the paper 
  * "Practical Concurrent Binary Search Trees via Logical Ordering" by 
@@ -34,14 +69,173 @@ import java.util.concurrent.locks.ReentrantLock;
  */
 public class LogicalOrderingAVL<K, V> extends AbstractMap<K,V> implements ConcurrentMap<K,V> {
 
-	/** The tree's root */
-	private AVLMapNode<K,V> root;
+	/** 
+	 * The tree's root. 
+	 * Replaced by {@link #clear}; operations read it once and complete on the
+	 * tree layout they began on.
+	 */
+	private volatile AVLMapNode<K,V> root;
 	
 	/** The keys' comparator */
 	private Comparator<? super K> comparator;
 	
+	/** The maximal number of keys, or 0 if the tree is not bounded. */
+	private int maximumSize;
+	
+	/** The policy by which keys are evicted when the tree is bounded. */
+	private EvictionPolicy evictionPolicy;
+	
+	/** Does the eviction policy depend on the nodes' accesses? */
+	private boolean recordAccesses;
+	
+	/** 
+	 * The version of the writes, which is advanced by {@link #snapshot}.
+	 * A write is visible to the snapshots whose version is greater than or 
+	 * equal to the version the write read.
+	 */
+	private volatile long clock;
+	
+	/** The open snapshots. */
+	@SuppressWarnings({"unchecked", "rawtypes"})
+	private volatile Snapshot[] snapshots = new LogicalOrderingAVL.Snapshot[0];
+	
+	/** The write-ahead log, or null if the writes are not logged. */
+	private volatile WriteAheadLog<K,V> log;
+	
+	/** The lock that serializes the checkpoints. */
+	private final Object checkpointLock = new Object();
+	
+	/** The strategy by which failed attempts to lock or validate are retried. */
+	private volatile Backoff backoff = new Backoff();
+	
+	/** The recorder of the latencies of sampled operations, or null if they are not recorded. */
+	private volatile LatencyRecorder latencies;
+	
+	/** The number of failed updates that were retried from a nearby node. */
+	private final LongAdder localRestarts = new LongAdder();
+	
+	/** The number of failed updates that were retried from the root. */
+	private final LongAdder rootRestarts = new LongAdder();
+	
+	/** Are the sizes of the sub-trees maintained? See {@link #enableOrderStatistics}. */
+	private volatile boolean orderStatistics;
+	
+	/** The aggregator of the items of the sub-trees, or null. See {@link #enableAggregation}. */
+	private volatile Aggregator<? super V, Object> aggregator;
+	
+	/** Are removed nodes unlinked by {@link #runMaintenance}? See {@link #setLazyRemoval}. */
+	private volatile boolean lazyRemoval;
+	
+	/** 
+	 * The numbers of the updates in progress without locking (see 
+	 * {@link #tryUpdate}), striped by thread, which {@link #snapshot} waits for.
+	 */
+	private final AtomicIntegerArray updaters = new AtomicIntegerArray(UPDATER_STRIPES * UPDATER_SPACING);
+	
+	/** 
+	 * The stacks of the updates that were handed to the holders of busy 
+	 * {@code succLock}s (see {@link #combine}), striped by the updated keys.
+	 */
+	private final AtomicReferenceArray<Combining> combining = new AtomicReferenceArray<Combining>(COMBINING_STRIPES);
+	
 	/** A constant object for the use of the {@code insert} method.  */
 	private final static Object EMPTY_ITEM = new Object();
+	
+	/** 
+	 * The item of a node whose key was removed lazily, which is unlinked 
+	 * later by {@link #runMaintenance}. See {@link #setLazyRemoval}.
+	 */
+	private final static Object DELETED = new Object();
+	
+	/** 
+	 * The item that a {@link Snapshot} keeps for a node that was inserted 
+	 * after it was taken.
+	 */
+	private final static Object ABSENT = new Object();
+	
+	/** 
+	 * The maximal number of steps a {@link Cursor} lookup takes along the 
+	 * ordering layout before falling back to a traversal from the root. 
+	 */
+	private final static int CURSOR_STEPS = 8;
+	
+	/** The number of stripes of the counters of the updates in progress without locking. */
+	private final static int UPDATER_STRIPES = 16;
+	
+	/** The distance between the stripes, in counters, which keeps them on separate cache lines. */
+	private final static int UPDATER_SPACING = 16;
+	
+	/** The number of slots in the wheel of the nodes that expire. */
+	private final static int EXPIRY_SLOTS = 1024;
+	
+	/** The length of a tick of the wheel of the nodes that expire, in nanoseconds. */
+	private final static long EXPIRY_TICK = TimeUnit.MILLISECONDS.toNanos(10);
+	
+	/** 
+	 * The number of times a thread whose update was handed to the holder of 
+	 * a busy {@code succLock} spins while waiting for it to be applied, 
+	 * before it waits for the lock instead.
+	 */
+	private final static int COMBINING_SPINS = 1 << 10;
+	
+	/** The number of stripes of the updates that wait for busy {@code succLock}s. */
+	private final static int COMBINING_STRIPES = 64;
+	
+	/** The updater of {@link AVLMapNode#item}. */
+	@SuppressWarnings("rawtypes")
+	private final static AtomicReferenceFieldUpdater<LogicalOrderingAVL.AVLMapNode, Object> ITEM = 
+			AtomicReferenceFieldUpdater.newUpdater(LogicalOrderingAVL.AVLMapNode.class, Object.class, "item");
+	
+	/** The first bytes of a file written by {@link #dump}. */
+	private final static int DUMP_MAGIC = 0x4C4F4156;
+	
+	/** 
+	 * The version of the format of the files written by {@link #dump}. 
+	 * {@link #load} reads the files of version 1, which have no expiration 
+	 * times, as well.
+	 */
+	private final static int DUMP_FORMAT = 2;
+	
+	/** The size of the buffer {@link #dump} writes through. */
+	private final static int DUMP_BUFFER = 1 << 16;
+	
+	/** The size of the windows of the file that {@link #load} maps at once. */
+	private final static int LOAD_WINDOW = 1 << 30;
+	
+	/** 
+	 * The number of random descents that collect candidates for eviction 
+	 * by the access based policies. Each descent yields two candidates.
+	 */
+	private final static int EVICTION_SAMPLES = 4;
+	
+	/** The state of a node of a present key, counted by {@link #stats()}. */
+	private final static int VALID_NODE = 0;
+	
+	/** The state of a marked node, counted by {@link #stats()}. */
+	private final static int INVALID_NODE = 1;
+	
+	/** The state of a node whose key was removed lazily, counted by {@link #stats()}. */
+	private final static int DELETED_NODE = 2;
+	
+	/** The state of a node whose expiration time passed, counted by {@link #stats()}. */
+	private final static int EXPIRED_NODE = 3;
+	
+	/** The number of upper levels of the tree layout that a parallel validation splits. */
+	private final static int VALIDATION_SPLITS = 6;
+	
+	/**
+	 * The policies by which a bounded tree chooses the keys to evict.
+	 */
+	public enum EvictionPolicy {
+		/** Evict the smallest key. */
+		SMALLEST_KEY,
+		/** Evict the largest key. */
+		LARGEST_KEY,
+		/** Evict the least recently used key among a random sample. */
+		LEAST_RECENTLY_USED,
+		/** Evict the least frequently used key among a random sample. */
+		LEAST_FREQUENTLY_USED
+	}
 
 	/**
 	 * Constructor, initialize the tree and the logical ordering layouts.
@@ -54,11 +248,7 @@ public class LogicalOrderingAVL<K, V> extends AbstractMap<K,V> implements Concur
 	 * @param max The maximal value
 	 */
 	public LogicalOrderingAVL(final K min, final K max) {
-		AVLMapNode<K,V> parent = new AVLMapNode<K,V>(min);
-		root = new AVLMapNode<K, V>(max, null, parent, parent, parent);
-		root.parent = parent;
-		parent.right = root;
-		parent.succ = root;
+		root = newRoot(min, max);
 	}
 
 	/**
@@ -76,6 +266,62 @@ public class LogicalOrderingAVL<K, V> extends AbstractMap<K,V> implements Concur
 		this(min, max);
 		this.comparator = comparator;
 	}
+
+	/**
+	 * Constructor, initialize a tree that holds at most {@code maximumSize} 
+	 * keys. When an insertion exceeds the bound, keys are evicted by the given
+	 * policy. Evictions are concurrent removals, so the bound may be 
+	 * temporarily exceeded by concurrent insertions.
+	 * 
+	 * @param min The minimal value
+	 * @param max The maximal value
+	 * @param comparator The keys' comparator, or null if the keys are 
+	 * {@link Comparable}
+	 * @param maximumSize The maximal number of keys
+	 * @param evictionPolicy The policy by which keys are evicted
+	 */
+	public LogicalOrderingAVL(K min, K max, Comparator<? super K> comparator, 
+			int maximumSize, EvictionPolicy evictionPolicy) {
+		this(min, max, comparator);
+		if (maximumSize <= 0 || evictionPolicy == null) throw new IllegalArgumentException();
+		this.maximumSize = maximumSize;
+		this.evictionPolicy = evictionPolicy;
+		recordAccesses = evictionPolicy == EvictionPolicy.LEAST_RECENTLY_USED || 
+				evictionPolicy == EvictionPolicy.LEAST_FREQUENTLY_USED;
+	}
+	
+	/**
+	 * Creates the nodes with the minimal and maximal values, and returns the 
+	 * node with the maximal value, which is the root of an empty tree.
+	 * 
+	 * @param min The minimal value
+	 * @param max The maximal value
+	 * @return The new root
+	 */
+	private AVLMapNode<K,V> newRoot(final K min, final K max) {
+		AVLMapNode<K,V> parent = new AVLMapNode<K,V>(min);
+		AVLMapNode<K,V> root = new RootNode(max, parent);
+		root.parent = parent;
+		parent.right = root;
+		parent.succ = root;
+		return root;
+	}
+	
+	/**
+	 * Creates a node for a key, which is augmented if the tree's nodes are.
+	 * 
+	 * @param key The new node's key
+	 * @param item The new node's item
+	 * @param pred The new node's predecessor (with respect to the ordering layout)
+	 * @param succ The new node's successor (with respect to the ordering layout)
+	 * @param parent The new node's parent (with respect to the tree layout)
+	 * @return The new node
+	 */
+	private AVLMapNode<K,V> newNode(final K key, final Object item, final AVLMapNode<K,V> pred, 
+			final AVLMapNode<K,V> succ, final AVLMapNode<K,V> parent) {
+		return hasAugmentedNodes()? new AugmentedNode(key, item, pred, succ, parent) 
+				: new AVLMapNode<K,V>(key, item, pred, succ, parent);
+	}
 	
 	/**
 	 * Given some object, returns an appropriate {@link Comparable} object.
@@ -108,6 +354,22 @@ public class LogicalOrderingAVL<K, V> extends AbstractMap<K,V> implements Concur
 	 * @see java.util.Map#get(java.lang.Object)
 	 */
 	final public V get(final Object key) {
+		final LatencyRecorder latencies = this.latencies;
+		if (latencies == null) return lookup(key);
+		final long start = latencies.start();
+		final V result = lookup(key);
+		latencies.record(LatencyRecorder.LOOKUP, start);
+		return result;
+	}
+
+	/**
+	 * Traverses the tree to find a node with the given key, without recording
+	 * the latency.
+	 * 
+	 * @param key The key
+	 * @return The item associated with the key, or null if the key is not present
+	 */
+	final private V lookup(final Object key) {
 		final Comparable<? super K> value = comparable(key);
 
 		AVLMapNode<K,V> node = root;
@@ -137,7 +399,10 @@ public class LogicalOrderingAVL<K, V> extends AbstractMap<K,V> implements Concur
 			res = value.compareTo(val);
 		}
 		if (res == 0 && node.valid) {
-			return (V) node.item;
+			final Object item = node.item;
+			if (!isPresent(item) || isExpired(item)) return null;
+			if (recordAccesses) accessed(node);
+			return (V) unseal(item);
 		}
 		return null;
 	}
@@ -177,7 +442,223 @@ public class LogicalOrderingAVL<K, V> extends AbstractMap<K,V> implements Concur
 			val =  node.key;
 			res = value.compareTo(val);
 		}
-		return (res == 0 && node.valid);
+		return (res == 0 && node.valid && isPresent(node.item) && !node.isExpired());
+	}
+	
+	/**
+	 * Returns a new {@link Cursor} for this tree.
+	 * 
+	 * @return The new cursor
+	 */
+	public Cursor cursor() {
+		return new Cursor();
+	}
+
+	/**
+	 * Finds the node with the given key, starting from the node remembered by 
+	 * the given cursor. 
+	 * 
+	 * @param key The key
+	 * @param cursor The cursor
+	 * @return The item associated with the key, or null if the key is not present
+	 * @see #get(Object)
+	 */
+	final public V get(final Object key, final Cursor cursor) {
+		final LatencyRecorder latencies = this.latencies;
+		if (latencies == null) return lookup(key, cursor);
+		final long start = latencies.start();
+		final V result = lookup(key, cursor);
+		latencies.record(LatencyRecorder.LOOKUP, start);
+		return result;
+	}
+
+	/**
+	 * Finds the node with the given key, starting from the node remembered by
+	 * the given cursor, without recording the latency.
+	 * 
+	 * @param key The key
+	 * @param cursor The cursor
+	 * @return The item associated with the key, or null if the key is not present
+	 */
+	@SuppressWarnings("unchecked")
+	final private V lookup(final Object key, final Cursor cursor) {
+		final Comparable<? super K> value = comparable(key);
+		final AVLMapNode<K,V> node = locate(value, cursor);
+		if (value.compareTo(node.key) == 0 && node.valid) {
+			final Object item = node.item;
+			if (!isPresent(item) || isExpired(item)) return null;
+			if (recordAccesses) accessed(node);
+			return (V) unseal(item);
+		}
+		return null;
+	}
+
+	/**
+	 * Finds the node with the given key, starting from the node remembered by 
+	 * the given cursor. 
+	 * 
+	 * @param key The key
+	 * @param cursor The cursor
+	 * @return true if the key is present, and false otherwise
+	 * @see #containsKey(Object)
+	 */
+	final public boolean containsKey(final Object key, final Cursor cursor) {
+		final Comparable<? super K> value = comparable(key);
+		final AVLMapNode<K,V> node = locate(value, cursor);
+		return value.compareTo(node.key) == 0 && node.valid && isPresent(node.item) && !node.isExpired();
+	}
+
+	/**
+	 * Looks up a batch of keys, and stores the item associated with each key
+	 * in the corresponding entry of {@code items} (or null if the key is not
+	 * present). 
+	 * The lookups share a single {@link Cursor}, so when the keys are given in
+	 * ascending order, each lookup continues from the node reached by the 
+	 * previous one instead of traversing the tree from the root.
+	 * 
+	 * @param keys The keys, preferably in ascending order
+	 * @param items The array to store the items in
+	 * @return The number of keys that are present
+	 */
+	public int getAll(final K[] keys, final V[] items) {
+		final Cursor cursor = new Cursor();
+		int found = 0;
+		for (int i = 0; i < keys.length; i++) {
+			items[i] = get(keys[i], cursor);
+			if (items[i] != null) found++;
+		}
+		return found;
+	}
+
+	/**
+	 * Looks up a batch of keys, and stores whether each key is present in the
+	 * corresponding entry of {@code results}.
+	 * 
+	 * @param keys The keys, preferably in ascending order
+	 * @param results The array to store the results in
+	 * @return The number of keys that are present
+	 * @see #getAll(Object[], Object[])
+	 */
+	public int containsAll(final K[] keys, final boolean[] results) {
+		final Cursor cursor = new Cursor();
+		int found = 0;
+		for (int i = 0; i < keys.length; i++) {
+			results[i] = containsKey(keys[i], cursor);
+			if (results[i]) found++;
+		}
+		return found;
+	}
+
+	/**
+	 * Returns the node with the given key, or the node that precedes the key
+	 * in the ordering layout if the key is not present. 
+	 * If the cursor's node is valid, the ordering layout is traversed from it 
+	 * for at most {@link #CURSOR_STEPS} steps; otherwise, or if the key is 
+	 * further away, the tree is traversed (see {@link #traverse}).
+	 * The cursor is updated to point to the returned node, and is reset if 
+	 * the tree was cleared since its last lookup.
+	 * 
+	 * @param value The key, as returned by {@link #comparable}
+	 * @param cursor The cursor
+	 * @return The node with the given key or its predecessor
+	 */
+	final private AVLMapNode<K,V> locate(final Comparable<? super K> value, final Cursor cursor) {
+		final AVLMapNode<K,V> root = this.root;
+		if (cursor.root != root) {
+			cursor.root = root;
+			cursor.node = null;
+			cursor.depth = 0;
+		}
+		AVLMapNode<K,V> node = cursor.node;
+		if (node != null && node.valid) {
+			node = walk(value, node, CURSOR_STEPS);
+		} else {
+			node = null;
+		}
+		if (node == null) {
+			node = walk(value, traverse(value, cursor), Integer.MAX_VALUE);
+		}
+		cursor.node = node;
+		return node;
+	}
+
+	/**
+	 * Traverses the tree layout, and returns the last node reached by the 
+	 * traversal. 
+	 * The traversal begins from the deepest valid node of the cursor's 
+	 * previous traversal whose sub-tree (at the time of that traversal) 
+	 * covers the key, which is the root if there is no such node. Since the
+	 * result is corrected by traversing the ordering layout, the traversal 
+	 * may begin from any node. The cursor records the nodes of the traversal.
+	 * 
+	 * @param value The key, as returned by {@link #comparable}
+	 * @param cursor The cursor
+	 * @return The last node of the traversal
+	 */
+	final private AVLMapNode<K,V> traverse(final Comparable<? super K> value, final Cursor cursor) {
+		int depth = cursor.depth;
+		while (depth > 1) {
+			final int d = depth - 1;
+			final AVLMapNode<K,V> lower = cursor.lower[d];
+			final AVLMapNode<K,V> upper = cursor.upper[d];
+			if (cursor.path[d].valid && 
+					(lower == null || value.compareTo(lower.key) > 0) &&
+					(upper == null || value.compareTo(upper.key) < 0)) {
+				break;
+			}
+			depth--;
+		}
+		if (depth == 0) {
+			cursor.push(0, cursor.root, null, null);
+			depth = 1;
+		}
+		AVLMapNode<K,V> node = cursor.path[depth - 1];
+		AVLMapNode<K,V> lower = cursor.lower[depth - 1];
+		AVLMapNode<K,V> upper = cursor.upper[depth - 1];
+		AVLMapNode<K,V> child;
+		int res = depth == 1 ? -1 : value.compareTo(node.key);
+		while (true) {
+			if (res == 0) break;
+			if (res > 0) {
+				child = node.right;
+				lower = node;
+			} else {
+				child = node.left;
+				upper = node;
+			}
+			if (child == null) break;
+			node = child;
+			cursor.push(depth++, node, lower, upper);
+			res = value.compareTo(node.key);
+		}
+		cursor.depth = depth;
+		return node;
+	}
+
+	/**
+	 * Traverses the ordering layout from the given node, and returns the node 
+	 * with the given key, or the node that precedes the key if the key is not
+	 * present.
+	 * 
+	 * @param value The key, as returned by {@link #comparable}
+	 * @param node The node to begin the traversal from
+	 * @param steps The maximal number of steps to take
+	 * @return The node with the given key or its predecessor, or null if more 
+	 * than {@code steps} steps are required
+	 */
+	final private AVLMapNode<K,V> walk(final Comparable<? super K> value, AVLMapNode<K,V> node, int steps) {
+		int res = value.compareTo(node.key);
+		while (res > 0) {
+			if (steps-- == 0) return null;
+			node = node.succ;
+			res = value.compareTo(node.key);
+		}
+		while (res < 0) {
+			if (steps-- == 0) return null;
+			node = node.pred;
+			res = value.compareTo(node.key);
+		}
+		return node;
 	}
 	
 	/**
@@ -185,7 +666,41 @@ public class LogicalOrderingAVL<K, V> extends AbstractMap<K,V> implements Concur
 	 */
 	@Override
 	public V put(K key, V value) {
-		return insert(key, value, false, false, null);
+		return insert(key, value, false, false, null, 0, null);
+	}
+
+	/**
+	 * Associates the given item with the given key, starting the search from 
+	 * the node remembered by the given cursor.
+	 * 
+	 * @param key The key
+	 * @param value The item
+	 * @param cursor The cursor
+	 * @return The item that was associated with the given key, or null if the
+	 * key was not present in the tree
+	 * @see #put(Object, Object)
+	 */
+	public V put(K key, V value, Cursor cursor) {
+		return insert(key, value, false, false, null, 0, cursor);
+	}
+	
+	/**
+	 * Associates the given item with the given key for the given duration.
+	 * Once the duration passes, the key is considered absent, and its node 
+	 * is removed by the next call to {@link #expire}. Until then, the node is
+	 * still counted by {@link #size} and returned by the iterators.
+	 * A later update of the key without a duration makes it permanent again.
+	 * 
+	 * @param key The key
+	 * @param value The item
+	 * @param duration The duration
+	 * @param unit The duration's unit
+	 * @return The item that was associated with the given key, or null if the
+	 * key was not present in the tree
+	 */
+	public V put(K key, V value, long duration, TimeUnit unit) {
+		final long expiresAt = System.nanoTime() + unit.toNanos(duration);
+		return insert(key, value, false, false, null, expiresAt == 0? 1 : expiresAt, null);
 	}
 	
 	/**
@@ -193,7 +708,7 @@ public class LogicalOrderingAVL<K, V> extends AbstractMap<K,V> implements Concur
 	 */
 	@Override
 	public V putIfAbsent(K key, V value) {
-		return insert(key, value, true, false, null);
+		return insert(key, value, true, false, null, 0, null);
 	}
 	
 	/**
@@ -201,7 +716,7 @@ public class LogicalOrderingAVL<K, V> extends AbstractMap<K,V> implements Concur
 	 */
 	@Override
 	public V replace(K key, V value) {
-		return insert(key, value, false, true, EMPTY_ITEM);
+		return insert(key, value, false, true, EMPTY_ITEM, 0, null);
 	}
 
 	/**
@@ -209,7 +724,7 @@ public class LogicalOrderingAVL<K, V> extends AbstractMap<K,V> implements Concur
 	 */
 	@Override
 	public boolean replace(K key, V oldValue, V newValue) {
-		return insert(key, newValue, false, true, oldValue).equals(oldValue);
+		return insert(key, newValue, false, true, oldValue, 0, null).equals(oldValue);
 	}
 
 	/**
@@ -221,38 +736,108 @@ public class LogicalOrderingAVL<K, V> extends AbstractMap<K,V> implements Concur
 	 * {@code EmptyItem}, the replacement is applied without considering the 
 	 * current item associated with that key. Otherwise, the replacement is 
 	 * applied only if the current item equals to {@code replaceItem}.
+	 * A node whose expiration time passed is considered absent, and is 
+	 * reused if the key is inserted.
 	 * 
 	 * @param key The key
 	 * @param item The item
 	 * @param putIfAbsent Keep the old item if key is already present?
 	 * @param isReplace Is the operation should only take place if the key is already present? 
 	 * @param replaceItem The item to consider upon replacement.
+	 * @param expiresAt The expiration time of the key, or 0 if it does not expire
+	 * @param cursor The cursor to begin the search from, or null to begin 
+	 * from the root
 	 * @return The item that was associated with the given key, or null if the
 	 * key was not present in the tree
 	 */
-	final private V insert(final K key, final V item, boolean putIfAbsent, boolean isReplace, Object replaceItem) {
+	final private V insert(final K key, final V item, boolean putIfAbsent, boolean isReplace, Object replaceItem, long expiresAt, Cursor cursor) {
+		final LatencyRecorder latencies = this.latencies;
+		if (latencies == null) return insertItem(key, item, putIfAbsent, isReplace, replaceItem, expiresAt, cursor);
+		final long start = latencies.start();
+		final V result = insertItem(key, item, putIfAbsent, isReplace, replaceItem, expiresAt, cursor);
+		latencies.record(LatencyRecorder.INSERT, start);
+		return result;
+	}
+
+	/**
+	 * Insert or update the given key, without recording the latency.
+	 * 
+	 * @see #insert(Object, Object, boolean, boolean, Object, long, Cursor)
+	 */
+	final private V insertItem(final K key, final V item, boolean putIfAbsent, boolean isReplace, Object replaceItem, long expiresAt, Cursor cursor) {
 		final Comparable<? super K> value = comparable(key);
 		AVLMapNode<K,V> node = null;
 		K nodeValue = null;
 		int res = -1;
-		while (true) {
-			node = root;
-			AVLMapNode<K,V> child;
-			res = -1;
-			while (true) {
-				if (res == 0) break;
-				if (res > 0) {
-					child = node.right;
-				} else {
-					child = node.left;
+		AVLMapNode<K,V> restartRoot = null, restart = null;
+		final Backoff backoff = this.backoff;
+		for (int attempt = 0; ; attempt++) {
+			backoff.backoff(attempt);
+			final AVLMapNode<K,V> root;
+			final AVLMapNode<K,V> local = attempt == 0? null : relocate(value, restartRoot, restart);
+			if (local != null) {
+				node = local;
+				root = restartRoot;
+				res = value.compareTo(node.key);
+			} else if (cursor != null) {
+				node = locate(value, cursor);
+				root = cursor.root;
+				res = value.compareTo(node.key);
+				cursor = null; // retries begin from the root
+			} else {
+				root = this.root;
+				node = root;
+				AVLMapNode<K,V> child;
+				res = -1;
+				while (true) {
+					if (res == 0) break;
+					if (res > 0) {
+						child = node.right;
+					} else {
+						child = node.left;
+					}
+					if (child == null) break;
+					node = child;
+					nodeValue = node.key;
+					res = value.compareTo(nodeValue);
+				}
+			}
+			if (res == 0 && expiresAt == 0) {
+				@SuppressWarnings("unchecked")
+				final V previous = (V) tryUpdate(root, node, item, putIfAbsent, isReplace, replaceItem);
+				if (previous != null) {
+					if (recordAccesses) accessed(node);
+					return previous;
 				}
-				if (child == null) break;
-				node = child;
-				nodeValue = node.key;
-				res = value.compareTo(nodeValue);
 			}
 			final AVLMapNode<K,V> pred = res > 0 ? node : node.pred;
-			pred.lockSuccLock();
+			if (res != 0) {
+				pred.lockSuccLock();
+			} else if (!pred.tryLockSuccLock()) {
+				// an update of an existing key, whose predecessor is busy
+				final Combining op = new Combining(key, item, putIfAbsent, isReplace, replaceItem, expiresAt);
+				if (combine(pred, op)) {
+					@SuppressWarnings("unchecked")
+					final AVLMapNode<K,V> updated = (AVLMapNode<K,V>) op.node;
+					@SuppressWarnings("unchecked")
+					final V result = (V) op.result;
+					if (op.updated && aggregator != null) {
+						reaggregate(root, updated);
+					}
+					if (recordAccesses) accessed(updated);
+					if (op.updated && expiresAt != 0) {
+						addExpiration(root, updated, expiresAt);
+					}
+					if (op.record != null) {
+						op.record.await();
+					}
+					if (op.updated && result == null && maximumSize != 0) {
+						// a lazily removed node may have been reused
+						evict((RootNode) root);
+					}
+					return result;
+				}
+			}
 			if (pred.valid) {
 				final K predVal = pred.key;
 				final int predRes = pred== node? res: value.compareTo(predVal);
@@ -262,12 +847,36 @@ public class LogicalOrderingAVL<K, V> extends AbstractMap<K,V> implements Concur
 					final int res2 = succ == node? res: value.compareTo(succVal);
 					if (res2 <= 0) {
 						if (res2 == 0) {
-							V item2 = (V) succ.item;
-							if (!putIfAbsent && 
-									(!isReplace || replaceItem.equals(EMPTY_ITEM) || succ.item.equals(replaceItem))) {
-								succ.item = item;
+							final boolean expired = succ.isExpired();
+							Object current;
+							boolean update;
+							do {
+								current = succ.item;
+								update = shouldUpdate(current, expired || current == DELETED, putIfAbsent, isReplace, replaceItem);
+							} while (update && !update(succ, current, item, expiresAt));
+							final V item2 = expired || current == DELETED? null : (V) unseal(current);
+							final WriteAheadLog.Record record = update? log(WriteAheadLog.PUT, root, succ) : null;
+							if (update && current == DELETED) {
+								// the lazily removed node is reused
+								((RootNode) root).count.increment();
+							}
+							if (combining.get(combiningStripe(succ.key)) != null) {
+								combineAll(root, pred, succ);
 							}
 							pred.unlockSuccLock();
+							if (update && aggregator != null) {
+								reaggregate(root, succ);
+							}
+							if (recordAccesses) accessed(succ);
+							if (update && expiresAt != 0) {
+								addExpiration(root, succ, expiresAt);
+							}
+							if (record != null) {
+								record.await();
+							}
+							if (update && current == DELETED && maximumSize != 0) {
+								evict((RootNode) root);
+							}
 							return item2;
 						}
 						if (isReplace) {
@@ -275,22 +884,205 @@ public class LogicalOrderingAVL<K, V> extends AbstractMap<K,V> implements Concur
 							return null;
 						}
 						final AVLMapNode<K,V> parent = chooseParent(pred, succ, node);
-						final AVLMapNode<K,V> newNode = new AVLMapNode<K,V>(key, item, pred, succ, parent);
+						final AVLMapNode<K,V> newNode = newNode(key, expiring(item, expiresAt), pred, succ, parent);
+						keep(newNode, ABSENT);
+						final Aggregator<? super V, Object> aggregator = this.aggregator;
+						if (aggregator != null) ((AugmentedNode) newNode).aggregate = aggregator.lift(item);
+						if (recordAccesses) accessed(newNode);
 						succ.pred = newNode;
 						pred.succ = newNode;
+						final WriteAheadLog.Record record = log(WriteAheadLog.PUT, root, newNode);
 						pred.unlockSuccLock();
-						insertToTree(parent, newNode, parent == pred);
+						insertToTree(root, parent, newNode, parent == pred);
+						((RootNode) root).count.increment();
+						if (expiresAt != 0) {
+							addExpiration(root, newNode, expiresAt);
+						}
+						if (record != null) {
+							record.await();
+						}
+						if (maximumSize != 0) {
+							evict((RootNode) root);
+						}
 						return null;
 					}
 				}
 			}
 			pred.unlockSuccLock();
+			restartRoot = root;
+			restart = pred.valid? pred : node;
+		}
+	}
+	
+	/**
+	 * Update the item of the given node, which has the key of the update, 
+	 * by a compare-and-set, without locking its predecessor's 
+	 * {@code succLock}. Updates that should keep the previous items or the 
+	 * order of the writes, that is, while there are open snapshots or the 
+	 * writes are logged, and updates of keys that expire, whose expiration 
+	 * time should be checked under the lock, take the locked path instead. The update fails if the node is sealed by its removal 
+	 * (see {@link #unlink}), so it never changes a removed key.
+	 * The update is counted in {@link #updaters} while it checks for open 
+	 * snapshots and replaces the item, so a snapshot that is taken meanwhile
+	 * either is seen by the check, or waits for the update to complete 
+	 * before it is published.
+	 * 
+	 * @param root The root of the tree layout
+	 * @param node The node
+	 * @param item The new item
+	 * @param putIfAbsent Keep the old item if key is already present?
+	 * @param isReplace Is the operation should only take place if the key is already present? 
+	 * @param replaceItem The item to consider upon replacement
+	 * @return The previous item, or null if the update should take the locked path
+	 */
+	final private Object tryUpdate(final AVLMapNode<K,V> root, final AVLMapNode<K,V> node, final Object item, 
+			final boolean putIfAbsent, final boolean isReplace, final Object replaceItem) {
+		if (log != null) return null;
+		final int stripe = ((int) Thread.currentThread().getId() & (UPDATER_STRIPES - 1)) * UPDATER_SPACING;
+		Object current;
+		updaters.getAndIncrement(stripe);
+		try {
+			if (snapshots.length != 0) return null;
+			do {
+				current = node.item;
+				if (!isPresent(current) || current instanceof Expiring) return null;
+				if (!shouldUpdate(current, false, putIfAbsent, isReplace, replaceItem)) return current;
+			} while (!ITEM.compareAndSet(node, current, item));
+		} finally {
+			updaters.getAndDecrement(stripe);
+		}
+		if (aggregator != null) reaggregate(root, node);
+		return current;
+	}
+	
+	/**
+	 * Returns whether an insertion should replace the item of the existing 
+	 * node with its key. A node whose expiration time passed is considered 
+	 * absent.
+	 * 
+	 * @param current The current item of the node with the key
+	 * @param expired Did the node expire?
+	 * @param putIfAbsent The flag that indicates whether to insert only if the key is absent
+	 * @param isReplace The flag that indicates whether to replace only if the key is present
+	 * @param replaceItem The item to consider upon replacement
+	 * @return true if the item should be replaced, and false otherwise
+	 */
+	final private boolean shouldUpdate(final Object current, final boolean expired, 
+			final boolean putIfAbsent, final boolean isReplace, final Object replaceItem) {
+		if (expired) return !isReplace;
+		return !putIfAbsent && 
+				(!isReplace || replaceItem.equals(EMPTY_ITEM) || unseal(current).equals(replaceItem));
+	}
+	
+	/**
+	 * Replace the item and the expiration time of the given node, whose 
+	 * predecessor's {@code succLock} is held, if its item is still the 
+	 * expected one; it may be replaced meanwhile by {@link #tryUpdate}, 
+	 * which does not update nodes with an expiration time. The expiration
+	 * time is carried by the item, so both are replaced by a single write.
+	 * 
+	 * @param succ The node
+	 * @param expected The item the update read
+	 * @param item The new item
+	 * @param expiresAt The new expiration time
+	 * @return true if the item was replaced, and false if it changed meanwhile
+	 */
+	final private boolean update(final AVLMapNode<K,V> succ, final Object expected, 
+			final Object item, final long expiresAt) {
+		return setItem(succ, expected, expiring(item, expiresAt));
+	}
+	
+	/**
+	 * Hand the given update to the thread that holds the given node's 
+	 * {@code succLock}, and wait until it is applied. 
+	 * If the lock is released before the update is applied, or the update 
+	 * is not applied for a while, it is withdrawn and the lock is acquired.
+	 * The update is pushed on the stack of its key's stripe, which the 
+	 * holders of the locks of the predecessors of the stripe's keys drain.
+	 * 
+	 * @param pred The predecessor of the updated key
+	 * @param op The update
+	 * @return true if the update was applied, and false if the lock is held 
+	 * by the calling thread instead
+	 */
+	final private boolean combine(final AVLMapNode<K,V> pred, final Combining op) {
+		final int stripe = combiningStripe(op.key);
+		do {
+			op.next = combining.get(stripe);
+		} while (!combining.compareAndSet(stripe, op.next, op));
+		for (int spins = 0; ; spins++) {
+			final int state = op.state;
+			if (state == Combining.APPLIED) return true;
+			if (state == Combining.REJECTED) {
+				pred.lockSuccLock();
+				return false;
+			}
+			if (state == Combining.PENDING) {
+				if ((spins & 0x3f) == 0 && pred.tryLockSuccLock()) {
+					// the previous holder is done, so the update is not claimed
+					if (op.cancel() || op.state == Combining.REJECTED) return false;
+					pred.unlockSuccLock();
+					return true;
+				}
+				if (spins >= COMBINING_SPINS && op.cancel()) {
+					pred.lockSuccLock();
+					return false;
+				}
+			}
+			Thread.onSpinWait();
 		}
 	}
 	
+	/**
+	 * Apply the updates that were handed to the holder of the given node's 
+	 * {@code succLock}, which are updates of the key of its successor, in a 
+	 * single critical section. The other updates of the same stripe are 
+	 * rejected, and retried by their threads.
+	 * 
+	 * @param root The root of the tree layout
+	 * @param pred The node, whose {@code succLock} is held
+	 * @param succ The node's successor
+	 */
+	final private void combineAll(final AVLMapNode<K,V> root, final AVLMapNode<K,V> pred, final AVLMapNode<K,V> succ) {
+		for (Combining op = combining.getAndSet(combiningStripe(succ.key), null); op != null; op = op.next) {
+			if (!op.claim()) continue;
+			if (comparable(op.key).compareTo(succ.key) != 0) {
+				op.state = Combining.REJECTED;
+				continue;
+			}
+			final boolean expired = succ.isExpired();
+			Object current;
+			do {
+				current = succ.item;
+				op.updated = shouldUpdate(current, expired || current == DELETED, op.putIfAbsent, op.isReplace, op.replaceItem);
+			} while (op.updated && !update(succ, current, op.item, op.expiresAt));
+			op.node = succ;
+			op.result = expired || current == DELETED? null : unseal(current);
+			if (op.updated) {
+				op.record = log(WriteAheadLog.PUT, root, succ);
+				if (current == DELETED) ((RootNode) root).count.increment();
+			}
+			op.state = Combining.APPLIED;
+		}
+	}
+	
+	/**
+	 * Returns the stripe of the updates of the given key that wait for a 
+	 * busy {@code succLock}.
+	 * 
+	 * @param key The key
+	 * @return The index of the stripe
+	 */
+	final private static int combiningStripe(final Object key) {
+		final int hash = key.hashCode();
+		return (hash ^ (hash >>> 16)) & (COMBINING_STRIPES - 1);
+	}
+	
 	/**
 	 * Choose and lock the correct parent, given the new node's predecessor, 
 	 * successor, and the node returned from the traversal.
+	 * Called while holding the predecessor's {@code succLock}, so failed 
+	 * attempts do not park (see {@link Backoff#backoffHoldingLocks}).
 	 * 
 	 * @param pred The predecessor
 	 * @param succ The successor
@@ -300,7 +1092,8 @@ public class LogicalOrderingAVL<K, V> extends AbstractMap<K,V> implements Concur
 	final private AVLMapNode<K,V> chooseParent(final AVLMapNode<K,V> pred, 
 			final AVLMapNode<K,V> succ, final AVLMapNode<K,V> firstCand) {
 		AVLMapNode<K,V> candidate = firstCand == pred || firstCand == succ? firstCand: pred;
-		while (true) {
+		final Backoff backoff = this.backoff;
+		for (int attempt = 1; ; attempt++) {
 			candidate.lockTreeLock();
 			if (candidate == pred) {
 				if (candidate.right == null) {
@@ -315,7 +1108,7 @@ public class LogicalOrderingAVL<K, V> extends AbstractMap<K,V> implements Concur
 				candidate.unlockTreeLock();
 				candidate = pred;
 			}
-			Thread.yield();
+			backoff.backoffHoldingLocks(attempt);
 		}
 	}
 
@@ -323,11 +1116,12 @@ public class LogicalOrderingAVL<K, V> extends AbstractMap<K,V> implements Concur
 	 * Update the tree layout by connecting the new node to its parent.
 	 * Then, the parent's height is updated, and {@link #rebalance} is called.
 	 * 
+	 * @param root The root of the tree layout
 	 * @param parent The new node's parent
 	 * @param newNode The new node
 	 * @param isRight Is the new node should be the parent's right child?
 	 */
-	final private void insertToTree(final AVLMapNode<K,V> parent, final AVLMapNode<K,V> newNode, final boolean isRight) {
+	final private void insertToTree(final AVLMapNode<K,V> root, final AVLMapNode<K,V> parent, final AVLMapNode<K,V> newNode, final boolean isRight) {
 		if (isRight) {
 			parent.right = newNode;
 			parent.rightHeight = 1;
@@ -335,9 +1129,12 @@ public class LogicalOrderingAVL<K, V> extends AbstractMap<K,V> implements Concur
 			parent.left = newNode;
 			parent.leftHeight = 1;
 		}
+		if (isAugmented()) {
+			augment(root, parent, 1);
+		}
 		if (parent != root) {
 			AVLMapNode<K, V> grandParent = lockParent(parent);
-			rebalance(grandParent, parent, grandParent.left == parent);
+			rebalance(root, grandParent, parent, grandParent.left == parent);
 		} else {
 			parent.unlockTreeLock();
 		}
@@ -396,25 +1193,49 @@ public class LogicalOrderingAVL<K, V> extends AbstractMap<K,V> implements Concur
 	 * removed
 	 */
 	final public V remove(final Object key, final boolean compareItem, final Object item) {
+		final LatencyRecorder latencies = this.latencies;
+		if (latencies == null) return removeItem(key, compareItem, item);
+		final long start = latencies.start();
+		final V result = removeItem(key, compareItem, item);
+		latencies.record(LatencyRecorder.REMOVE, start);
+		return result;
+	}
+
+	/**
+	 * Remove the given key from the tree, without recording the latency.
+	 * 
+	 * @see #remove(Object, boolean, Object)
+	 */
+	final private V removeItem(final Object key, final boolean compareItem, final Object item) {
 		Comparable<? super K> value = comparable(key);
 		AVLMapNode<K,V> pred, node = null;
 		K nodeValue = null;
 		int res = 0;
-		while (true) {
-			node = root;
-			AVLMapNode<K,V> child;
-			res = -1;
-			while (true) {
-				if (res == 0) break;
-				if (res > 0) {
-					child = node.right;
-				} else {
-					child = node.left;
+		AVLMapNode<K,V> restartRoot = null, restart = null;
+		final Backoff backoff = this.backoff;
+		for (int attempt = 0; ; attempt++) {
+			backoff.backoff(attempt);
+			final AVLMapNode<K,V> local = attempt == 0? null : relocate(value, restartRoot, restart);
+			final AVLMapNode<K,V> root = local != null? restartRoot : this.root;
+			if (local != null) {
+				node = local;
+				res = value.compareTo(node.key);
+			} else {
+				node = root;
+				AVLMapNode<K,V> child;
+				res = -1;
+				while (true) {
+					if (res == 0) break;
+					if (res > 0) {
+						child = node.right;
+					} else {
+						child = node.left;
+					}
+					if (child == null) break;
+					node = child;
+					nodeValue = node.key;
+					res = value.compareTo(nodeValue);
 				}
-				if (child == null) break;
-				node = child;
-				nodeValue = node.key;
-				res = value.compareTo(nodeValue);
 			}
 			pred = res > 0 ? node : node.pred;
 			pred.lockSuccLock();
@@ -426,367 +1247,2000 @@ public class LogicalOrderingAVL<K, V> extends AbstractMap<K,V> implements Concur
 					final K succVal = succ.key;
 					int res2 = succ == node? res: value.compareTo(succVal);
 					if (res2 <= 0) {
-						if (res2 != 0 || (compareItem && !succ.item.equals(item))) {
+						final boolean expired = res2 == 0 && succ.isExpired();
+						final boolean lazy = lazyRemoval && !orderStatistics;
+						Object current = null;
+						if (res2 == 0) {
+							// the item is replaced by a lazy removal, or sealed by an eager one,
+							// only if it is still the compared one
+							do {
+								current = succ.item;
+							} while (current != DELETED && !(compareItem && (expired || !unseal(current).equals(item))) && 
+									!(lazy? setItem(succ, current, DELETED) : ITEM.compareAndSet(succ, current, new Removed(current))));
+						}
+						if (res2 != 0 || current == DELETED || (compareItem && (expired || !unseal(current).equals(item)))) {
 							pred.unlockSuccLock();
 							return null;
 						}
-						succ.lockSuccLock();
-						AVLMapNode<K,V> successor = acquireTreeLocks(succ);
-						AVLMapNode<K, V> succParent = lockParent(succ);
-						succ.valid = false;
-						V succItem = (V) succ.item;
-						AVLMapNode<K, V> succSucc = succ.succ; 
-						succSucc.pred = pred; 
-						pred.succ = succSucc;
-						succ.unlockSuccLock();
-						pred.unlockSuccLock();
-						removeFromTree(succ, successor, succParent);
-						return succItem;
+						if (lazy) {
+							delete(root, pred, succ);
+						} else {
+							unlink(root, pred, succ);
+						}
+						return expired? null : (V) unseal(current);
 					}
 				}
 			}
 			pred.unlockSuccLock();
+			restartRoot = root;
+			restart = pred.valid? pred : node;
 		}
 	}
-	
+
 	/**
-	 * Acquire the treeLocks of the following nodes: 
-	 * <ul>
-	 * <li> The given node
-	 * <li> The node's child - if the given node has less than two children
-	 * <li> The node's successor, and the successor's parent and child - if the
-	 * given node has two children
-	 * </ul>
+	 * Removes the least key and returns it with its item, as
+	 * {@link java.util.concurrent.ConcurrentSkipListMap#pollFirstEntry} does.
+	 * The key is claimed from the head of the ordering layout, without 
+	 * traversing the tree layout.
 	 * 
-	 * @param node The given node
-	 * @return The node's successor, if the node has two children, and null,
-	 * otherwise
+	 * @return The removed key and its item, or null if the tree is empty
 	 */
-	final private AVLMapNode<K,V> acquireTreeLocks(final AVLMapNode<K,V> node) {
-		while (true) {
-			node.lockTreeLock();
-			final AVLMapNode<K,V> right = node.right;
-			final AVLMapNode<K,V> left = node.left;
-			if (right == null || left == null) {
-				if (right != null && !right.tryLockTreeLock()) {
-					node.unlockTreeLock();
-					Thread.yield();
-					continue;
-				}
-				if (left != null && !left.tryLockTreeLock()) {
-					node.unlockTreeLock();
-					Thread.yield();
-					continue;
-				}
+	final public Map.Entry<K,V> pollFirstEntry() {
+		return poll(true, 1);
+	}
+
+	/**
+	 * Removes one of the {@code width} least keys, chosen at random, and 
+	 * returns it with its item. Concurrent polls of a priority queue contend
+	 * on its head; spreading them over the first keys, as a SprayList does, 
+	 * lets them claim different nodes, at the cost of not removing exactly 
+	 * the least key. A tree with fewer keys gives its last one.
+	 * 
+	 * @param width The number of least keys to choose from, 1 to remove the
+	 * least key
+	 * @return The removed key and its item, or null if the tree is empty
+	 */
+	final public Map.Entry<K,V> pollFirstEntry(final int width) {
+		return poll(true, width);
+	}
+
+	/**
+	 * Removes the greatest key and returns it with its item, as
+	 * {@link java.util.concurrent.ConcurrentSkipListMap#pollLastEntry} does.
+	 * The key is claimed from the tail of the ordering layout, without 
+	 * traversing the tree layout.
+	 * 
+	 * @return The removed key and its item, or null if the tree is empty
+	 */
+	final public Map.Entry<K,V> pollLastEntry() {
+		return poll(false, 1);
+	}
+
+	/**
+	 * Removes one of the {@code width} greatest keys, chosen at random, and 
+	 * returns it with its item.
+	 * 
+	 * @param width The number of greatest keys to choose from, 1 to remove 
+	 * the greatest key
+	 * @return The removed key and its item, or null if the tree is empty
+	 * @see #pollFirstEntry(int)
+	 */
+	final public Map.Entry<K,V> pollLastEntry(final int width) {
+		return poll(false, width);
+	}
+
+	/**
+	 * Removes a key from one end of the ordering layout. The chosen node is 
+	 * claimed by locking its predecessor's {@code succLock} and validating 
+	 * that it still follows it, as a removal does after its traversal; the 
+	 * nodes of lazily removed or expired keys that are reached are unlinked
+	 * on the way.
+	 * 
+	 * @param first Remove from the least keys, or from the greatest ones?
+	 * @param width The number of keys at the end to choose from
+	 * @return The removed key and its item, or null if the tree is empty
+	 */
+	@SuppressWarnings("unchecked")
+	final private Map.Entry<K,V> poll(final boolean first, final int width) {
+		if (width < 1) throw new IllegalArgumentException();
+		final LatencyRecorder latencies = this.latencies;
+		final long start = latencies == null? LatencyRecorder.NOT_SAMPLED : latencies.start();
+		final Backoff backoff = this.backoff;
+		for (int attempt = 0; ; ) {
+			backoff.backoff(attempt);
+			final AVLMapNode<K,V> root = this.root;
+			final AVLMapNode<K,V> head = root.parent;
+			AVLMapNode<K,V> node = first? head.succ : root.pred;
+			if (node == root || node == head) {
+				if (latencies != null) latencies.record(LatencyRecorder.REMOVE, start);
 				return null;
 			}
-
-			final AVLMapNode<K,V> successor = node.succ;
-			
-			final AVLMapNode<K, V> parent = successor.parent;
-			if (parent != node) {
-				if (!parent.tryLockTreeLock()) {
-					node.unlockTreeLock();
-					Thread.yield();
-					continue;
-				} else if (parent != successor.parent || !parent.valid) {
-					parent.unlockTreeLock();
-					node.unlockTreeLock();
-					Thread.yield();
-					continue;
-				}
+			for (int i = width == 1? 0 : ThreadLocalRandom.current().nextInt(width); i > 0; i--) {
+				final AVLMapNode<K,V> next = first? node.succ : node.pred;
+				if (next == root || next == head) break;
+				node = next;
 			}
-			if (!successor.tryLockTreeLock()) { 
-				node.unlockTreeLock();
-				if (parent != node) parent.unlockTreeLock();
-				Thread.yield();
+			final AVLMapNode<K,V> pred = node.pred;
+			pred.lockSuccLock();
+			if (!pred.valid || pred.succ != node) {
+				pred.unlockSuccLock();
+				attempt++;
 				continue;
 			}
-			final AVLMapNode<K,V> succRightChild = successor.right; // there is no left child to the successor, perhaps there is a right one, which we need to lock.
-			if (succRightChild != null && !succRightChild.tryLockTreeLock()) {
-				node.unlockTreeLock();
-				successor.unlockTreeLock();
-				if (parent != node) parent.unlockTreeLock();
-				Thread.yield();
-				continue;
+			final boolean expired = node.isExpired();
+			final Object item = unlink(root, pred, node);
+			if (item != DELETED && !expired) {
+				if (latencies != null) latencies.record(LatencyRecorder.REMOVE, start);
+				return new AbstractMap.SimpleImmutableEntry<K,V>(node.key, (V) item);
 			}
-			return successor;
 		}
 	}
 
 	/**
-	 * Removes the given node from the tree layout.
-	 * If the node has less than two children, its successor, {@code succ}, is 
-	 * null, and the removal is applied by connecting the node's parent to the 
-	 * node's child. Otherwise, the successor is relocated to the node's location. 
+	 * Returns the node a retry of a failed update begins from, instead of the
+	 * root. The failure is usually local, e.g., the predecessor was removed 
+	 * or a key was inserted next to it, so the ordering layout is traversed 
+	 * from the given node (see {@link #walk}) for at most 
+	 * {@link #CURSOR_STEPS} steps. 
 	 * 
-	 * @param node The node to remove
-	 * @param succ The node's successor
-	 * @param parent The node's parent
+	 * @param value The key, as returned by {@link #comparable}
+	 * @param root The root of the tree layout of the failed attempt
+	 * @param node The node to begin from, which was reached by the failed attempt
+	 * @return The node with the given key or its predecessor, or null if the 
+	 * retry should begin from the root
 	 */
-	private void removeFromTree(AVLMapNode<K, V> node, AVLMapNode<K, V> succ, 
-			AVLMapNode<K, V> parent) {
-		if (succ == null) {
-			AVLMapNode<K, V> right = node.right;
-			final AVLMapNode<K,V> child = right == null ? node.left : right;
-			boolean left = updateChild(parent, node, child);
-			node.unlockTreeLock();
-			rebalance(parent,  child, left);
-			return;
+	final private AVLMapNode<K,V> relocate(final Comparable<? super K> value, 
+			final AVLMapNode<K,V> root, final AVLMapNode<K,V> node) {
+		final AVLMapNode<K,V> local = root == this.root && node.valid? walk(value, node, CURSOR_STEPS) : null;
+		if (local != null) {
+			localRestarts.increment();
+		} else {
+			rootRestarts.increment();
 		}
-		AVLMapNode<K, V> oldParent = succ.parent;
-		AVLMapNode<K, V> oldRight = succ.right;
-		updateChild(oldParent, succ, oldRight);
+		return local;
+	}
 
-		succ.leftHeight = node.leftHeight;
-		succ.rightHeight = node.rightHeight;
-		AVLMapNode<K, V> left = node.left;
-		AVLMapNode<K, V> right = node.right;
-		succ.parent = parent;
-		succ.left = left;
-		succ.right = right; 
-		left.parent = succ;
-		if (right != null) {
-			right.parent = succ;
+	/**
+	 * Remove the given node, whose predecessor's {@code succLock} is held by 
+	 * the caller, from the ordering layout and then from the tree layout.
+	 * The predecessor's {@code succLock} is released by this method.
+	 * 
+	 * @param root The root of the tree layout
+	 * @param pred The node's predecessor (which is valid and whose 
+	 * {@code succLock} is held)
+	 * @param succ The node to remove
+	 * @return The item of the removed node, which is {@link #DELETED} if its
+	 * key was already removed lazily
+	 */
+	final private Object unlink(final AVLMapNode<K,V> root, final AVLMapNode<K,V> pred, final AVLMapNode<K,V> succ) {
+		succ.lockSuccLock();
+		AVLMapNode<K,V> successor = acquireTreeLocks(succ);
+		AVLMapNode<K, V> succParent = lockParent(succ);
+		final Object succItem = seal(succ);
+		succ.valid = false;
+		retain(succ);
+		AVLMapNode<K, V> succSucc = succ.succ; 
+		succSucc.pred = pred; 
+		pred.succ = succSucc;
+		final WriteAheadLog.Record record = log(WriteAheadLog.REMOVE, root, succ);
+		succ.unlockSuccLock();
+		pred.unlockSuccLock();
+		removeFromTree(root, succ, successor, succParent);
+		if (succItem != DELETED) {
+			((RootNode) root).count.decrement();
 		}
-		if (parent.left == node) {
-			parent.left = succ;
-		} else {
-			parent.right = succ;
+		if (record != null) {
+			record.await();
 		}
-		boolean isLeft = oldParent != node;
-		boolean violated = Math.abs(succ.getBalanceFactor()) >= 2;
-		if (!isLeft) {
-			oldParent = succ;
-		} else {
-			succ.unlockTreeLock();
+		return succItem;
+	}
+	
+	/**
+	 * Complete the lazy removal of the given node, whose item was replaced by
+	 * {@link #DELETED} while its predecessor's {@code succLock} is held.
+	 * The node is left in both layouts, so the removal takes no other lock,
+	 * and is queued to be unlinked by {@link #runMaintenance}; until then, an
+	 * insertion of its key reuses it.
+	 * The predecessor's {@code succLock} is released by this method.
+	 * 
+	 * @param root The root of the tree layout
+	 * @param pred The node's predecessor (whose {@code succLock} is held)
+	 * @param succ The removed node
+	 */
+	final private void delete(final AVLMapNode<K,V> root, final AVLMapNode<K,V> pred, final AVLMapNode<K,V> succ) {
+		final WriteAheadLog.Record record = log(WriteAheadLog.REMOVE, root, succ);
+		pred.unlockSuccLock();
+		((RootNode) root).count.decrement();
+		((RootNode) root).deleted.offer(succ);
+		if (aggregator != null) {
+			reaggregate(root, succ);
 		}
-		node.unlockTreeLock();
-		parent.unlockTreeLock();
-		rebalance(oldParent, oldRight, isLeft);
-		
-		if (violated) {
-			succ.lockTreeLock();
-			int bf = succ.getBalanceFactor();
-			if (succ.valid && Math.abs(bf) >=2) {
-				rebalance(succ, null, bf >=2? false: true);
-			} else {
-				succ.unlockTreeLock();
-			}
+		if (record != null) {
+			record.await();
 		}
 	}
 
 	/**
-	 * Given a node, {@code parent}, its old child and a new child, update the
-	 * old child with the new one.
+	 * Removes, one by one, all the keys that are greater than or equal to 
+	 * {@code fromKey} and smaller than {@code toKey}.
+	 * This is a convenience loop over single removals, not a bulk operation:
+	 * the predecessor of {@code fromKey} is located once, which saves the 
+	 * lookup of every key, but each node of the range is then unlinked as by
+	 * {@link #remove(Object)}, taking its own locks and detaching it from the
+	 * tree layout and rebalancing it on its own. The nodes are not detached 
+	 * in bulk, since a removal that finds its parent invalid (see 
+	 * {@link #lockParent}) waits for that parent to leave the tree layout.
+	 * Every single removal is atomic, but the removal of the whole range is 
+	 * not: keys that are concurrently inserted to the range may or may not be
+	 * removed.
 	 * 
-	 * @param parent The node
-	 * @param oldChild The old child
-	 * @param newChild The new child
-	 * @return true if the old child was a left child  
+	 * @param fromKey The lowest key to remove
+	 * @param toKey The key to stop at (which is not removed)
+	 * @return The number of removed keys
 	 */
-	private boolean updateChild(AVLMapNode<K, V> parent, AVLMapNode<K, V> oldChild,
-			final AVLMapNode<K, V> newChild) {
-		if (newChild != null) {
-			newChild.parent = parent;
-		}
-		boolean left = parent.left == oldChild;
-		if (left) {
-			parent.left = newChild;
-		} else {
-			parent.right = newChild;
-		}
-		return left;
+	public int removeEach(final K fromKey, final K toKey) {
+		return removeEach(comparable(fromKey), comparable(toKey));
 	}
 
 	/**
-	 * Rebalance the tree.
-	 * The rebalance is done by traversing the tree (starting from the given 
-	 * node) and applying rotations when detecting imbalanced nodes. 
+	 * Removes, one by one, all the keys that are smaller than {@code toKey}.
 	 * 
-	 * @param node The node to begin the traversal from
-	 * @param child The node's child
-	 * @param isLeft Is the given child a left child?
+	 * @param toKey The key to stop at (which is not removed)
+	 * @return The number of removed keys
+	 * @see #removeEach(Object, Object)
 	 */
-	final private void rebalance(AVLMapNode<K,V> node, AVLMapNode<K,V> child, boolean isLeft) {
-		if (node == root) {
-			node.unlockTreeLock();
-			if (child != null) child.unlockTreeLock();
-			return;
-		}
-		AVLMapNode<K,V> parent = null;
-		try {
-			while (node != root) {
-				boolean updateHeight = updateHeight(child, node, isLeft);
-				int bf = node.getBalanceFactor();
-				if (!updateHeight && Math.abs(bf) < 2) return;
-				while (bf >= 2 || bf <= -2) {
-					if ((isLeft && bf <= -2) || (!isLeft && bf >= 2)) {
-						if (child != null) child.unlockTreeLock();
-						child = isLeft? node.right : node.left;
-						if (!child.tryLockTreeLock()) {
-							child = restart(node, parent);
-							if (!node.treeLock.isHeldByCurrentThread()) {
-								return;
-							}
-							parent = null;
-							isLeft = node.left == child;
-							bf = node.getBalanceFactor();
-							continue;
-						} 
-						isLeft = !isLeft;
-					}
-					if ((isLeft && child.getBalanceFactor() < 0) || (!isLeft && child.getBalanceFactor() > 0)) {
-						AVLMapNode<K,V> grandChild =  isLeft? child.right : child.left;
-						if (!grandChild.tryLockTreeLock()) {
-							child.unlockTreeLock();
-							child = restart(node, parent);
-							if (!node.treeLock.isHeldByCurrentThread()) {
-								return;
-							}
-							parent = null;
-							isLeft = node.left == child;
-							bf = node.getBalanceFactor();
-							continue;
-						}
-						rotate(grandChild, child, node, isLeft);
-						child.unlockTreeLock();
-						child = grandChild;
-					}
-					if (parent == null) {
-						parent = lockParent(node);
-					}
-					rotate(child,  node, parent, !isLeft);
-					bf = node.getBalanceFactor();
-					if (bf >= 2 || bf <= -2) {
-						parent.unlockTreeLock();
-						parent = child;
-						child = null;
-						isLeft = bf >= 2? false: true; // enforces to lock child
-						continue;
+	public int removeEachBefore(final K toKey) {
+		return removeEach(null, comparable(toKey));
+	}
+
+	/**
+	 * Removes the keys in the range [from, to), one by one.
+	 * 
+	 * @param from The lowest key to remove, as returned by {@link #comparable},
+	 * or null to remove from the first key
+	 * @param to The key to stop at, as returned by {@link #comparable}
+	 * @return The number of removed keys
+	 */
+	final private int removeEach(final Comparable<? super K> from, final Comparable<? super K> to) {
+		int removed = 0;
+		AVLMapNode<K,V> root = null;
+		AVLMapNode<K,V> pred = null;
+		while (true) {
+			if (pred == null) {
+				if (from == null) {
+					root = this.root;
+					pred = root.parent;
+				} else {
+					final Cursor cursor = new Cursor();
+					pred = locate(from, cursor);
+					root = cursor.root;
+					if (from.compareTo(pred.key) == 0) {
+						pred = pred.pred;
 					}
-					AVLMapNode<K, V> temp = child;
-					child = node;
-					node = temp;
-					isLeft = node.left == child;
-					bf = node.getBalanceFactor();
-				}
-				if (child != null) {
-					child.unlockTreeLock();
 				}
-				child = node;
-				node = parent != null && parent.treeLock.isHeldByCurrentThread()? parent: lockParent(node);
-				isLeft = node.left == child;
-				parent = null;
 			}
-		} finally {
-			if (child != null && child.treeLock.isHeldByCurrentThread()) {
-				child.unlockTreeLock();
+			pred.lockSuccLock();
+			if (!pred.valid) {
+				pred.unlockSuccLock();
+				pred = null;
+				continue;
 			}
-			if (node.treeLock.isHeldByCurrentThread()) node.unlockTreeLock();
-			if (parent != null && parent.treeLock.isHeldByCurrentThread()) parent.unlockTreeLock();
+			final AVLMapNode<K,V> succ = pred.succ;
+			if (succ == root || to.compareTo(succ.key) <= 0) {
+				pred.unlockSuccLock();
+				return removed;
+			}
+			if (from != null && from.compareTo(succ.key) > 0) {
+				pred.unlockSuccLock();
+				pred = succ;
+				continue;
+			}
+			if (unlink(root, pred, succ) != DELETED) removed++;
 		}
 	}
+	
+	/**
+	 * Schedule the removal of the given node at the given expiration time.
+	 * 
+	 * @param root The root of the tree layout
+	 * @param node The node
+	 * @param expiresAt The node's expiration time
+	 */
+	final private void addExpiration(final AVLMapNode<K,V> root, final AVLMapNode<K,V> node, final long expiresAt) {
+		((RootNode) root).expirations().schedule(node, expiresAt);
+	}
+	
+	/**
+	 * Removes the nodes whose expiration time passed.
+	 * Only the nodes scheduled to expire since the previous call are 
+	 * considered, so the tree is not traversed. If another thread is 
+	 * currently removing expired nodes, returns immediately.
+	 * 
+	 * @return The number of removed nodes
+	 * @see #put(Object, Object, long, TimeUnit)
+	 */
+	public int expire() {
+		final RootNode root = (RootNode) this.root;
+		final ExpiryWheel<AVLMapNode<K,V>> expirations = root.expirations;
+		if (expirations == null) return 0;
+		final List<AVLMapNode<K,V>> due = new ArrayList<AVLMapNode<K,V>>();
+		expirations.drain(System.nanoTime(), due);
+		int removed = 0;
+		for (AVLMapNode<K,V> node : due) {
+			if (node.valid && removeNode(root, node, true)) removed++;
+		}
+		return removed;
+	}
+	
+	/**
+	 * Calls {@link #expire} periodically on the given executor.
+	 * 
+	 * @param executor The executor
+	 * @param period The delay between the end of a call and the beginning of the next one
+	 * @param unit The period's unit
+	 * @return The future of the periodic task, which can be used to cancel it
+	 */
+	public ScheduledFuture<?> scheduleExpiration(final ScheduledExecutorService executor, 
+			final long period, final TimeUnit unit) {
+		return executor.scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				expire();
+			}
+		}, period, period, unit);
+	}
+	
+	/**
+	 * Set whether removals are lazy. A lazy removal only replaces the node's
+	 * item by a marker under its predecessor's {@code succLock}, and leaves 
+	 * the node in both layouts, so it takes none of the locks of the tree 
+	 * layout and does not rebalance it. The removed nodes are unlinked and 
+	 * the tree rebalanced in batches by {@link #runMaintenance}, e.g., on a 
+	 * background thread (see {@link #scheduleMaintenance}); until then an 
+	 * insertion of a removed key reuses its node, and the tree layout holds
+	 * the removed nodes as well.
+	 * Removals are eager while order statistics are maintained (see 
+	 * {@link #enableOrderStatistics}), since the sizes count the nodes. 
+	 * Removals of ranges, expired nodes and evictions are always eager.
+	 * 
+	 * @param lazyRemoval true to remove lazily, and false to remove eagerly
+	 */
+	public void setLazyRemoval(final boolean lazyRemoval) {
+		this.lazyRemoval = lazyRemoval;
+	}
+	
+	/**
+	 * Unlinks the nodes that were removed lazily, which were not reused by an
+	 * insertion since, from both layouts.
+	 * 
+	 * @return The number of unlinked nodes
+	 * @see #setLazyRemoval
+	 */
+	public int runMaintenance() {
+		final RootNode root = (RootNode) this.root;
+		int unlinked = 0;
+		for (AVLMapNode<K,V> node = root.deleted.poll(); node != null; node = root.deleted.poll()) {
+			if (purge(root, node)) unlinked++;
+		}
+		return unlinked;
+	}
+	
+	/**
+	 * Calls {@link #runMaintenance} periodically on the given executor.
+	 * 
+	 * @param executor The executor
+	 * @param period The delay between the end of a call and the beginning of the next one
+	 * @param unit The period's unit
+	 * @return The future of the periodic task, which can be used to cancel it
+	 */
+	public ScheduledFuture<?> scheduleMaintenance(final ScheduledExecutorService executor, 
+			final long period, final TimeUnit unit) {
+		return executor.scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				runMaintenance();
+			}
+		}, period, period, unit);
+	}
+	
+	/**
+	 * Unlink the given node if its key is still removed lazily.
+	 * The node is unlinked through its predecessor, without traversing the tree.
+	 * 
+	 * @param root The root of the tree layout
+	 * @param node The node
+	 * @return true if the node was unlinked, and false otherwise
+	 */
+	final private boolean purge(final AVLMapNode<K,V> root, final AVLMapNode<K,V> node) {
+		while (node.valid && node.item == DELETED) {
+			final AVLMapNode<K,V> pred = node.pred;
+			pred.lockSuccLock();
+			if (pred.valid && pred.succ == node) {
+				if (node.item != DELETED) {
+					pred.unlockSuccLock();
+					return false;
+				}
+				unlink(root, pred, node);
+				return true;
+			}
+			pred.unlockSuccLock();
+		}
+		return false;
+	}
+	
+	/**
+	 * Remove the given node, or if {@code expired} is true, remove it only if 
+	 * its expiration time passed.
+	 * The node is removed through its predecessor, without traversing the tree.
+	 * 
+	 * @param root The root of the tree layout
+	 * @param node The node
+	 * @param expired The flag that indicates whether to remove the node only
+	 * if it expired
+	 * @return true if the node was removed, and false otherwise
+	 */
+	final private boolean removeNode(final AVLMapNode<K,V> root, final AVLMapNode<K,V> node, final boolean expired) {
+		while (node.valid) {
+			final AVLMapNode<K,V> pred = node.pred;
+			pred.lockSuccLock();
+			if (pred.valid && pred.succ == node) {
+				if (expired && !node.isExpired()) {
+					pred.unlockSuccLock();
+					return false;
+				}
+				return unlink(root, pred, node) != DELETED;
+			}
+			pred.unlockSuccLock();
+		}
+		return false;
+	}
+	
+	/**
+	 * Seal the item of the given node, which is being removed while its 
+	 * predecessor's {@code succLock} is held, so that {@link #tryUpdate} 
+	 * does not replace it anymore.
+	 * 
+	 * @param node The node
+	 * @return The node's last item, without its expiration time
+	 */
+	final private Object seal(final AVLMapNode<K,V> node) {
+		while (true) {
+			final Object item = node.item;
+			if (item instanceof Removed) return unseal(item);
+			if (ITEM.compareAndSet(node, item, new Removed(item))) return unseal(item);
+		}
+	}
+	
+	/**
+	 * Returns whether the given item of a node is of a present key, that is,
+	 * it was neither sealed by a removal nor removed lazily.
+	 * 
+	 * @param item The item
+	 * @return true if the key is present, and false otherwise
+	 */
+	final private static boolean isPresent(final Object item) {
+		return item != DELETED && !(item instanceof Removed);
+	}
+	
+	/**
+	 * Returns the given item of a node, which may be sealed, and may carry 
+	 * its expiration time.
+	 * 
+	 * @param item The item
+	 * @return The item, or the last item of a removed node
+	 */
+	final private static Object unseal(final Object item) {
+		final Object current = item instanceof Removed? ((Removed) item).item : item;
+		return current instanceof Expiring? ((Expiring) current).item : current;
+	}
+	
+	/**
+	 * Returns the expiration time that the given item of a node carries.
+	 * 
+	 * @param item The item, which may be sealed
+	 * @return The expiration time, or 0 if the key does not expire
+	 */
+	final private static long expiresAt(final Object item) {
+		final Object current = item instanceof Removed? ((Removed) item).item : item;
+		return current instanceof Expiring? ((Expiring) current).expiresAt : 0;
+	}
+	
+	/**
+	 * Returns whether the expiration time that the given item of a node 
+	 * carries has passed.
+	 * 
+	 * @param item The item, which may be sealed
+	 * @return true if the key expired, and false otherwise
+	 */
+	final private static boolean isExpired(final Object item) {
+		final long expiresAt = expiresAt(item);
+		return expiresAt != 0 && expiresAt - System.nanoTime() <= 0;
+	}
+	
+	/**
+	 * Returns the item to write to a node for the given item and expiration
+	 * time.
+	 * 
+	 * @param item The item
+	 * @param expiresAt The expiration time, or 0 if the key does not expire
+	 * @return The item, which carries the expiration time if there is one
+	 */
+	final private static Object expiring(final Object item, final long expiresAt) {
+		return expiresAt == 0? item : new Expiring(item, expiresAt);
+	}
+	
+	/**
+	 * Replace the item of the given node, whose predecessor's {@code succLock}
+	 * is held by the caller, if it is still the expected one. The previous 
+	 * item is kept for the open snapshots that should still see it (see 
+	 * {@link #keep}).
+	 * 
+	 * @param node The node
+	 * @param expected The item the caller read
+	 * @param item The new item
+	 * @return true if the item was replaced, and false if it changed meanwhile
+	 */
+	final private boolean setItem(final AVLMapNode<K,V> node, final Object expected, final Object item) {
+		keep(node, expected);
+		return ITEM.compareAndSet(node, expected, item);
+	}
+	
+	/**
+	 * Keep the given item of the given node, which is about to be replaced 
+	 * while its predecessor's {@code succLock} is held, in the open snapshots
+	 * that were taken before the write, unless an earlier write already kept
+	 * the node's item as of the snapshot. The item is kept before it is 
+	 * replaced, so a snapshot that reads the new item finds the kept one.
+	 * The nodes of a tree without open snapshots are not versioned at all.
+	 * 
+	 * @param node The node
+	 * @param item The node's current item, or {@link #ABSENT} for a new node
+	 */
+	final private void keep(final AVLMapNode<K,V> node, final Object item) {
+		// the clock is read first, so the snapshots it covers are seen
+		final long version = clock;
+		final Snapshot[] snapshots = this.snapshots;
+		for (Snapshot snapshot : snapshots) {
+			if (snapshot.version < version) {
+				snapshot.items.putIfAbsent(node, item);
+			}
+		}
+	}
+	
+	/**
+	 * Keep the given node, which is being removed while its predecessor's 
+	 * {@code succLock} is held, for the open snapshots that should still see
+	 * its item.
+	 * 
+	 * @param node The removed node
+	 */
+	final private void retain(final AVLMapNode<K,V> node) {
+		final long version = clock;
+		final Snapshot[] snapshots = this.snapshots;
+		for (Snapshot snapshot : snapshots) {
+			if (snapshot.version < version && snapshot.itemAt(node) != null) {
+				snapshot.removed.put(node.key, node);
+			}
+		}
+	}
+	
+	/**
+	 * Hand a record of a write of the given node to the write-ahead log, if
+	 * the writes are logged. Called while holding the locks of the write, so
+	 * that the records are ordered as the writes.
+	 * 
+	 * @param op The operation
+	 * @param root The root of the tree layout
+	 * @param node The node
+	 * @return The record, which the writer should wait for after releasing 
+	 * its locks, or null if the writes are not logged
+	 */
+	final private WriteAheadLog.Record log(final byte op, final AVLMapNode<K,V> root, final AVLMapNode<K,V> node) {
+		final WriteAheadLog<K,V> log = this.log;
+		if (log == null) return null;
+		final Object item = node.item;
+		return log.append(op, root, node.key, unseal(item), expiresAt(item));
+	}
+	
+	/**
+	 * Record an access to the given node, for the access based eviction policies.
+	 * The update is racy, since the policies are approximate anyway.
+	 * 
+	 * @param node The node
+	 */
+	final private void accessed(final AVLMapNode<K,V> node) {
+		if (evictionPolicy == EvictionPolicy.LEAST_RECENTLY_USED) {
+			((AugmentedNode) node).accesses = System.nanoTime();
+		} else {
+			((AugmentedNode) node).accesses++;
+		}
+	}
+	
+	/**
+	 * Evict keys by the eviction policy while the tree holds more keys than 
+	 * its bound.
+	 * 
+	 * @param root The root of the tree layout
+	 */
+	final private void evict(final RootNode root) {
+		while (root.count.sum() > maximumSize) {
+			if (evictionPolicy == EvictionPolicy.SMALLEST_KEY) {
+				final AVLMapNode<K,V> pred = root.parent;
+				pred.lockSuccLock();
+				final AVLMapNode<K,V> succ = pred.succ;
+				if (succ == root) {
+					pred.unlockSuccLock();
+					return;
+				}
+				unlink(root, pred, succ);
+				continue;
+			}
+			final AVLMapNode<K,V> victim = evictionPolicy == EvictionPolicy.LARGEST_KEY? 
+					root.pred : sample(root);
+			if (victim == root.parent || victim == null) return;
+			removeNode(root, victim, false);
+		}
+	}
+	
+	/**
+	 * Returns the accesses to the given node, by the eviction policy.
+	 * 
+	 * @param node The node
+	 * @return The time of the last access to the node, or the number of 
+	 * accesses to it
+	 */
+	final private long accessesOf(final AVLMapNode<K,V> node) {
+		return ((AugmentedNode) node).accesses;
+	}
+	
+	/**
+	 * Sample nodes by random descents in the tree layout, and return the 
+	 * sampled node with the least accesses. Each descent samples the node it 
+	 * ends at and its successor, which is an inner node of the tree layout 
+	 * when the descent ends at a leaf.
+	 * 
+	 * @param root The root of the tree layout
+	 * @return The sampled node with the least accesses, or null if the tree 
+	 * is empty
+	 */
+	final private AVLMapNode<K,V> sample(final AVLMapNode<K,V> root) {
+		final ThreadLocalRandom random = ThreadLocalRandom.current();
+		AVLMapNode<K,V> victim = null;
+		for (int i = 0; i < EVICTION_SAMPLES; i++) {
+			AVLMapNode<K,V> node = root.left;
+			if (node == null) return null;
+			while (true) {
+				final AVLMapNode<K,V> child = random.nextBoolean()? node.left : node.right;
+				if (child == null) break;
+				node = child;
+			}
+			if (node.valid && (victim == null || accessesOf(node) < accessesOf(victim))) {
+				victim = node;
+			}
+			node = node.succ;
+			if (node != root && node.valid && (victim == null || accessesOf(node) < accessesOf(victim))) {
+				victim = node;
+			}
+		}
+		return victim;
+	}
+	
+	/**
+	 * Acquire the treeLocks of the following nodes: 
+	 * <ul>
+	 * <li> The given node
+	 * <li> The node's child - if the given node has less than two children
+	 * <li> The node's successor, and the successor's parent and child - if the
+	 * given node has two children
+	 * </ul>
+	 * Called while holding the {@code succLock}s of the node and its 
+	 * predecessor, so failed attempts do not park (see 
+	 * {@link Backoff#backoffHoldingLocks}).
+	 * 
+	 * @param node The given node
+	 * @return The node's successor, if the node has two children, and null,
+	 * otherwise
+	 */
+	final private AVLMapNode<K,V> acquireTreeLocks(final AVLMapNode<K,V> node) {
+		final Backoff backoff = this.backoff;
+		for (int attempt = 0; ; attempt++) {
+			backoff.backoffHoldingLocks(attempt);
+			node.lockTreeLock();
+			final AVLMapNode<K,V> right = node.right;
+			final AVLMapNode<K,V> left = node.left;
+			if (right == null || left == null) {
+				if (right != null && !right.tryLockTreeLock()) {
+					node.unlockTreeLock();
+					continue;
+				}
+				if (left != null && !left.tryLockTreeLock()) {
+					node.unlockTreeLock();
+					continue;
+				}
+				return null;
+			}
+
+			final AVLMapNode<K,V> successor = node.succ;
+			
+			final AVLMapNode<K, V> parent = successor.parent;
+			if (parent != node) {
+				if (!parent.tryLockTreeLock()) {
+					node.unlockTreeLock();
+					continue;
+				} else if (parent != successor.parent || !parent.valid) {
+					parent.unlockTreeLock();
+					node.unlockTreeLock();
+					continue;
+				}
+			}
+			if (!successor.tryLockTreeLock()) { 
+				node.unlockTreeLock();
+				if (parent != node) parent.unlockTreeLock();
+				continue;
+			}
+			final AVLMapNode<K,V> succRightChild = successor.right; // there is no left child to the successor, perhaps there is a right one, which we need to lock.
+			if (succRightChild != null && !succRightChild.tryLockTreeLock()) {
+				node.unlockTreeLock();
+				successor.unlockTreeLock();
+				if (parent != node) parent.unlockTreeLock();
+				continue;
+			}
+			return successor;
+		}
+	}
+
+	/**
+	 * Removes the given node from the tree layout.
+	 * If the node has less than two children, its successor, {@code succ}, is 
+	 * null, and the removal is applied by connecting the node's parent to the 
+	 * node's child. Otherwise, the successor is relocated to the node's location. 
+	 * 
+	 * @param root The root of the tree layout
+	 * @param node The node to remove
+	 * @param succ The node's successor
+	 * @param parent The node's parent
+	 */
+	private void removeFromTree(AVLMapNode<K, V> root, AVLMapNode<K, V> node, AVLMapNode<K, V> succ, 
+			AVLMapNode<K, V> parent) {
+		if (succ == null) {
+			AVLMapNode<K, V> right = node.right;
+			final AVLMapNode<K,V> child = right == null ? node.left : right;
+			boolean left = updateChild(parent, node, child);
+			node.unlockTreeLock();
+			if (isAugmented()) {
+				augment(root, parent, -1);
+			}
+			rebalance(root, parent,  child, left);
+			return;
+		}
+		AVLMapNode<K, V> oldParent = succ.parent;
+		AVLMapNode<K, V> oldRight = succ.right;
+		updateChild(oldParent, succ, oldRight);
+
+		succ.leftHeight = node.leftHeight;
+		succ.rightHeight = node.rightHeight;
+		if (isAugmented()) {
+			((AugmentedNode) succ).size = ((AugmentedNode) node).size;
+			((AugmentedNode) succ).aggregate = ((AugmentedNode) node).aggregate;
+		}
+		AVLMapNode<K, V> left = node.left;
+		AVLMapNode<K, V> right = node.right;
+		succ.parent = parent;
+		succ.left = left;
+		succ.right = right; 
+		left.parent = succ;
+		if (right != null) {
+			right.parent = succ;
+		}
+		if (parent.left == node) {
+			parent.left = succ;
+		} else {
+			parent.right = succ;
+		}
+		boolean isLeft = oldParent != node;
+		boolean violated = Math.abs(succ.getBalanceFactor()) >= 2;
+		if (!isLeft) {
+			oldParent = succ;
+		} else {
+			succ.unlockTreeLock();
+		}
+		node.unlockTreeLock();
+		parent.unlockTreeLock();
+		if (isAugmented()) {
+			// the successor's old parent lost the successor
+			augment(root, oldParent, -1);
+		}
+		rebalance(root, oldParent, oldRight, isLeft);
+		
+		if (violated) {
+			succ.lockTreeLock();
+			int bf = succ.getBalanceFactor();
+			if (succ.valid && Math.abs(bf) >=2) {
+				rebalance(root, succ, null, bf >=2? false: true);
+			} else {
+				succ.unlockTreeLock();
+			}
+		}
+	}
+
+	/**
+	 * Given a node, {@code parent}, its old child and a new child, update the
+	 * old child with the new one.
+	 * 
+	 * @param parent The node
+	 * @param oldChild The old child
+	 * @param newChild The new child
+	 * @return true if the old child was a left child  
+	 */
+	private boolean updateChild(AVLMapNode<K, V> parent, AVLMapNode<K, V> oldChild,
+			final AVLMapNode<K, V> newChild) {
+		if (newChild != null) {
+			newChild.parent = parent;
+		}
+		boolean left = parent.left == oldChild;
+		if (left) {
+			parent.left = newChild;
+		} else {
+			parent.right = newChild;
+		}
+		return left;
+	}
+
+	/**
+	 * Rebalance the tree.
+	 * The rebalance is done by traversing the tree (starting from the given 
+	 * node) and applying rotations when detecting imbalanced nodes. 
+	 * 
+	 * @param root The root of the tree layout
+	 * @param node The node to begin the traversal from
+	 * @param child The node's child
+	 * @param isLeft Is the given child a left child?
+	 */
+	final private void rebalance(final AVLMapNode<K,V> root, AVLMapNode<K,V> node, AVLMapNode<K,V> child, boolean isLeft) {
+		if (node == root) {
+			node.unlockTreeLock();
+			if (child != null) child.unlockTreeLock();
+			return;
+		}
+		AVLMapNode<K,V> parent = null;
+		try {
+			while (node != root) {
+				boolean updateHeight = updateHeight(child, node, isLeft);
+				int bf = node.getBalanceFactor();
+				if (!updateHeight && Math.abs(bf) < 2) return;
+				while (bf >= 2 || bf <= -2) {
+					if ((isLeft && bf <= -2) || (!isLeft && bf >= 2)) {
+						if (child != null) child.unlockTreeLock();
+						child = isLeft? node.right : node.left;
+						if (!child.tryLockTreeLock()) {
+							child = restart(node, parent);
+							if (!node.treeLock.isHeldByCurrentThread()) {
+								return;
+							}
+							parent = null;
+							isLeft = node.left == child;
+							bf = node.getBalanceFactor();
+							continue;
+						} 
+						isLeft = !isLeft;
+					}
+					if ((isLeft && child.getBalanceFactor() < 0) || (!isLeft && child.getBalanceFactor() > 0)) {
+						AVLMapNode<K,V> grandChild =  isLeft? child.right : child.left;
+						if (!grandChild.tryLockTreeLock()) {
+							child.unlockTreeLock();
+							child = restart(node, parent);
+							if (!node.treeLock.isHeldByCurrentThread()) {
+								return;
+							}
+							parent = null;
+							isLeft = node.left == child;
+							bf = node.getBalanceFactor();
+							continue;
+						}
+						rotate(grandChild, child, node, isLeft);
+						child.unlockTreeLock();
+						child = grandChild;
+					}
+					if (parent == null) {
+						parent = lockParent(node);
+					}
+					rotate(child,  node, parent, !isLeft);
+					bf = node.getBalanceFactor();
+					if (bf >= 2 || bf <= -2) {
+						parent.unlockTreeLock();
+						parent = child;
+						child = null;
+						isLeft = bf >= 2? false: true; // enforces to lock child
+						continue;
+					}
+					AVLMapNode<K, V> temp = child;
+					child = node;
+					node = temp;
+					isLeft = node.left == child;
+					bf = node.getBalanceFactor();
+				}
+				if (child != null) {
+					child.unlockTreeLock();
+				}
+				child = node;
+				node = parent != null && parent.treeLock.isHeldByCurrentThread()? parent: lockParent(node);
+				isLeft = node.left == child;
+				parent = null;
+			}
+		} finally {
+			if (child != null && child.treeLock.isHeldByCurrentThread()) {
+				child.unlockTreeLock();
+			}
+			if (node.treeLock.isHeldByCurrentThread()) node.unlockTreeLock();
+			if (parent != null && parent.treeLock.isHeldByCurrentThread()) parent.unlockTreeLock();
+		}
+	}
+
+	/**
+	 * Release all current treeLocks (of the given node and its parent), and 
+	 * re-acquire the treeLocks of node and its child.
+	 * 
+	 * @param node The node
+	 * @param parent The node's parent
+	 *  
+	 * @return The node's (locked) child 
+	 */
+	final private AVLMapNode<K,V> restart(AVLMapNode<K,V> node, AVLMapNode<K,V> parent) {
+		if (parent != null) {
+			parent.unlockTreeLock();
+		}
+		node.unlockTreeLock();
+		final Backoff backoff = this.backoff;
+		for (int attempt = 1; ; attempt++) { 
+			backoff.backoff(attempt);
+			node.lockTreeLock();
+			if (!node.valid) {
+				node.unlockTreeLock();
+				return null;
+			}
+			AVLMapNode<K, V> child = node.getBalanceFactor() >= 2? node.left : node.right;
+			if (child == null) return null;
+			if (child.tryLockTreeLock()) return child;
+			node.unlockTreeLock();
+		}
+	}
+
+	/**
+	 * Update the height of the given node, based on the given child.
+	 * 
+	 * @param child The node's child
+	 * @param node The node
+	 * @param isLeft Is the child a left child?
+	 * 
+	 * @return true if the height was updated, and false otherwise
+	 */
+	final private boolean updateHeight(AVLMapNode<K,V> child, AVLMapNode<K,V> node, boolean isLeft) {
+		int newHeight = child == null? 0: Math.max(child.leftHeight, child.rightHeight) + 1;
+		int oldHeight = isLeft? node.leftHeight : node.rightHeight;
+		if (newHeight == oldHeight) return false;
+		if (isLeft) {
+			node.leftHeight = newHeight;
+		} else {
+			node.rightHeight = newHeight;
+		}
+		return true;
+	}
+
+	/**
+	 * Apply a single rotation to the given node.
+	 * 
+	 * @param child The node's child
+	 * @param node The node to rotate
+	 * @param parent The node's parent
+	 * @param left Is this a left rotation?
+	 */
+	final private void rotate(final AVLMapNode<K,V> child, final AVLMapNode<K,V> node, final AVLMapNode<K,V> parent, boolean left) {
+		if (parent.left == node) {
+			parent.left = child;
+		} else {
+			parent.right = child;
+		}
+		child.parent = parent;
+		node.parent = child;
+		AVLMapNode<K, V> grandChild = left? child.left : child.right;
+		if (left) {
+			node.right = grandChild;
+			if (grandChild != null) {
+				grandChild.parent = node; 
+			}
+			child.left = node;
+			node.rightHeight = child.leftHeight;
+			child.leftHeight = Math.max(node.leftHeight, node.rightHeight) + 1;
+		} else {
+			node.left = grandChild;
+			if (grandChild != null) {
+				grandChild.parent = node; 
+			}
+			child.right = node;
+			node.leftHeight = child.rightHeight;
+			child.rightHeight = Math.max(node.leftHeight, node.rightHeight) + 1;
+		}
+		if (orderStatistics) {
+			// the rotated sub-tree holds the same nodes
+			final int size = sizeOf(node);
+			((AugmentedNode) node).size = 1 + sizeOf(node.left) + sizeOf(node.right);
+			((AugmentedNode) child).size = size;
+		}
+		final Aggregator<? super V, Object> aggregator = this.aggregator;
+		if (aggregator != null) {
+			((AugmentedNode) node).aggregate = aggregate(aggregator, node);
+			((AugmentedNode) child).aggregate = aggregate(aggregator, child);
+		}
+	}
+	
+	/**
+	 * Returns whether the sub-trees are augmented with their sizes or with 
+	 * the aggregates of their items.
+	 * 
+	 * @return true if the tree maintains order statistics or aggregates
+	 */
+	final private boolean isAugmented() {
+		return orderStatistics || aggregator != null;
+	}
+	
+	/**
+	 * Returns whether the nodes of the tree are augmented, that is, whether
+	 * they hold the sizes or the aggregates of their sub-trees, or the 
+	 * accesses to them.
+	 * 
+	 * @return true if the tree creates augmented nodes
+	 */
+	final private boolean hasAugmentedNodes() {
+		return isAugmented() || recordAccesses;
+	}
+	
+	/**
+	 * Add the given number of nodes to the size of the given node and of its
+	 * ancestors, whose sub-trees changed by that number, and recompute their
+	 * aggregates.
+	 * The size and the aggregate of a node are written while holding its 
+	 * parent's {@code treeLock}, so the ancestors are locked one by one, 
+	 * while holding the previous one, as in {@link #rebalance}; the change is 
+	 * therefore never hidden from a rotation, which recomputes the sizes and
+	 * the aggregates of the nodes it rotates from their children.
+	 * 
+	 * @param root The root of the tree layout
+	 * @param node The node whose sub-tree changed, whose {@code treeLock} is
+	 * held by the caller and is not released
+	 * @param delta The number of nodes that were added to the sub-tree
+	 */
+	final private void augment(final AVLMapNode<K,V> root, final AVLMapNode<K,V> node, final int delta) {
+		final boolean sizes = orderStatistics;
+		final Aggregator<? super V, Object> aggregator = this.aggregator;
+		AVLMapNode<K,V> child = node;
+		while (child != root) {
+			final AVLMapNode<K,V> parent = lockParent(child);
+			if (sizes) ((AugmentedNode) child).size += delta;
+			if (aggregator != null) ((AugmentedNode) child).aggregate = aggregate(aggregator, child);
+			if (child != node) child.unlockTreeLock();
+			child = parent;
+		}
+		if (child != node) child.unlockTreeLock();
+	}
+	
+	/**
+	 * Recompute the aggregates of the given node, whose item was replaced, 
+	 * and of its ancestors. A node that was removed meanwhile is skipped, 
+	 * since its removal recomputes the aggregates of its former ancestors.
+	 * 
+	 * @param root The root of the tree layout
+	 * @param node The node
+	 */
+	final private void reaggregate(final AVLMapNode<K,V> root, final AVLMapNode<K,V> node) {
+		node.lockTreeLock();
+		try {
+			if (node.valid) augment(root, node, 0);
+		} finally {
+			node.unlockTreeLock();
+		}
+	}
+	
+	/**
+	 * Returns the aggregate of the sub-tree rooted at the given node, 
+	 * computed from the aggregates of its children, which should not change
+	 * meanwhile.
+	 * 
+	 * @param aggregator The aggregator
+	 * @param node The node
+	 * @return The aggregate
+	 */
+	final private Object aggregate(final Aggregator<? super V, Object> aggregator, final AVLMapNode<K,V> node) {
+		final AVLMapNode<K,V> left = node.left, right = node.right;
+		Object aggregate = lift(aggregator, node.item);
+		if (left != null) aggregate = aggregator.combine(((AugmentedNode) left).aggregate, aggregate);
+		if (right != null) aggregate = aggregator.combine(aggregate, ((AugmentedNode) right).aggregate);
+		return aggregate;
+	}
+	
+	/**
+	 * Returns the aggregate of the given item of a node, which is the 
+	 * identity if the node's key was removed lazily.
+	 * 
+	 * @param aggregator The aggregator
+	 * @param item The item, which may be sealed
+	 * @return The item's aggregate
+	 */
+	@SuppressWarnings("unchecked")
+	final private <A> A lift(final Aggregator<? super V, A> aggregator, final Object item) {
+		final Object value = unseal(item);
+		return value == DELETED? aggregator.identity() : aggregator.lift((V) value);
+	}
+	
+	/**
+	 * Returns the size of the sub-tree rooted at the given node.
+	 * 
+	 * @param node The node, or null
+	 * @return The size of the node's sub-tree, or 0 if the node is null
+	 */
+	final private int sizeOf(final AVLMapNode<K,V> node) {
+		return node == null? 0 : ((AugmentedNode) node).size;
+	}
+	
+	/**
+	 * Replaces the tree with an empty one, in constant time.
+	 * Operations that began before the clear complete on the old tree layout,
+	 * and are therefore linearized before it.
+	 * 
+	 * @see java.util.AbstractMap#clear()
+	 */
+	@Override
+	public void clear() {
+		final WriteAheadLog.Record record;
+		synchronized (this) {
+			final AVLMapNode<K,V> root = this.root;
+			final AVLMapNode<K,V> newRoot = newRoot(root.parent.key, root.key);
+			// the writes to the new tree layout are logged after the clear
+			final WriteAheadLog<K,V> log = this.log;
+			record = log == null ? null : log.append(WriteAheadLog.CLEAR, newRoot, null, null, 0);
+			this.root = newRoot;
+		}
+		if (record != null) {
+			record.await();
+		}
+	}
+
+	/**
+	 * Returns a point-in-time view of the tree. Taking a snapshot takes 
+	 * constant time, besides waiting for the updates that are in progress 
+	 * without locking (see {@link #tryUpdate}); later writes keep the items 
+	 * that the snapshot should see, and the snapshot reads them while 
+	 * traversing the ordering layout.
+	 * The kept items are released when the snapshot is closed, so every 
+	 * snapshot should be closed after use.
+	 * 
+	 * @return The snapshot
+	 */
+	public synchronized Snapshot snapshot() {
+		final long version = clock;
+		final Snapshot snapshot = new Snapshot(root, version);
+		final Snapshot[] snapshots = Arrays.copyOf(this.snapshots, this.snapshots.length + 1);
+		snapshots[snapshots.length - 1] = snapshot;
+		this.snapshots = snapshots;
+		// the updates without locking that did not see the new snapshot 
+		// complete before it, at its version
+		for (int i = 0; i < UPDATER_STRIPES * UPDATER_SPACING; i += UPDATER_SPACING) {
+			while (updaters.get(i) != 0) {
+				Thread.yield();
+			}
+		}
+		// writes that read the new version see the new snapshot
+		clock = version + 1;
+		return snapshot;
+	}
+	
+	/**
+	 * Remove the given snapshot from the open snapshots.
+	 * 
+	 * @param snapshot The snapshot
+	 */
+	private synchronized void release(final Snapshot snapshot) {
+		final Snapshot[] snapshots = this.snapshots;
+		for (int i = 0; i < snapshots.length; i++) {
+			if (snapshots[i] == snapshot) {
+				final Snapshot[] remaining = Arrays.copyOf(snapshots, snapshots.length - 1);
+				System.arraycopy(snapshots, i + 1, remaining, i, snapshots.length - i - 1);
+				this.snapshots = remaining;
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Writes the contents of a snapshot of the tree to the given channel.
+	 * The format is a header (a magic number and a format version), followed 
+	 * by a record per entry in ascending key order, made of the length of the
+	 * key's representation, the representation, the length of the item's 
+	 * representation, the representation, and the expiration time of the key
+	 * in milliseconds since the epoch, or 0 if it does not expire, and ends 
+	 * with -1 and the number of entries. Lengths are 4-byte integers, and all
+	 * numbers are big-endian. The keys whose expiration time passed are not
+	 * written.
+	 * 
+	 * @param channel The channel to write to
+	 * @param keyCodec The keys' codec
+	 * @param itemCodec The items' codec
+	 * @return The number of written entries
+	 * @throws IOException If writing to the channel fails
+	 * @see #load(Path, Codec, Codec)
+	 */
+	public long dump(final WritableByteChannel channel, final Codec<? super K> keyCodec, 
+			final Codec<? super V> itemCodec) throws IOException {
+		final ByteBuffer buffer = ByteBuffer.allocate(DUMP_BUFFER);
+		buffer.putInt(DUMP_MAGIC).putInt(DUMP_FORMAT);
+		long count = 0;
+		try (Snapshot snapshot = snapshot()) {
+			final long now = System.nanoTime();
+			for (Iterator<Map.Entry<K,V>> i = snapshot.iterator(null, null); i.hasNext(); ) {
+				final SnapshotEntry<K,V> entry = (SnapshotEntry<K,V>) i.next();
+				if (entry.expiresAt != 0 && entry.expiresAt - now <= 0) continue;
+				final byte[] key = keyCodec.encode(entry.getKey());
+				final byte[] item = itemCodec.encode(entry.getValue());
+				final long expires = WriteAheadLog.wallClock(entry.expiresAt);
+				final int length = 16 + key.length + item.length;
+				if (buffer.remaining() < length) {
+					flush(channel, buffer);
+				}
+				if (buffer.remaining() < length) {
+					// a record that is larger than the buffer is written directly
+					buffer.putInt(key.length);
+					flush(channel, buffer);
+					write(channel, ByteBuffer.wrap(key));
+					buffer.putInt(item.length);
+					flush(channel, buffer);
+					write(channel, ByteBuffer.wrap(item));
+					buffer.putLong(expires);
+				} else {
+					buffer.putInt(key.length).put(key).putInt(item.length).put(item).putLong(expires);
+				}
+				count++;
+			}
+		}
+		if (buffer.remaining() < 12) {
+			flush(channel, buffer);
+		}
+		buffer.putInt(-1).putLong(count);
+		flush(channel, buffer);
+		return count;
+	}
+	
+	/**
+	 * Writes the contents of the given buffer to the given channel, and 
+	 * clears the buffer.
+	 * 
+	 * @param channel The channel
+	 * @param buffer The buffer (in write mode)
+	 * @throws IOException If writing to the channel fails
+	 */
+	private static void flush(final WritableByteChannel channel, final ByteBuffer buffer) throws IOException {
+		buffer.flip();
+		write(channel, buffer);
+		buffer.clear();
+	}
+	
+	/**
+	 * Writes the remaining bytes of the given buffer to the given channel.
+	 * 
+	 * @param channel The channel
+	 * @param buffer The buffer (in read mode)
+	 * @throws IOException If writing to the channel fails
+	 */
+	private static void write(final WritableByteChannel channel, final ByteBuffer buffer) throws IOException {
+		while (buffer.hasRemaining()) {
+			channel.write(buffer);
+		}
+	}
+	
+	/**
+	 * Replaces the contents of the tree with the contents of the given file,
+	 * which was written by {@link #dump}. 
+	 * The file is mapped to memory, and since its entries are sorted, the 
+	 * ordering layout is linked while the file is read, and the tree layout 
+	 * is then built balanced, bottom up, without any rebalancing. The keys
+	 * whose expiration time passed since the dump are skipped.
+	 * The new contents are published at once, as in {@link #clear}: 
+	 * operations that began before they are published complete on the old 
+	 * contents. If the writes are logged, the new contents are logged as 
+	 * well, and a {@link #checkpoint} compacts them.
+	 * 
+	 * @param path The file's path
+	 * @param keyCodec The keys' codec
+	 * @param itemCodec The items' codec
+	 * @return The number of loaded entries
+	 * @throws IOException If reading the file fails, or if the file is not a
+	 * valid dump of a tree with the same minimal and maximal values
+	 * @see #dump(WritableByteChannel, Codec, Codec)
+	 */
+	@SuppressWarnings({"unchecked", "rawtypes"})
+	public long load(final Path path, final Codec<? extends K> keyCodec, 
+			final Codec<? extends V> itemCodec) throws IOException {
+		final AVLMapNode<K,V> oldRoot = this.root;
+		final RootNode root = (RootNode) newRoot(oldRoot.parent.key, oldRoot.key);
+		final List<AVLMapNode<K,V>> nodes = new ArrayList<AVLMapNode<K,V>>();
+		try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+			final Window window = new Window(channel);
+			window.require(8);
+			final int magic = window.buffer.getInt();
+			final int format = window.buffer.getInt();
+			if (magic != DUMP_MAGIC || format < 1 || format > DUMP_FORMAT) {
+				throw new IOException("Not a dump of a tree: " + path);
+			}
+			AVLMapNode<K,V> pred = root.parent;
+			K last = null;
+			long records = 0;
+			while (true) {
+				window.require(4);
+				final int keyLength = window.buffer.getInt();
+				if (keyLength < 0) break;
+				final K key = keyCodec.decode(window.slice(keyLength));
+				window.require(4);
+				final Object item = itemCodec.decode(window.slice(window.buffer.getInt()));
+				long expires = 0;
+				if (format > 1) {
+					window.require(8);
+					expires = window.buffer.getLong();
+				}
+				if (comparable(key).compareTo(records == 0? pred.key : last) <= 0) {
+					throw new IOException("The keys of the dump are not in ascending order: " + path);
+				}
+				last = key;
+				records++;
+				final long duration = expires - System.currentTimeMillis();
+				if (expires != 0 && duration <= 0) continue;
+				final long expiresAt = expires == 0? 0 : System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(duration);
+				final AVLMapNode<K,V> node = newNode(key, expiring(item, expiresAt), pred, null, null);
+				pred.succ = node;
+				nodes.add(node);
+				pred = node;
+			}
+			window.require(8);
+			if (window.buffer.getLong() != records) {
+				throw new IOException("The dump is truncated: " + path);
+			}
+			if (pred != root.parent && comparable(pred.key).compareTo(root.key) >= 0) {
+				throw new IOException("The keys of the dump are not in ascending order: " + path);
+			}
+			pred.succ = root;
+			root.pred = pred;
+		}
+		final AVLMapNode<K,V>[] array = nodes.toArray(new LogicalOrderingAVL.AVLMapNode[nodes.size()]);
+		publish(root, array);
+		return array.length;
+	}
+	
+	/**
+	 * Replaces the tree layout with a balanced one of augmented nodes, which
+	 * hold the same keys and items, when the tree begins to be augmented. 
+	 * The new nodes are published as by {@link #load}, so the snapshots that
+	 * are open keep reading the old ones. Keys that were removed lazily or 
+	 * that expired are not copied.
+	 */
+	@SuppressWarnings({"unchecked", "rawtypes"})
+	final private void augmentNodes() {
+		final AVLMapNode<K,V> oldRoot = this.root;
+		final RootNode root = (RootNode) newRoot(oldRoot.parent.key, oldRoot.key);
+		final List<AVLMapNode<K,V>> nodes = new ArrayList<AVLMapNode<K,V>>();
+		AVLMapNode<K,V> pred = root.parent;
+		for (AVLMapNode<K,V> node = oldRoot.parent.succ; node != oldRoot; node = node.succ) {
+			final Object item = node.item;
+			if (!isPresent(item) || node.isExpired()) continue;
+			final AVLMapNode<K,V> copy = new AugmentedNode(node.key, item, pred, null, null);
+			pred.succ = copy;
+			nodes.add(copy);
+			pred = copy;
+		}
+		pred.succ = root;
+		root.pred = pred;
+		publish(root, nodes.toArray(new LogicalOrderingAVL.AVLMapNode[nodes.size()]));
+	}
+	
+	/**
+	 * Builds the tree layout of the given root from the given nodes, which 
+	 * are linked in its ordering layout, and publishes it at once, as 
+	 * {@link #clear} publishes an empty one. If the writes are logged, the 
+	 * new contents are logged as well.
+	 * 
+	 * @param root The new root
+	 * @param array The sorted nodes
+	 */
+	final private void publish(final RootNode root, final AVLMapNode<K,V>[] array) {
+		root.leftHeight = build(array, 0, array.length - 1, root, true);
+		root.count.add(array.length);
+		for (AVLMapNode<K,V> node : array) {
+			final long expiresAt = expiresAt(node.item);
+			if (expiresAt != 0) {
+				addExpiration(root, node, expiresAt);
+			}
+		}
+		WriteAheadLog.Record record = null;
+		// the snapshots taken before the new contents are published keep 
+		// reading the old root, so they do not see them
+		synchronized (this) {
+			final WriteAheadLog<K,V> log = this.log;
+			if (log != null) {
+				record = log.append(WriteAheadLog.CLEAR, root, null, null, 0);
+				for (AVLMapNode<K,V> node : array) {
+					record = log.append(WriteAheadLog.PUT, root, node.key, unseal(node.item), expiresAt(node.item));
+				}
+			}
+			this.root = root;
+		}
+		if (record != null) {
+			record.await();
+		}
+		if (maximumSize != 0) {
+			evict(root);
+		}
+	}
+	
+	/**
+	 * Restores the contents of the tree from the given directory, and logs 
+	 * all the following writes to it. 
+	 * The contents are restored by loading the latest checkpoint (see 
+	 * {@link #checkpoint}), if there is one, and applying the write-ahead 
+	 * log segments that were written after it. A record that was partially
+	 * written by a crash is discarded. A new log segment is then begun.
+	 * Every write then waits, after releasing its locks, until its record is
+	 * forced to the disk; the records of concurrent writes are forced 
+	 * together.
+	 * Should be called before the tree is accessed by other threads.
+	 * 
+	 * @param directory The directory, which is created if it does not exist
+	 * @param keyCodec The keys' codec
+	 * @param itemCodec The items' codec
+	 * @throws IOException If reading the directory fails, or if it is corrupt
+	 * @throws IllegalStateException If the writes are already logged
+	 */
+	public synchronized void recover(final Path directory, final Codec<K> keyCodec, 
+			final Codec<V> itemCodec) throws IOException {
+		if (log != null) throw new IllegalStateException("The writes are already logged");
+		Files.createDirectories(directory);
+		final List<Long> checkpoints = WriteAheadLog.list(directory, WriteAheadLog.SNAPSHOT);
+		long first = 0;
+		if (checkpoints.isEmpty()) {
+			clear();
+		} else {
+			first = checkpoints.get(checkpoints.size() - 1);
+			load(WriteAheadLog.file(directory, WriteAheadLog.SNAPSHOT, first), keyCodec, itemCodec);
+		}
+		final WriteAheadLog.Replay<K,V> replay = new WriteAheadLog.Replay<K,V>() {
+			@Override
+			public void put(final K key, final V item, final long expires) {
+				if (expires == 0) {
+					LogicalOrderingAVL.this.put(key, item);
+					return;
+				}
+				final long duration = expires - System.currentTimeMillis();
+				if (duration > 0) {
+					LogicalOrderingAVL.this.put(key, item, duration, TimeUnit.MILLISECONDS);
+				} else {
+					LogicalOrderingAVL.this.remove(key);
+				}
+			}
+			
+			@Override
+			public void remove(final K key) {
+				LogicalOrderingAVL.this.remove(key);
+			}
+			
+			@Override
+			public void clear() {
+				LogicalOrderingAVL.this.clear();
+			}
+		};
+		final List<Long> segments = WriteAheadLog.list(directory, WriteAheadLog.SEGMENT);
+		long next = first;
+		for (int i = 0; i < segments.size(); i++) {
+			final long segment = segments.get(i);
+			if (segment < first) continue;
+			WriteAheadLog.replay(WriteAheadLog.file(directory, WriteAheadLog.SEGMENT, segment), 
+					i == segments.size() - 1, keyCodec, itemCodec, replay);
+			next = segment + 1;
+		}
+		log = new WriteAheadLog<K,V>(directory, next, root, keyCodec, itemCodec);
+		deleteBefore(directory, first);
+	}
+	
+	/**
+	 * Writes a checkpoint of the tree, after which the preceding write-ahead 
+	 * log segments are deleted.
+	 * A new log segment is begun, and a snapshot of the tree, which reflects 
+	 * all the writes of the preceding segments, is then dumped to a 
+	 * temporary file, which is forced to the disk and atomically renamed. 
+	 * The writes that are concurrent with the checkpoint may be reflected 
+	 * both by the checkpoint and by the new segment, and are applied again
+	 * when recovering, which yields the same contents.
+	 * 
+	 * @throws IOException If writing the checkpoint fails
+	 * @throws IllegalStateException If the writes are not logged
+	 */
+	public void checkpoint() throws IOException {
+		final WriteAheadLog<K,V> log = this.log;
+		if (log == null) throw new IllegalStateException("The writes are not logged");
+		synchronized (checkpointLock) {
+			final long segment = log.rotate();
+			final Path directory = log.directory();
+			final Path temporary = directory.resolve(WriteAheadLog.SNAPSHOT + "tmp");
+			try (FileChannel channel = FileChannel.open(temporary, StandardOpenOption.CREATE, 
+					StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+				dump(channel, log.keyCodec(), log.itemCodec());
+				channel.force(true);
+			}
+			Files.move(temporary, WriteAheadLog.file(directory, WriteAheadLog.SNAPSHOT, segment), 
+					StandardCopyOption.ATOMIC_MOVE);
+			WriteAheadLog.sync(directory);
+			deleteBefore(directory, segment);
+		}
+	}
+	
+	/**
+	 * Stops logging the writes, after the records of the preceding writes 
+	 * are forced to the disk. Should be called after the writes to the tree 
+	 * stop; a write that is concurrent with this call may fail with an 
+	 * {@link IllegalStateException}.
+	 */
+	public synchronized void closeLog() {
+		final WriteAheadLog<K,V> log = this.log;
+		if (log == null) return;
+		this.log = null;
+		log.close();
+	}
+	
+	/**
+	 * Deletes the checkpoints and the write-ahead log segments that precede
+	 * the given segment.
+	 * 
+	 * @param directory The directory
+	 * @param segment The segment
+	 * @throws IOException If deleting fails
+	 */
+	private static void deleteBefore(final Path directory, final long segment) throws IOException {
+		for (long checkpoint : WriteAheadLog.list(directory, WriteAheadLog.SNAPSHOT)) {
+			if (checkpoint < segment) {
+				Files.delete(WriteAheadLog.file(directory, WriteAheadLog.SNAPSHOT, checkpoint));
+			}
+		}
+		for (long older : WriteAheadLog.list(directory, WriteAheadLog.SEGMENT)) {
+			if (older < segment) {
+				Files.delete(WriteAheadLog.file(directory, WriteAheadLog.SEGMENT, older));
+			}
+		}
+	}
+	
+	/**
+	 * Links the given sorted nodes as a balanced sub-tree of the given parent.
+	 * 
+	 * @param nodes The nodes
+	 * @param from The index of the first node of the sub-tree
+	 * @param to The index of the last node of the sub-tree
+	 * @param parent The parent of the sub-tree
+	 * @param isLeft Is the sub-tree the left sub-tree of its parent?
+	 * @return The height of the sub-tree
+	 */
+	final private int build(final AVLMapNode<K,V>[] nodes, final int from, final int to, 
+			final AVLMapNode<K,V> parent, final boolean isLeft) {
+		if (from > to) return 0;
+		final int mid = (from + to) >>> 1;
+		final AVLMapNode<K,V> node = nodes[mid];
+		node.parent = parent;
+		if (isLeft) {
+			parent.left = node;
+		} else {
+			parent.right = node;
+		}
+		node.leftHeight = build(nodes, from, mid - 1, node, true);
+		node.rightHeight = build(nodes, mid + 1, to, node, false);
+		if (orderStatistics) ((AugmentedNode) node).size = to - from + 1;
+		final Aggregator<? super V, Object> aggregator = this.aggregator;
+		if (aggregator != null) ((AugmentedNode) node).aggregate = aggregate(aggregator, node);
+		return Math.max(node.leftHeight, node.rightHeight) + 1;
+	}
+	
+	/**
+	 * A window of a file that is mapped to memory, which is moved forward 
+	 * as the file is read.
+	 */
+	private static class Window {
+		
+		/** The file. */
+		private final FileChannel channel;
+		
+		/** The file's size. */
+		private final long size;
+		
+		/** The position in the file of the window's first byte. */
+		private long offset;
+		
+		/** The mapped window. */
+		private MappedByteBuffer buffer;
+		
+		/**
+		 * Constructor, map the first window of the given file.
+		 * 
+		 * @param channel The file
+		 * @throws IOException If mapping the file fails
+		 */
+		Window(final FileChannel channel) throws IOException {
+			this.channel = channel;
+			size = channel.size();
+			buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, Math.min(size, LOAD_WINDOW));
+		}
+		
+		/**
+		 * Ensures that the window holds at least the given number of bytes 
+		 * past its position, by mapping the next window of the file if needed.
+		 * 
+		 * @param length The number of bytes
+		 * @throws IOException If the file ends before, or if mapping fails
+		 */
+		void require(final int length) throws IOException {
+			if (length < 0) throw new IOException("Invalid record length");
+			if (buffer.remaining() >= length) return;
+			offset += buffer.position();
+			if (size - offset < length) throw new EOFException();
+			buffer = channel.map(FileChannel.MapMode.READ_ONLY, offset, 
+					Math.min(size - offset, Math.max(LOAD_WINDOW, length)));
+		}
+		
+		/**
+		 * Returns a view of the given number of bytes past the window's 
+		 * position, and advances the position past them.
+		 * 
+		 * @param length The number of bytes
+		 * @return The view
+		 * @throws IOException If the file ends before, or if mapping fails
+		 */
+		ByteBuffer slice(final int length) throws IOException {
+			require(length);
+			final ByteBuffer slice = buffer.slice();
+			slice.limit(length);
+			buffer.position(buffer.position() + length);
+			return slice;
+		}
+	}
+
+	/**
+	 * Returns the strategy by which failed attempts to lock or validate are 
+	 * retried, whose counters report the tree's retries.
+	 * 
+	 * @return The backoff strategy
+	 */
+	public Backoff backoff() {
+		return backoff;
+	}
+	
+	/**
+	 * Set the strategy by which failed attempts to lock or validate are 
+	 * retried. Operations in progress complete with the previous strategy.
+	 * 
+	 * @param backoff The backoff strategy
+	 */
+	public void setBackoff(final Backoff backoff) {
+		if (backoff == null) throw new NullPointerException();
+		this.backoff = backoff;
+	}
 
 	/**
-	 * Release all current treeLocks (of the given node and its parent), and 
-	 * re-acquire the treeLocks of node and its child.
+	 * Returns the recorder of the latencies of the tree's sampled lookups,
+	 * insertions and removals.
+	 * 
+	 * @return The recorder, or null if the latencies are not recorded
+	 */
+	public LatencyRecorder latencyRecorder() {
+		return latencies;
+	}
+
+	/**
+	 * Set the recorder of the latencies of the tree's sampled lookups, 
+	 * insertions and removals. A recorder may be shared by several trees.
+	 * 
+	 * @param latencies The recorder, or null to stop recording
+	 */
+	public void setLatencyRecorder(final LatencyRecorder latencies) {
+		this.latencies = latencies;
+	}
+
+	/**
+	 * Begin maintaining the size of every sub-tree of the tree layout, which
+	 * {@link #rank}, {@link #select} and {@link #count} use to run in time 
+	 * proportional to the tree's height. 
+	 * Every insertion and removal then updates the sizes of all the ancestors
+	 * of the node it links or unlinks, locking them one at a time, so updates
+	 * contend on the upper levels of the tree.
+	 * The sizes are held by augmented nodes, so the nodes of a tree that is 
+	 * not augmented yet are replaced, as by {@link #load}.
+	 * Should be called before the tree is accessed by other threads.
+	 */
+	public synchronized void enableOrderStatistics() {
+		// the sizes count the nodes, so the lazily removed ones are unlinked first
+		runMaintenance();
+		if (!hasAugmentedNodes()) {
+			orderStatistics = true;
+			augmentNodes();
+			return;
+		}
+		final AVLMapNode<K,V> root = this.root;
+		root.lockTreeLock();
+		try {
+			countSizes(root.left);
+			orderStatistics = true;
+		} finally {
+			root.unlockTreeLock();
+		}
+	}
+	
+	/**
+	 * Sets the sizes of the sub-trees rooted at the given node and at its 
+	 * descendants. The sub-tree is walked in post-order without recursion, 
+	 * as by {@link #height}, so a degenerate sub-tree does not overflow the
+	 * stack.
+	 * 
+	 * @param node The node, or null
+	 */
+	@SuppressWarnings({"unchecked", "rawtypes"})
+	final private void countSizes(AVLMapNode<K,V> node) {
+		if (node == null) return;
+		AVLMapNode<K,V>[] nodes = new AVLMapNode[16];
+		// has the sub-tree of the node on the stack been pushed?
+		boolean[] expanded = new boolean[16];
+		nodes[0] = node;
+		int top = 1;
+		while (top > 0) {
+			node = nodes[top - 1];
+			if (expanded[top - 1]) {
+				// the children's sizes are set
+				((AugmentedNode) node).size = 1 + sizeOf(node.left) + sizeOf(node.right);
+				top--;
+				continue;
+			}
+			expanded[top - 1] = true;
+			if (top + 2 > nodes.length) {
+				nodes = Arrays.copyOf(nodes, nodes.length * 2);
+				expanded = Arrays.copyOf(expanded, expanded.length * 2);
+			}
+			if (node.right != null) {
+				nodes[top] = node.right;
+				expanded[top++] = false;
+			}
+			if (node.left != null) {
+				nodes[top] = node.left;
+				expanded[top++] = false;
+			}
+		}
+	}
+	
+	/**
+	 * Returns the number of keys that are smaller than the given key.
+	 * The sizes of the sub-trees are read without locking, so under 
+	 * concurrent insertions and removals the result is approximate: it may 
+	 * count a node that is being removed, miss one that is being inserted, 
+	 * or be off by the nodes that are moved by a concurrent rotation. When 
+	 * there are no concurrent updates, it is exact. Keys that expired but 
+	 * were not removed yet are counted.
+	 * 
+	 * @param key The key
+	 * @return The number of smaller keys
+	 * @throws IllegalStateException If order statistics are not enabled
+	 * @see #enableOrderStatistics
+	 */
+	public int rank(final K key) {
+		if (!orderStatistics) throw new IllegalStateException("Order statistics are not enabled");
+		final Comparable<? super K> value = comparable(key);
+		int rank = 0;
+		AVLMapNode<K,V> node = root.left;
+		while (node != null) {
+			final AVLMapNode<K,V> left = node.left;
+			if (value.compareTo(node.key) <= 0) {
+				node = left;
+			} else {
+				rank += sizeOf(left) + 1;
+				node = node.right;
+			}
+		}
+		return rank;
+	}
+	
+	/**
+	 * Returns the entry of the key whose rank is the given index, that is, 
+	 * the {@code (index + 1)}-th smallest key. 
+	 * Has the same consistency as {@link #rank}.
+	 * 
+	 * @param index The index, starting from 0
+	 * @return The entry, or null if there are not more than {@code index} keys
+	 * @throws IllegalStateException If order statistics are not enabled
+	 * @throws IndexOutOfBoundsException If the index is negative
+	 * @see #enableOrderStatistics
+	 */
+	@SuppressWarnings("unchecked")
+	public Map.Entry<K,V> select(int index) {
+		if (!orderStatistics) throw new IllegalStateException("Order statistics are not enabled");
+		if (index < 0) throw new IndexOutOfBoundsException(Integer.toString(index));
+		AVLMapNode<K,V> node = root.left;
+		while (node != null) {
+			final AVLMapNode<K,V> left = node.left;
+			final int leftSize = sizeOf(left);
+			if (index < leftSize) {
+				node = left;
+			} else if (index == leftSize) {
+				return new AbstractMap.SimpleImmutableEntry<K,V>(node.key, (V) unseal(node.item));
+			} else {
+				index -= leftSize + 1;
+				node = node.right;
+			}
+		}
+		return null;
+	}
+	
+	/**
+	 * Returns the number of keys that are greater than or equal to 
+	 * {@code fromKey} and smaller than {@code toKey}.
+	 * Has the same consistency as {@link #rank}.
 	 * 
-	 * @param node The node
-	 * @param parent The node's parent
-	 *  
-	 * @return The node's (locked) child 
+	 * @param fromKey The lowest key to count
+	 * @param toKey The key to stop at (which is not counted)
+	 * @return The number of keys in the range
+	 * @throws IllegalStateException If order statistics are not enabled
+	 * @see #enableOrderStatistics
 	 */
-	final private AVLMapNode<K,V> restart(AVLMapNode<K,V> node, AVLMapNode<K,V> parent) {
-		if (parent != null) {
-			parent.unlockTreeLock();
+	public int count(final K fromKey, final K toKey) {
+		return Math.max(0, rank(toKey) - rank(fromKey));
+	}
+	
+	/**
+	 * Begin maintaining the aggregate of the items of every sub-tree of the 
+	 * tree layout, which {@link #aggregate} uses to aggregate a range of 
+	 * keys in time proportional to the tree's height.
+	 * Every insertion and removal then recomputes the aggregates of all the 
+	 * ancestors of the node it links or unlinks, and so does every 
+	 * replacement of an item, locking them one at a time, so updates contend
+	 * on the upper levels of the tree.
+	 * The nodes of a tree that is not augmented yet are replaced, as by 
+	 * {@link #enableOrderStatistics}.
+	 * Should be called before the tree is accessed by other threads.
+	 * 
+	 * @param aggregator The aggregator
+	 */
+	@SuppressWarnings("unchecked")
+	public synchronized void enableAggregation(final Aggregator<? super V, ?> aggregator) {
+		if (aggregator == null) throw new NullPointerException();
+		if (!hasAugmentedNodes()) {
+			this.aggregator = (Aggregator<? super V, Object>) aggregator;
+			augmentNodes();
+			return;
 		}
-		node.unlockTreeLock();
-		Thread.yield();
-		while (true) { 
-			node.lockTreeLock();
-			if (!node.valid) {
-				node.unlockTreeLock();
-				return null;
-			}
-			AVLMapNode<K, V> child = node.getBalanceFactor() >= 2? node.left : node.right;
-			if (child == null) return null;
-			if (child.tryLockTreeLock()) return child;
-			node.unlockTreeLock();
-			Thread.yield();
+		final AVLMapNode<K,V> root = this.root;
+		root.lockTreeLock();
+		try {
+			aggregateAll((Aggregator<? super V, Object>) aggregator, root.left);
+			this.aggregator = (Aggregator<? super V, Object>) aggregator;
+		} finally {
+			root.unlockTreeLock();
 		}
 	}
-
+	
 	/**
-	 * Update the height of the given node, based on the given child.
-	 * 
-	 * @param child The node's child
-	 * @param node The node
-	 * @param isLeft Is the child a left child?
+	 * Sets the aggregates of the sub-trees rooted at the given node and at 
+	 * its descendants. The sub-tree is walked in post-order without 
+	 * recursion, as by {@link #countSizes}.
 	 * 
-	 * @return true if the height was updated, and false otherwise
+	 * @param aggregator The aggregator
+	 * @param node The node, or null
 	 */
-	final private boolean updateHeight(AVLMapNode<K,V> child, AVLMapNode<K,V> node, boolean isLeft) {
-		int newHeight = child == null? 0: Math.max(child.leftHeight, child.rightHeight) + 1;
-		int oldHeight = isLeft? node.leftHeight : node.rightHeight;
-		if (newHeight == oldHeight) return false;
-		if (isLeft) {
-			node.leftHeight = newHeight;
-		} else {
-			node.rightHeight = newHeight;
+	@SuppressWarnings({"unchecked", "rawtypes"})
+	final private void aggregateAll(final Aggregator<? super V, Object> aggregator, AVLMapNode<K,V> node) {
+		if (node == null) return;
+		AVLMapNode<K,V>[] nodes = new AVLMapNode[16];
+		// has the sub-tree of the node on the stack been pushed?
+		boolean[] expanded = new boolean[16];
+		nodes[0] = node;
+		int top = 1;
+		while (top > 0) {
+			node = nodes[top - 1];
+			if (expanded[top - 1]) {
+				// the children's aggregates are set
+				((AugmentedNode) node).aggregate = aggregate(aggregator, node);
+				top--;
+				continue;
+			}
+			expanded[top - 1] = true;
+			if (top + 2 > nodes.length) {
+				nodes = Arrays.copyOf(nodes, nodes.length * 2);
+				expanded = Arrays.copyOf(expanded, expanded.length * 2);
+			}
+			if (node.right != null) {
+				nodes[top] = node.right;
+				expanded[top++] = false;
+			}
+			if (node.left != null) {
+				nodes[top] = node.left;
+				expanded[top++] = false;
+			}
 		}
-		return true;
 	}
-
+	
 	/**
-	 * Apply a single rotation to the given node.
+	 * Returns the aggregate of the items of the keys that are greater than 
+	 * or equal to {@code fromKey} and smaller than {@code toKey}, in the 
+	 * order of the keys.
+	 * The aggregates of the sub-trees are read without locking, so under 
+	 * concurrent updates the result is approximate, as that of {@link #rank};
+	 * when there are no concurrent updates, it is exact. Items whose keys 
+	 * expired but were not removed yet are aggregated.
 	 * 
-	 * @param child The node's child
-	 * @param node The node to rotate
-	 * @param parent The node's parent
-	 * @param left Is this a left rotation?
+	 * @param aggregator The tree's aggregator, which types the result
+	 * @param fromKey The lowest key to aggregate
+	 * @param toKey The key to stop at (which is not aggregated)
+	 * @return The aggregate of the range, or the aggregator's identity if it is empty
+	 * @throws IllegalStateException If aggregation is not enabled
+	 * @throws IllegalArgumentException If the aggregator is not the tree's one
+	 * @see #enableAggregation
 	 */
-	final private void rotate(final AVLMapNode<K,V> child, final AVLMapNode<K,V> node, final AVLMapNode<K,V> parent, boolean left) {
-		if (parent.left == node) {
-			parent.left = child;
-		} else {
-			parent.right = child;
+	@SuppressWarnings("unchecked")
+	public <A> A aggregate(final Aggregator<? super V, A> aggregator, final K fromKey, final K toKey) {
+		final Aggregator<? super V, Object> current = this.aggregator;
+		if (current == null) throw new IllegalStateException("Aggregation is not enabled");
+		if (aggregator != current) throw new IllegalArgumentException("Not the tree's aggregator");
+		final Comparable<? super K> from = comparable(fromKey), to = comparable(toKey);
+		// the highest node whose key is in the range splits it
+		AVLMapNode<K,V> split = root.left;
+		while (split != null) {
+			if (from.compareTo(split.key) > 0) {
+				split = split.right;
+			} else if (to.compareTo(split.key) <= 0) {
+				split = split.left;
+			} else {
+				break;
+			}
 		}
-		child.parent = parent;
-		node.parent = child;
-		AVLMapNode<K, V> grandChild = left? child.left : child.right;
-		if (left) {
-			node.right = grandChild;
-			if (grandChild != null) {
-				grandChild.parent = node; 
+		if (split == null) return aggregator.identity();
+		// the keys of the split node's left sub-tree that are in the range, from the highest
+		A lower = lift(aggregator, split.item);
+		for (AVLMapNode<K,V> node = split.left; node != null; ) {
+			if (from.compareTo(node.key) > 0) {
+				node = node.right;
+			} else {
+				final AVLMapNode<K,V> right = node.right;
+				if (right != null) lower = aggregator.combine((A) ((AugmentedNode) right).aggregate, lower);
+				lower = aggregator.combine(lift(aggregator, node.item), lower);
+				node = node.left;
 			}
-			child.left = node;
-			node.rightHeight = child.leftHeight;
-			child.leftHeight = Math.max(node.leftHeight, node.rightHeight) + 1;
-		} else {
-			node.left = grandChild;
-			if (grandChild != null) {
-				grandChild.parent = node; 
+		}
+		// the keys of the split node's right sub-tree that are in the range, from the lowest
+		A upper = aggregator.identity();
+		for (AVLMapNode<K,V> node = split.right; node != null; ) {
+			if (to.compareTo(node.key) <= 0) {
+				node = node.left;
+			} else {
+				final AVLMapNode<K,V> left = node.left;
+				if (left != null) upper = aggregator.combine(upper, (A) ((AugmentedNode) left).aggregate);
+				upper = aggregator.combine(upper, lift(aggregator, node.item));
+				node = node.right;
 			}
-			child.right = node;
-			node.leftHeight = child.rightHeight;
-			child.rightHeight = Math.max(node.leftHeight, node.rightHeight) + 1;
 		}
+		return aggregator.combine(lower, upper);
 	}
 	
 	/**
-	 * @see java.util.AbstractMap#clear()
+	 * Returns the number of failed updates that were retried from a node 
+	 * near the point of failure, instead of from the root.
+	 * 
+	 * @return The number of local restarts
 	 */
-	@Override
-	public void clear() {
-		root.parent.lockSuccLock();
-		root.lockTreeLock();
-		root.parent.succ = root;
-		root.pred = root.parent;
-		root.left = null;
-		root.leftHeight = 1;
-		root.parent.unlockSuccLock();
-		root.unlockTreeLock();
+	public long localRestarts() {
+		return localRestarts.sum();
+	}
+	
+	/**
+	 * Returns the number of failed updates that were retried from the root.
+	 * 
+	 * @return The number of restarts from the root
+	 */
+	public long rootRestarts() {
+		return rootRestarts.sum();
 	}
 
 	/**
@@ -798,36 +3252,218 @@ public class LogicalOrderingAVL<K, V> extends AbstractMap<K,V> implements Concur
 
 	/**
 	 * Returns the height of the sub-tree rooted at the given node.
+	 * The sub-tree is traversed without recursion, so a degenerate sub-tree
+	 * does not overflow the stack.
 	 * 
 	 * @param node The given node
 	 * @return The height of the sub-tree rooted by node
 	 */
+	@SuppressWarnings({"unchecked", "rawtypes"})
 	final public int height(AVLMapNode<K,V> node) {
 		if (node == null) return 0;
-		int rMax = height(node.right);
-		int lMax = height(node.left);
-		return Math.max(rMax, lMax) + 1;
+		AVLMapNode<K,V>[] nodes = new AVLMapNode[16];
+		int[] depths = new int[16];
+		nodes[0] = node;
+		depths[0] = 1;
+		int top = 1, height = 0;
+		while (top > 0) {
+			top--;
+			node = nodes[top];
+			final int depth = depths[top];
+			height = Math.max(height, depth);
+			if (top + 2 > nodes.length) {
+				nodes = Arrays.copyOf(nodes, nodes.length * 2);
+				depths = Arrays.copyOf(depths, depths.length * 2);
+			}
+			if (node.right != null) {
+				nodes[top] = node.right;
+				depths[top++] = depth + 1;
+			}
+			if (node.left != null) {
+				nodes[top] = node.left;
+				depths[top++] = depth + 1;
+			}
+		}
+		return height;
 	}
 
 	/**
+	 * Returns the number of keys, which is counted by the insertions and the
+	 * removals, and may therefore be momentarily off during concurrent updates.
+	 * 
 	 * @see java.util.AbstractMap#size()
 	 */
 	@Override
 	final public int size() {
-		return size(root.left);
+		final long count = ((RootNode) root).count.sum();
+		return (int) Math.max(0, Math.min(count, Integer.MAX_VALUE));
 	}
 
 	/**
 	 * Returns the number of nodes in the sub-tree rooted at the given node.
+	 * The sub-tree is traversed without recursion, as by {@link #height}.
 	 * 
 	 * @param node The given node
 	 * @return The number of nodes in the sub-tree rooted at node
 	 */
+	@SuppressWarnings({"unchecked", "rawtypes"})
 	final public int size(AVLMapNode<K,V> node) {
 		if (node == null) return 0;
-		int rMax = size(node.right);
-		int lMax = size(node.left);
-		return rMax+lMax + 1;
+		AVLMapNode<K,V>[] nodes = new AVLMapNode[16];
+		nodes[0] = node;
+		int top = 1, size = 0;
+		while (top > 0) {
+			node = nodes[--top];
+			size++;
+			if (top + 2 > nodes.length) {
+				nodes = Arrays.copyOf(nodes, nodes.length * 2);
+			}
+			if (node.right != null) nodes[top++] = node.right;
+			if (node.left != null) nodes[top++] = node.left;
+		}
+		return size;
+	}
+	
+	/**
+	 * Returns the statistics of the tree's shape, gathered by a full walk of
+	 * the tree, and of its ordering layout. The tree is walked without
+	 * recursion or locking, in time proportional to its size.
+	 * 
+	 * @return The statistics
+	 * @see #stats(int)
+	 */
+	@SuppressWarnings({"unchecked", "rawtypes"})
+	public TreeStats stats() {
+		final AVLMapNode<K,V> root = this.root;
+		final long[] balanceFactors = new long[2 * TreeStats.MAX_BALANCE_FACTOR + 1];
+		final long now = System.nanoTime();
+		final long[] states = new long[4];
+		long searches = 0, totalDepth = 0, treeNodes = 0;
+		int maxDepth = 0;
+		AVLMapNode<K,V>[] nodes = new AVLMapNode[16];
+		int[] depths = new int[16];
+		int top = 0;
+		if (root.left == null) {
+			searches++;
+		} else {
+			nodes[top] = root.left;
+			depths[top++] = 1;
+		}
+		while (top > 0) {
+			top--;
+			final AVLMapNode<K,V> node = nodes[top];
+			final int depth = depths[top];
+			treeNodes++;
+			states[state(node, now)]++;
+			balanceFactors[TreeStats.balanceFactorIndex(node.getBalanceFactor())]++;
+			if (top + 2 > nodes.length) {
+				nodes = Arrays.copyOf(nodes, nodes.length * 2);
+				depths = Arrays.copyOf(depths, depths.length * 2);
+			}
+			final AVLMapNode<K,V> left = node.left, right = node.right;
+			if (left == null || right == null) {
+				// a search for a key of a missing child's range ends here
+				final int missing = left == null && right == null? 2 : 1;
+				searches += missing;
+				totalDepth += missing * depth;
+				maxDepth = Math.max(maxDepth, depth);
+			}
+			if (right != null) {
+				nodes[top] = right;
+				depths[top++] = depth + 1;
+			}
+			if (left != null) {
+				nodes[top] = left;
+				depths[top++] = depth + 1;
+			}
+		}
+		long listedNodes = 0;
+		for (AVLMapNode<K,V> node = root.parent.succ; node != root; node = node.succ) {
+			listedNodes++;
+		}
+		return new TreeStats(searches, totalDepth, maxDepth, balanceFactors, states[VALID_NODE], states[INVALID_NODE], 
+				states[DELETED_NODE], states[EXPIRED_NODE], treeNodes, listedNodes);
+	}
+
+	/**
+	 * Returns the statistics of the tree's shape, gathered by the given 
+	 * number of random descents from the root, each of which costs time 
+	 * proportional to the tree's height, so it may be called periodically 
+	 * on a large tree. The nodes are not counted.
+	 * 
+	 * @param samples The number of descents
+	 * @return The statistics
+	 * @see #stats()
+	 */
+	public TreeStats stats(final int samples) {
+		if (samples < 0) throw new IllegalArgumentException();
+		final AVLMapNode<K,V> root = this.root;
+		final ThreadLocalRandom random = ThreadLocalRandom.current();
+		final long[] balanceFactors = new long[2 * TreeStats.MAX_BALANCE_FACTOR + 1];
+		final long now = System.nanoTime();
+		final long[] states = new long[4];
+		long totalDepth = 0;
+		int maxDepth = 0;
+		for (int i = 0; i < samples; i++) {
+			int depth = 0;
+			for (AVLMapNode<K,V> node = root.left; node != null; node = random.nextBoolean()? node.left : node.right) {
+				depth++;
+				states[state(node, now)]++;
+				balanceFactors[TreeStats.balanceFactorIndex(node.getBalanceFactor())]++;
+			}
+			totalDepth += depth;
+			maxDepth = Math.max(maxDepth, depth);
+		}
+		return new TreeStats(samples, totalDepth, maxDepth, balanceFactors, states[VALID_NODE], states[INVALID_NODE], 
+				states[DELETED_NODE], states[EXPIRED_NODE], -1, -1);
+	}
+	
+	/**
+	 * Returns the state of the given node, as counted by the statistics.
+	 * 
+	 * @param node The node
+	 * @param now The current time, with respect to {@link System#nanoTime}
+	 * @return {@link #INVALID_NODE} if the node is marked, {@link #DELETED_NODE}
+	 * if its key was removed lazily, {@link #EXPIRED_NODE} if its expiration 
+	 * time passed, and {@link #VALID_NODE} otherwise
+	 */
+	final private int state(final AVLMapNode<K,V> node, final long now) {
+		if (!node.valid) return INVALID_NODE;
+		final Object item = node.item;
+		if (item == DELETED) return DELETED_NODE;
+		if (!isPresent(item)) return INVALID_NODE;
+		final long expiresAt = expiresAt(item);
+		return expiresAt != 0 && expiresAt - now <= 0? EXPIRED_NODE : VALID_NODE;
+	}
+
+	/**
+	 * Validates the structure of the tree: the order of the keys, the parent
+	 * pointers, the heights and the balance of the tree layout, the symmetry
+	 * of the {@code pred} and {@code succ} pointers, and whether the tree 
+	 * layout and the ordering layout hold the same nodes. Both layouts are 
+	 * walked once, in order, without recursion or locking, so the tree may be
+	 * arbitrarily large, but a validation that is concurrent with updates 
+	 * may report their intermediate states.
+	 * 
+	 * @return The report of the validation
+	 */
+	public ValidationReport validate() {
+		final AVLMapNode<K,V> root = this.root;
+		return new Validation(root.left, root, root.parent, root, 0).compute().report(root.parent);
+	}
+	
+	/**
+	 * Validates the structure of the tree as {@link #validate()}, on the 
+	 * given pool. The upper levels of the tree layout are split, and the 
+	 * sub-trees below them are validated in parallel, each against the 
+	 * segment of the ordering layout between its bounds.
+	 * 
+	 * @param pool The pool
+	 * @return The report of the validation
+	 */
+	public ValidationReport validate(final ForkJoinPool pool) {
+		final AVLMapNode<K,V> root = this.root;
+		return pool.invoke(new Validation(root.left, root, root.parent, root, VALIDATION_SPLITS)).report(root.parent);
 	}
 	
 	/**
@@ -861,75 +3497,561 @@ public class LogicalOrderingAVL<K, V> extends AbstractMap<K,V> implements Concur
 			public boolean isEmpty() {
 				return LogicalOrderingAVL.this.isEmpty();
 			}
-
-			/**
-			 * @see java.util.AbstractCollection#contains(java.lang.Object)
-			 */
-			@Override
-			public boolean contains(Object o) {
-				K key = (K) ((Entry) o).getKey();
-				if (((Entry) o).getValue() == null) return false;
-				V v = get(key);
-				if (v == null) return false;
-				return v.equals(((Entry) o).getValue());
+
+			/**
+			 * @see java.util.AbstractCollection#contains(java.lang.Object)
+			 */
+			@Override
+			public boolean contains(Object o) {
+				K key = (K) ((Entry) o).getKey();
+				if (((Entry) o).getValue() == null) return false;
+				V v = get(key);
+				if (v == null) return false;
+				return v.equals(((Entry) o).getValue());
+			}
+			
+			/**
+			 * @see java.util.AbstractCollection#add(java.lang.Object)
+			 */
+			@Override
+			public boolean add(java.util.Map.Entry<K, V> e) {
+				return put(e.getKey(), e.getValue()) != e.getValue();
+			}
+			
+			/**
+			 * @see java.util.AbstractCollection#remove(java.lang.Object)
+			 */
+			@Override
+			public boolean remove(Object o) {
+				return LogicalOrderingAVL.this.remove(((Entry) o).getKey(), ((Entry) o).getValue());
+			}
+			
+			/**
+			 * @see java.util.AbstractCollection#iterator()
+			 */
+			@Override
+			public Iterator<java.util.Map.Entry<K, V>> iterator() {
+				return new Iterator<Map.Entry<K,V>>() {
+					
+					private final AVLMapNode<K, V> last = root;
+					private AVLMapNode<K, V> curr = last.parent;
+					private AVLMapNode<K, V> currNext = curr;
+					
+					@Override
+					public boolean hasNext() {
+						getNext();
+						return currNext != last;
+					}
+
+					@Override
+					public java.util.Map.Entry<K, V> next() {
+						getNext();
+						curr = currNext;
+						return curr == last? null : new SimpleImmutableEntry<K, V>(curr.key, (V) unseal(curr.item));
+					}
+
+					private void getNext() {
+						if (currNext == curr) {
+							currNext = curr.succ;
+							while (!currNext.valid) currNext = curr.succ;
+							// skip the lazily removed nodes
+							while (currNext != last && (!currNext.valid || currNext.item == DELETED)) currNext = currNext.succ;
+						}
+					}
+
+					@Override
+					public void remove() {
+						if (curr != last && curr != last.parent)
+						LogicalOrderingAVL.this.remove(curr.key, unseal(curr.item));
+					}
+					
+				};
+			}
+			
+		};
+	}
+	
+	/**
+	 * A point-in-time view of the tree, returned by {@link LogicalOrderingAVL#snapshot}.
+	 * The view is immutable, and reflects all the writes that were linearized
+	 * before it was taken and none of the later ones. 
+	 * The view is read by traversing the ordering layout of the tree, while 
+	 * holding the {@code succLock} of one node at a time, and reading each 
+	 * node's item as of the snapshot's version. Nodes removed after the 
+	 * snapshot was taken are kept aside by the removing threads, and merged 
+	 * into the traversal by key.
+	 * Expiration times are not considered by the view.
+	 * 
+	 * @see LogicalOrderingAVL#snapshot()
+	 */
+	public class Snapshot extends AbstractMap<K,V> implements AutoCloseable {
+		
+		/** The root of the tree layout when the snapshot was taken. */
+		private final AVLMapNode<K,V> root;
+		
+		/** The snapshot's version. */
+		private final long version;
+		
+		/** 
+		 * The nodes of the keys removed after the snapshot was taken, which 
+		 * keep their items as of the snapshot. 
+		 */
+		private final ConcurrentSkipListMap<K,AVLMapNode<K,V>> removed;
+		
+		/** 
+		 * The items as of the snapshot of the nodes written after it was 
+		 * taken, or {@link #ABSENT} for the nodes inserted after it. 
+		 */
+		private final ConcurrentHashMap<AVLMapNode<K,V>,Object> items;
+		
+		/**
+		 * Constructor, create a new snapshot.
+		 * 
+		 * @param root The root of the tree layout
+		 * @param version The snapshot's version
+		 */
+		private Snapshot(final AVLMapNode<K,V> root, final long version) {
+			this.root = root;
+			this.version = version;
+			removed = new ConcurrentSkipListMap<K,AVLMapNode<K,V>>(comparator);
+			items = new ConcurrentHashMap<AVLMapNode<K,V>,Object>();
+		}
+		
+		/**
+		 * @see java.util.AbstractMap#get(java.lang.Object)
+		 */
+		@Override
+		public V get(final Object key) {
+			final Comparable<? super K> value = comparable(key);
+			final SnapshotIterator iterator = new SnapshotIterator(value, null);
+			if (!iterator.hasNext()) return null;
+			final Map.Entry<K,V> entry = iterator.next();
+			return value.compareTo(entry.getKey()) == 0 ? entry.getValue() : null;
+		}
+		
+		/**
+		 * @see java.util.AbstractMap#containsKey(java.lang.Object)
+		 */
+		@Override
+		public boolean containsKey(final Object key) {
+			return get(key) != null;
+		}
+		
+		/**
+		 * Returns an iterator over the entries whose keys are greater than or 
+		 * equal to {@code fromKey} and smaller than {@code toKey}, in 
+		 * ascending order.
+		 * 
+		 * @param fromKey The lowest key, or null to begin from the first key
+		 * @param toKey The key to stop at, or null to continue to the last key
+		 * @return The iterator
+		 */
+		public Iterator<Map.Entry<K,V>> iterator(final K fromKey, final K toKey) {
+			return new SnapshotIterator(fromKey == null ? null : comparable(fromKey), 
+					toKey == null ? null : comparable(toKey));
+		}
+		
+		/**
+		 * @see java.util.AbstractMap#entrySet()
+		 */
+		@Override
+		public Set<Map.Entry<K,V>> entrySet() {
+			return new AbstractSet<Map.Entry<K,V>>() {
+				
+				@Override
+				public Iterator<Map.Entry<K,V>> iterator() {
+					return new SnapshotIterator(null, null);
+				}
+				
+				@Override
+				public int size() {
+					int size = 0;
+					for (Iterator<Map.Entry<K,V>> i = iterator(); i.hasNext(); i.next()) {
+						size++;
+					}
+					return size;
+				}
+			};
+		}
+		
+		/**
+		 * Releases the snapshot. The snapshot should not be read afterwards.
+		 */
+		@Override
+		public void close() {
+			release(this);
+			removed.clear();
+			items.clear();
+		}
+		
+		/**
+		 * Returns the given node's item as of the snapshot. 
+		 * Should be called while holding the {@code succLock} of the node's 
+		 * predecessor.
+		 * 
+		 * @param node The node
+		 * @return The item, which may carry its expiration time, or null if 
+		 * the key is not present in the snapshot
+		 */
+		private Object itemAt(final AVLMapNode<K,V> node) {
+			// the current item is read first, see keep
+			Object item = node.item;
+			final Object kept = items.get(node);
+			if (kept != null) {
+				item = kept;
+			}
+			if (item instanceof Removed) {
+				item = ((Removed) item).item;
 			}
+			return item == DELETED || item == ABSENT? null : item;
+		}
+		
+		/**
+		 * Returns the node with the given key, or the node that precedes the 
+		 * key, in the tree layout of the snapshot.
+		 * 
+		 * @param value The key, as returned by {@link #comparable}
+		 * @return The node with the given key or its predecessor
+		 */
+		private AVLMapNode<K,V> floor(final Comparable<? super K> value) {
+			final Cursor cursor = new Cursor();
+			cursor.root = root;
+			return walk(value, traverse(value, cursor), Integer.MAX_VALUE);
+		}
+		
+		/**
+		 * An iterator over a range of the snapshot. 
+		 * It remembers the last node it passed in the ordering layout, and 
+		 * if that node is removed, finds its place again by its key.
+		 */
+		private class SnapshotIterator implements Iterator<Map.Entry<K,V>> {
+			
+			/** The lowest key, or null. */
+			private final Comparable<? super K> from;
+			
+			/** The key to stop at, or null. */
+			private final Comparable<? super K> to;
+			
+			/** The last node passed. */
+			private AVLMapNode<K,V> node;
+			
+			/** The key of the last node passed. */
+			private K position;
+			
+			/** The entries read but not yet returned. */
+			private final ArrayDeque<SnapshotEntry<K,V>> pending = new ArrayDeque<SnapshotEntry<K,V>>();
+			
+			/** Has the traversal reached the end of the range? */
+			private boolean done;
 			
 			/**
-			 * @see java.util.AbstractCollection#add(java.lang.Object)
+			 * Constructor, create an iterator over the given range.
+			 * 
+			 * @param from The lowest key, or null
+			 * @param to The key to stop at, or null
 			 */
+			SnapshotIterator(final Comparable<? super K> from, final Comparable<? super K> to) {
+				this.from = from;
+				this.to = to;
+				AVLMapNode<K,V> node = root.parent;
+				if (from != null) {
+					node = floor(from);
+					if (node != root.parent && from.compareTo(node.key) == 0) {
+						node = node.pred;
+					}
+				}
+				this.node = node;
+				position = node.key;
+			}
+			
 			@Override
-			public boolean add(java.util.Map.Entry<K, V> e) {
-				return put(e.getKey(), e.getValue()) != e.getValue();
+			public boolean hasNext() {
+				while (pending.isEmpty() && !done) {
+					advance();
+				}
+				return !pending.isEmpty();
 			}
 			
-			/**
-			 * @see java.util.AbstractCollection#remove(java.lang.Object)
-			 */
 			@Override
-			public boolean remove(Object o) {
-				return LogicalOrderingAVL.this.remove(((Entry) o).getKey(), ((Entry) o).getValue());
+			public SnapshotEntry<K,V> next() {
+				if (!hasNext()) throw new NoSuchElementException();
+				return pending.poll();
 			}
 			
 			/**
-			 * @see java.util.AbstractCollection#iterator()
+			 * Take one step along the ordering layout: read the successor of 
+			 * the last node passed, and the removed keys that precede it.
 			 */
-			@Override
-			public Iterator<java.util.Map.Entry<K, V>> iterator() {
-				return new Iterator<Map.Entry<K,V>>() {
-					
-					private AVLMapNode<K, V> curr = root.parent;
-					private AVLMapNode<K, V> currNext = curr;
-					
-					@Override
-					public boolean hasNext() {
-						getNext();
-						return currNext != root;
-					}
-
-					@Override
-					public java.util.Map.Entry<K, V> next() {
-						getNext();
-						curr = currNext;
-						return curr == root? null : new SimpleImmutableEntry<K, V>(curr.key, (V) curr.item);
+			private void advance() {
+				AVLMapNode<K,V> node = this.node;
+				while (true) {
+					node.lockSuccLock();
+					if (node.valid) break;
+					node.unlockSuccLock();
+					node = floor(comparable(position));
+				}
+				final AVLMapNode<K,V> succ = node.succ;
+				try {
+					if (succ != root && comparable(succ.key).compareTo(position) <= 0) {
+						// a node that was inserted after the position was passed
+						this.node = succ;
+						return;
 					}
-
-					private void getNext() {
-						if (currNext == curr) {
-							currNext = curr.succ;
-							while (!currNext.valid) currNext = curr.succ;
-						}
+					final Map<K,AVLMapNode<K,V>> removedKeys = succ == root ? 
+							removed.tailMap(position, false) :
+							removed.subMap(position, false, succ.key, true);
+					for (AVLMapNode<K,V> removedNode : removedKeys.values()) {
+						add(removedNode);
 					}
-
-					@Override
-					public void remove() {
-						if (curr != root && curr != root.parent)
-						LogicalOrderingAVL.this.remove(curr.key, curr.item);
+					if (succ == root || (to != null && to.compareTo(succ.key) <= 0)) {
+						done = true;
+						return;
 					}
-					
-				};
+					add(succ);
+					this.node = succ;
+					position = succ.key;
+				} finally {
+					node.unlockSuccLock();
+				}
 			}
 			
-		};
+			/**
+			 * Add the entry of the given node to the pending entries, if the 
+			 * node's key is present in the snapshot and in the range.
+			 * 
+			 * @param node The node
+			 */
+			@SuppressWarnings("unchecked")
+			private void add(final AVLMapNode<K,V> node) {
+				final Object item = itemAt(node);
+				if (item == null) return;
+				if (from != null && from.compareTo(node.key) > 0) return;
+				if (to != null && to.compareTo(node.key) <= 0) return;
+				pending.add(new SnapshotEntry<K,V>(node.key, (V) unseal(item), expiresAt(item)));
+			}
+		}
+	}
+	
+	/**
+	 * An entry read from a {@link Snapshot}, with the expiration time of its
+	 * key as of the snapshot.
+	 */
+	private static final class SnapshotEntry<K,V> extends AbstractMap.SimpleImmutableEntry<K,V> {
+		
+		private static final long serialVersionUID = 1L;
+		
+		/** The expiration time of the key, or 0 if it does not expire. */
+		final long expiresAt;
+		
+		/**
+		 * Constructor, create an entry.
+		 * 
+		 * @param key The key
+		 * @param item The item
+		 * @param expiresAt The expiration time of the key, or 0 if it does not expire
+		 */
+		SnapshotEntry(final K key, final V item, final long expiresAt) {
+			super(key, item);
+			this.expiresAt = expiresAt;
+		}
+	}
+	
+	/**
+	 * An update of an existing key, handed by a thread that found the 
+	 * {@code succLock} of the key's predecessor busy to the thread that holds
+	 * it (flat combining).
+	 */
+	private static final class Combining {
+		
+		/** The state of an update that was not claimed yet. */
+		static final int PENDING = 0;
+		
+		/** The state of an update that is being applied by the lock's holder. */
+		static final int CLAIMED = 1;
+		
+		/** The state of an update that was applied. */
+		static final int APPLIED = 2;
+		
+		/** The state of an update that the lock's holder cannot apply. */
+		static final int REJECTED = 3;
+		
+		/** The state of an update that was withdrawn by its thread. */
+		static final int CANCELLED = 4;
+		
+		/** Updates the {@code state} field. */
+		private static final AtomicIntegerFieldUpdater<Combining> STATE = 
+				AtomicIntegerFieldUpdater.newUpdater(Combining.class, "state");
+		
+		/** The key. */
+		final Object key;
+		
+		/** The new item. */
+		final Object item;
+		
+		/** The flag that indicates whether to insert only if the key is absent. */
+		final boolean putIfAbsent;
+		
+		/** The flag that indicates whether to replace only if the key is present. */
+		final boolean isReplace;
+		
+		/** The item to consider upon replacement. */
+		final Object replaceItem;
+		
+		/** The new expiration time. */
+		final long expiresAt;
+		
+		/** The next update handed to the same lock. */
+		Combining next;
+		
+		/** The update's state. */
+		volatile int state;
+		
+		/** The item that was associated with the key, set before the update is applied. */
+		Object result;
+		
+		/** The updated node, set before the update is applied. */
+		Object node;
+		
+		/** Was the item replaced? Set before the update is applied. */
+		boolean updated;
+		
+		/** The record of the write-ahead log, or null. Set before the update is applied. */
+		WriteAheadLog.Record record;
+		
+		/**
+		 * Constructor, create a new update.
+		 * 
+		 * @param key The key
+		 * @param item The new item
+		 * @param putIfAbsent The flag that indicates whether to insert only if the key is absent
+		 * @param isReplace The flag that indicates whether to replace only if the key is present
+		 * @param replaceItem The item to consider upon replacement
+		 * @param expiresAt The new expiration time
+		 */
+		Combining(final Object key, final Object item, final boolean putIfAbsent, 
+				final boolean isReplace, final Object replaceItem, final long expiresAt) {
+			this.key = key;
+			this.item = item;
+			this.putIfAbsent = putIfAbsent;
+			this.isReplace = isReplace;
+			this.replaceItem = replaceItem;
+			this.expiresAt = expiresAt;
+		}
+		
+		/**
+		 * Claim the update for the lock's holder.
+		 * 
+		 * @return true if the update was claimed, and false if it was withdrawn
+		 */
+		boolean claim() {
+			return STATE.compareAndSet(this, PENDING, CLAIMED);
+		}
+		
+		/**
+		 * Withdraw the update.
+		 * 
+		 * @return true if the update was withdrawn, and false if it was claimed
+		 */
+		boolean cancel() {
+			return STATE.compareAndSet(this, PENDING, CANCELLED);
+		}
+	}
+	
+	/**
+	 * The sealed item of a removed node (see {@link LogicalOrderingAVL#seal}),
+	 * which keeps the last item for the traversals that reached the node 
+	 * before it was removed.
+	 */
+	private static final class Removed {
+		
+		/** The node's last item. */
+		final Object item;
+		
+		/**
+		 * Constructor, seal the given item.
+		 * 
+		 * @param item The node's last item
+		 */
+		Removed(final Object item) {
+			this.item = item;
+		}
+	}
+	
+	/**
+	 * The item of a key that expires, which carries its expiration time, so 
+	 * that the two are replaced together and the nodes of the keys that do 
+	 * not expire do not hold one.
+	 */
+	private static final class Expiring {
+		
+		/** The item. */
+		final Object item;
+		
+		/** The time (with respect to {@link System#nanoTime}) at which the key expires. */
+		final long expiresAt;
+		
+		/**
+		 * Constructor, create an item that expires.
+		 * 
+		 * @param item The item
+		 * @param expiresAt The expiration time
+		 */
+		Expiring(final Object item, final long expiresAt) {
+			this.item = item;
+			this.expiresAt = expiresAt;
+		}
+	}
+	
+	/**
+	 * A cursor remembers the node reached by the last lookup made through it,
+	 * so that a subsequent lookup of a nearby key can begin from that node 
+	 * instead of from the root.
+	 * A cursor is not thread-safe; each thread should use its own cursor.
+	 * 
+	 * @see LogicalOrderingAVL#cursor()
+	 */
+	public class Cursor {
+		
+		/** The root of the tree layout of the last lookup. */
+		private AVLMapNode<K,V> root;
+		
+		/** The node reached by the last lookup. */
+		private AVLMapNode<K,V> node;
+		
+		/** The nodes of the last traversal of the tree layout, by depth. */
+		@SuppressWarnings({"unchecked", "rawtypes"})
+		private AVLMapNode<K,V>[] path = new LogicalOrderingAVL.AVLMapNode[16];
+		
+		/** For each node in {@code path}, the closest ancestor whose key is smaller. */
+		@SuppressWarnings({"unchecked", "rawtypes"})
+		private AVLMapNode<K,V>[] lower = new LogicalOrderingAVL.AVLMapNode[16];
+		
+		/** For each node in {@code path}, the closest ancestor whose key is greater. */
+		@SuppressWarnings({"unchecked", "rawtypes"})
+		private AVLMapNode<K,V>[] upper = new LogicalOrderingAVL.AVLMapNode[16];
+		
+		/** The number of nodes in {@code path}. */
+		private int depth;
+		
+		/**
+		 * Record a node of the current traversal.
+		 * 
+		 * @param d The node's depth
+		 * @param node The node
+		 * @param lowerNode The closest ancestor whose key is smaller
+		 * @param upperNode The closest ancestor whose key is greater
+		 */
+		private void push(final int d, final AVLMapNode<K,V> node, 
+				final AVLMapNode<K,V> lowerNode, final AVLMapNode<K,V> upperNode) {
+			if (d == path.length) {
+				path = Arrays.copyOf(path, d * 2);
+				lower = Arrays.copyOf(lower, d * 2);
+				upper = Arrays.copyOf(upper, d * 2);
+			}
+			path[d] = node;
+			lower[d] = lowerNode;
+			upper[d] = upperNode;
+		}
 	}
 	
 	/**
@@ -974,7 +4096,7 @@ public class LogicalOrderingAVL<K, V> extends AbstractMap<K,V> implements Concur
 		
 		/** The height of the sub-tree rooted at {@code right}. */
 		public int rightHeight;
-
+		
 		/** The lock that protects the node's tree fields, that is, {@code parent, left, right, leftHeight, rightHeight}. */ 
 		final public ReentrantLock treeLock;
 
@@ -1047,6 +4169,15 @@ public class LogicalOrderingAVL<K, V> extends AbstractMap<K,V> implements Concur
 			return leftHeight - rightHeight;
 		}
 
+		/**
+		 * Returns whether the node has an expiration time which has passed.
+		 * 
+		 * @return true if the node expired, and false otherwise
+		 */
+		public boolean isExpired() {
+			return LogicalOrderingAVL.isExpired(item);
+		}
+
 		/**
 		 * Lock the node's {@code succLock}.
 		 */
@@ -1054,6 +4185,15 @@ public class LogicalOrderingAVL<K, V> extends AbstractMap<K,V> implements Concur
 			succLock.lock();
 		}
 
+		/**
+		 * Try to lock the node's {@code succLock}, without waiting.
+		 * 
+		 * @return true if the lock was acquired, and false otherwise
+		 */
+		public boolean tryLockSuccLock() {
+			return succLock.tryLock();
+		}
+
 		/**
 		 * Release the node's {@code succLock}.
 		 */
@@ -1074,4 +4214,168 @@ public class LogicalOrderingAVL<K, V> extends AbstractMap<K,V> implements Concur
 			return sb.append(" [" + leftHeight + ":" + rightHeight + "]").toString();
 		}
 	}
+
+	/**
+	 * The validation of a sub-tree of the tree layout, and of the segment of
+	 * the ordering layout between the sub-tree's bounds (see 
+	 * {@link LogicalOrderingAVL#validate()}).
+	 */
+	final class Validation extends TreeValidation<AVLMapNode<K,V>> {
+		
+		private static final long serialVersionUID = 1L;
+		
+		/**
+		 * Constructor, create the validation of a sub-tree.
+		 * 
+		 * @param node The root of the sub-tree, or null
+		 * @param parent The parent of the sub-tree's root
+		 * @param lower The node that precedes the sub-tree's keys
+		 * @param upper The node that follows the sub-tree's keys
+		 * @param splits The number of levels to split into sub-tasks
+		 */
+		Validation(final AVLMapNode<K,V> node, final AVLMapNode<K,V> parent, 
+				final AVLMapNode<K,V> lower, final AVLMapNode<K,V> upper, final int splits) {
+			super(node, parent, lower, upper, splits, true);
+		}
+		
+		@Override
+		protected Validation validation(final AVLMapNode<K,V> node, final AVLMapNode<K,V> parent, 
+				final AVLMapNode<K,V> lower, final AVLMapNode<K,V> upper, final int splits) {
+			return new Validation(node, parent, lower, upper, splits);
+		}
+		
+		@Override
+		protected AVLMapNode<K,V> left(final AVLMapNode<K,V> node) {
+			return node.left;
+		}
+		
+		@Override
+		protected AVLMapNode<K,V> right(final AVLMapNode<K,V> node) {
+			return node.right;
+		}
+		
+		@Override
+		protected AVLMapNode<K,V> parent(final AVLMapNode<K,V> node) {
+			return node.parent;
+		}
+		
+		@Override
+		protected AVLMapNode<K,V> next(final AVLMapNode<K,V> node) {
+			return node.succ;
+		}
+		
+		@Override
+		protected AVLMapNode<K,V> previous(final AVLMapNode<K,V> node) {
+			return node.pred;
+		}
+		
+		@Override
+		protected boolean isListed(final AVLMapNode<K,V> node) {
+			return node.valid;
+		}
+		
+		@Override
+		protected int compare(final AVLMapNode<K,V> node, final AVLMapNode<K,V> other) {
+			return comparable(node.key).compareTo(other.key);
+		}
+		
+		@Override
+		protected boolean hasHeights(final AVLMapNode<K,V> node, final int leftHeight, final int rightHeight) {
+			return node.leftHeight == leftHeight && node.rightHeight == rightHeight;
+		}
+	}
+
+	/**
+	 * A node of a tree that is augmented, which holds the state of the 
+	 * augmentations besides the key and the item, so that the nodes of the 
+	 * trees that are not augmented do not pay for it. The tree creates its
+	 * nodes augmented from the time it begins to maintain order statistics or
+	 * aggregates, or from its construction if its eviction policy depends on 
+	 * the accesses to the keys.
+	 */
+	class AugmentedNode extends AVLMapNode<K,V> {
+		
+		/** 
+		 * The number of nodes in the sub-tree rooted at the node, which is 
+		 * maintained if the tree maintains order statistics. Protected by the
+		 * {@code treeLock} of the node's parent.
+		 */
+		public int size = 1;
+		
+		/**
+		 * The aggregate of the items in the sub-tree rooted at the node, which
+		 * is maintained if the tree aggregates its items. Protected by the
+		 * {@code treeLock} of the node's parent.
+		 */
+		public volatile Object aggregate;
+		
+		/** 
+		 * The time of the last access to the node, or the number of accesses
+		 * to it, according to the eviction policy of a bounded tree. 
+		 */
+		public long accesses;
+		
+		/**
+		 * Constructor, create a new node.
+		 * 
+		 * @param key The new node's key
+		 * @param item The new node's item
+		 * @param pred The new node's predecessor (with respect to the ordering layout)
+		 * @param succ The new node's successor (with respect to the ordering layout)
+		 * @param parent The new node's parent (with respect to the tree layout)
+		 */
+		public AugmentedNode(final K key, final Object item, final AVLMapNode<K,V> pred, 
+				final AVLMapNode<K,V> succ, final AVLMapNode<K,V> parent) {
+			super(key, item, pred, succ, parent);
+		}
+	}
+
+	/**
+	 * The node with the maximal value, which is the root of the tree layout.
+	 * It holds the state that belongs to a single tree layout, and is 
+	 * therefore replaced together with it by {@link LogicalOrderingAVL#clear}.
+	 */
+	class RootNode extends AVLMapNode<K,V> {
+		
+		/** The number of keys in the tree. */
+		final LongAdder count = new LongAdder();
+		
+		/** The wheel of the nodes that expire, created on first use. */
+		private volatile ExpiryWheel<AVLMapNode<K,V>> expirations;
+		
+		/** The lazily removed nodes, which {@link #runMaintenance} unlinks. */
+		final ConcurrentLinkedQueue<AVLMapNode<K,V>> deleted = new ConcurrentLinkedQueue<AVLMapNode<K,V>>();
+		
+		/**
+		 * Constructor, create a new root.
+		 * 
+		 * @param key The maximal value
+		 * @param parent The node with the minimal value
+		 */
+		public RootNode(final K key, final AVLMapNode<K,V> parent) {
+			super(key, null, parent, parent, parent);
+		}
+		
+		/**
+		 * @return The wheel of the nodes that expire
+		 */
+		ExpiryWheel<AVLMapNode<K,V>> expirations() {
+			ExpiryWheel<AVLMapNode<K,V>> wheel = expirations;
+			if (wheel == null) {
+				synchronized (this) {
+					wheel = expirations;
+					if (wheel == null) {
+						wheel = new ExpiryWheel<AVLMapNode<K,V>>(EXPIRY_SLOTS, EXPIRY_TICK) {
+							@Override
+							long deadline(final AVLMapNode<K,V> node) {
+								return LogicalOrderingAVL.expiresAt(node.item);
+							}
+						};
+						expirations = wheel;
+					}
+				}
+			}
+			return wheel;
+		}
+	}
 }
@@ -0,0 +1,128 @@
+package trees.logicalordering;
+
+import java.util.Comparator;
+
+import trees.Backoff;
+
+/**
+ * A concurrent ordered map from keys to {@code long} values, such as 
+ * counters or offsets, which are kept unboxed. Updates of the value of a 
+ * present key, such as {@link #addAndGet}, are a compare-and-set of the 
+ * key's cell, which neither locks the tree nor allocates; see 
+ * {@link PrimitiveValueMap}.
+ * 
+ * The value {@link Long#MIN_VALUE} is reserved for sealing the cells of 
+ * removed keys, and may not be stored.
+ *
+ * @param <K> The keys' type
+ */
+public class LongValueMap<K> extends PrimitiveValueMap<K> {
+
+	/** The bits of a sealed cell. */
+	private final static long SEALED = Long.MIN_VALUE;
+
+	/**
+	 * Constructor, create an empty map of {@link Comparable} keys.
+	 *
+	 * @param min The minimal value
+	 * @param max The maximal value
+	 */
+	public LongValueMap(final K min, final K max) {
+		this(min, max, null);
+	}
+
+	/**
+	 * Constructor, create an empty map.
+	 *
+	 * @param min The minimal value
+	 * @param max The maximal value
+	 * @param comparator The keys' comparator, or null if the keys are
+	 * {@link Comparable}
+	 */
+	public LongValueMap(final K min, final K max, final Comparator<? super K> comparator) {
+		super(min, max, comparator, SEALED);
+	}
+
+	/**
+	 * Returns the value of the given key.
+	 *
+	 * @param key The key
+	 * @param defaultValue The value to return if the key is absent
+	 * @return The key's value, or {@code defaultValue}
+	 */
+	public long get(final K key, final long defaultValue) {
+		return getBits(key, defaultValue);
+	}
+
+	/**
+	 * Set the value of the given key, inserting the key if it is absent.
+	 *
+	 * @param key The key
+	 * @param value The value
+	 * @param defaultValue The value to return if the key was absent
+	 * @return The previous value, or {@code defaultValue}
+	 * @throws IllegalArgumentException If the value is {@link Long#MIN_VALUE}
+	 */
+	public long put(final K key, final long value, final long defaultValue) {
+		return putBits(key, check(value), defaultValue);
+	}
+
+	/**
+	 * Add the given delta to the value of the given key. An absent key is 
+	 * inserted, as if its value were 0.
+	 *
+	 * @param key The key
+	 * @param delta The delta
+	 * @return The new value
+	 * @throws IllegalArgumentException If the new value is {@link Long#MIN_VALUE}
+	 */
+	public long addAndGet(final K key, final long delta) {
+		final Backoff backoff = tree.backoff();
+		for (int attempt = 0; ; attempt++) {
+			backoff.backoff(attempt);
+			final Cell cell = cellOrInsert(key, check(delta));
+			if (cell == null) return delta;
+			final long value = cell.bits;
+			if (isSealed(value)) continue;
+			final long sum = check(value + delta);
+			if (cell.compareAndSet(value, sum)) return sum;
+		}
+	}
+
+	/**
+	 * Set the value of the given key, if it equals the expected value.
+	 *
+	 * @param key The key
+	 * @param expect The expected value
+	 * @param update The new value
+	 * @return true if the value was set, and false if the key is absent or
+	 * its value differs
+	 * @throws IllegalArgumentException If the new value is {@link Long#MIN_VALUE}
+	 */
+	public boolean compareAndSet(final K key, final long expect, final long update) {
+		return compareAndSetBits(key, expect, check(update));
+	}
+
+	/**
+	 * Remove the given key.
+	 *
+	 * @param key The key
+	 * @param defaultValue The value to return if the key is absent
+	 * @return The removed value, or {@code defaultValue}
+	 */
+	public long remove(final K key, final long defaultValue) {
+		return removeBits(key, defaultValue);
+	}
+
+	/**
+	 * Check that the given value may be stored.
+	 *
+	 * @param value The value
+	 * @return The value
+	 * @throws IllegalArgumentException If the value is {@link Long#MIN_VALUE}
+	 */
+	private static long check(final long value) {
+		if (value == SEALED) throw new IllegalArgumentException("Long.MIN_VALUE is reserved");
+		return value;
+	}
+}
@@ -1,6 +1,20 @@
 package trees.pavt;
 
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Lock;
+
+import trees.Aggregator;
+import trees.Backoff;
+import trees.LatencyRecorder;
+import trees.TreeStats;
+import trees.TreeValidation;
+import trees.ValidationReport;
 
 /**
  * Implementation of concurrent AVL tree based on the paper 
@@ -26,18 +40,62 @@ import java.util.Comparator;
  */
 public class PaVTAVL <K,V> {
 
-	protected PaVTAVLNode<K, V> root;
+	protected volatile PaVTAVLNode<K, V> root;
 	protected PaVTAVLNode<K, V> rightSentinel;
 	protected PaVTAVLNode<K, V> leftSentinel;
 	private Comparator<? super K> comparator;
 
 
+	/** The kind of the nodes' locks. */
+	private final Locking locking;
+
+	/** The strategy by which failed attempts to lock or validate are retried. */
+	private volatile Backoff backoff = new Backoff();
+
+	/** The recorder of the latencies of sampled operations, or null if they are not recorded. */
+	private volatile LatencyRecorder latencies;
+
+	/** The number of failed operations that were retried from a nearby node. */
+	private final LongAdder localRestarts = new LongAdder();
+
+	/** The number of failed operations that were retried from the root. */
+	private final LongAdder rootRestarts = new LongAdder();
+
+	/** The number of consecutive retries of an operation that may begin from a nearby node. */
+	private final static int LOCAL_RESTARTS = 2;
+
+	/** The maximal number of ancestors a retry visits to find an unmarked node. */
+	private final static int RESTART_STEPS = 4;
+
+	/** The number of upper levels of the tree that a parallel validation splits. */
+	private final static int VALIDATION_SPLITS = 6;
+
+	/** The aggregator of the items of the sub-trees, or null. See {@link #enableAggregation}. */
+	private volatile Aggregator<? super V, Object> aggregator;
+
 	public PaVTAVL(K min, K max) {
+		this(min, max, Locking.REENTRANT);
+	}
+
+	/**
+	 * Constructor, create a new tree whose nodes use the given kind of locks.
+	 * 
+	 * @param min The minimal key, which is smaller than every key in the tree
+	 * @param max The maximal key, which is larger than every key in the tree
+	 * @param locking The kind of the nodes' locks
+	 */
+	public PaVTAVL(K min, K max, Locking locking) {
+		this.locking = locking;
+		init(min, max);
+	}
+
+	private void init(K min, K max) {
 		rightSentinel = new PaVTAVLNode<K, V>(min);
 		leftSentinel = new PaVTAVLNode<K, V>(max);
 		leftSentinel.parent = rightSentinel;
 		rightSentinel.right = leftSentinel;
 		leftSentinel.leftSnapshot = rightSentinel;
+		rightSentinel.rightSnapshot = leftSentinel;
 		root = leftSentinel;
 	}
 
@@ -58,11 +116,29 @@ public class PaVTAVL <K,V> {
 	}
 
 	public V add(final K val, final V item) {
+		final LatencyRecorder latencies = this.latencies;
+		if (latencies == null) return insert(val, item);
+		final long start = latencies.start();
+		final V result = insert(val, item);
+		latencies.record(LatencyRecorder.INSERT, start);
+		return result;
+	}
+
+	private V insert(final K val, final V item) {
 		final Comparable<? super K> value = comparable(val);
-		while (true) {
-			PaVTAVLNode<K, V> node = root;
-			PaVTAVLNode<K,V> child;
+		final Backoff backoff = this.backoff;
+		PaVTAVLNode<K, V> failedRoot = null, failed = null;
+		for (int attempt = 0; ; attempt++) {
+			backoff.backoff(attempt);
+			final PaVTAVLNode<K, V> root = this.root;
+			PaVTAVLNode<K, V> node = attempt == 0? null : restartFrom(failedRoot, root, failed, attempt);
 			int res = -1;
+			if (node == null) {
+				node = root;
+			} else {
+				res = value.compareTo(node.value);
+			}
+			PaVTAVLNode<K,V> child;
 			while (true) {
 				if (res == 0) break;
 				if (res < 0) {
@@ -77,12 +153,15 @@ public class PaVTAVL <K,V> {
 				K v = node.value;
 				res = value.compareTo(v);
 			}
+			failedRoot = root;
+			failed = node;
 			if (res == 0) {
 				V item2 = (V) node.item;
 				return item2;
 			}
 			boolean leftLast = res < 0;
-			synchronized (node) {
+			node.lock();
+			try {
 				if (node.marked || (leftLast && node.left != null) || (!leftLast && node.right != null)) {
 					continue;
 				}
@@ -92,7 +171,15 @@ public class PaVTAVL <K,V> {
 								)) {
 					continue;
 				}
-				PaVTAVLNode<K, V> newNode = new PaVTAVLNode<K, V>(val, item);
+				final Aggregator<? super V, Object> aggregator = this.aggregator;
+				PaVTAVLNode<K, V> newNode;
+				if (aggregator != null) {
+					final AggregateNode<K, V> aggregateNode = new AggregateNode<K, V>(val, item);
+					aggregateNode.aggregate = aggregator.lift(item);
+					newNode = aggregateNode;
+				} else {
+					newNode = new PaVTAVLNode<K, V>(val, item);
+				}
 				newNode.parent = node;
 				newNode.height = 1;
 				if (res > 0) {
@@ -111,20 +198,41 @@ public class PaVTAVL <K,V> {
 				if (node == root) {
 					return null;
 				}
+			} finally {
+				node.unlock();
 			}
-			rebalanceSynchronized(node);
+			if (aggregator != null) reaggregate(root, node);
+			rebalanceSynchronized(root, node);
 			return null;
 		}
 	}
 
 	public V remove(K val) {
+		final LatencyRecorder latencies = this.latencies;
+		if (latencies == null) return delete(val);
+		final long start = latencies.start();
+		final V result = delete(val);
+		latencies.record(LatencyRecorder.REMOVE, start);
+		return result;
+	}
+
+	private V delete(K val) {
 		final Comparable<? super K> value = comparable(val);
-		while (true) {
-			PaVTAVLNode<K, V> leftNode = leftSentinel;
-			PaVTAVLNode<K, V> rightNode = rightSentinel;
-			PaVTAVLNode<K, V> node = root;
-			PaVTAVLNode<K,V> child;
+		final Backoff backoff = this.backoff;
+		PaVTAVLNode<K, V> failedRoot = null, failed = null;
+		for (int attempt = 0; ; attempt++) {
+			backoff.backoff(attempt);
+			final PaVTAVLNode<K, V> root = this.root;
+			PaVTAVLNode<K, V> node = attempt == 0? null : restartFrom(failedRoot, root, failed, attempt);
 			int res = -1;
+			if (node == null) {
+				node = root;
+			} else {
+				res = value.compareTo(node.value);
+			}
+			PaVTAVLNode<K, V> leftNode = node;
+			PaVTAVLNode<K, V> rightNode = node == root? root.parent : node;
+			PaVTAVLNode<K,V> child;
 			while (true) {
 				if (res == 0) break;
 				if (res < 0) {
@@ -141,6 +249,8 @@ public class PaVTAVL <K,V> {
 				K v = node.value;
 				res = value.compareTo(v);
 			}
+			failedRoot = root;
+			failed = node;
 			if (res != 0) {
 				boolean leftLast = res < 0;
 				PaVTAVLNode<K, V> ref = leftLast? leftNode.leftSnapshot : rightNode.rightSnapshot;
@@ -153,12 +263,14 @@ public class PaVTAVL <K,V> {
 			PaVTAVLNode<K, V> parent = node.parent;
 			PaVTAVLNode<K, V> toRebalance = null;
 			PaVTAVLNode<K, V> toRebalance2 = null;
-			synchronized(parent) {
+			parent.lock();
+			try {
 				if (node.parent != parent) {
 					if (node.marked) return null;
 					continue;
 				}
-				synchronized(node) {
+				node.lock();
+				try {
 					if (node.marked) {
 						return null;
 					}
@@ -183,9 +295,11 @@ public class PaVTAVL <K,V> {
 						child = left == null? right : left;
 						rightNode = node.leftSnapshot;
 						leftNode = node.rightSnapshot;
-						synchronized(child) {
+						child.lock();
+						try {
 							PaVTAVLNode<K, V> snapshotToLock = left == null? leftNode : rightNode;
-							synchronized(snapshotToLock) {
+							snapshotToLock.lock();
+							try {
 								if ((left == null && snapshotToLock.leftSnapshot != node) ||
 										(left != null && snapshotToLock.rightSnapshot != node) || 
 										snapshotToLock.marked) {
@@ -202,14 +316,21 @@ public class PaVTAVL <K,V> {
 								rightNode.rightSnapshot = leftNode;
 								leftNode.leftSnapshot = rightNode;
 								toRebalance = parent;
+							} finally {
+								snapshotToLock.unlock();
 							}
+						} finally {
+							child.unlock();
 						}
 					} else {
-						synchronized(left) {
-							synchronized(right) {
+						left.lock();
+						try {
+							right.lock();
+							try {
 								rightNode = node.leftSnapshot;
 								leftNode = node.rightSnapshot;
-								synchronized(rightNode) {
+								rightNode.lock();
+								try {
 									if (rightNode.rightSnapshot != node || rightNode.marked) continue;
 									if (right.left == null) {
 										node.marked = true;
@@ -229,44 +350,67 @@ public class PaVTAVL <K,V> {
 										PaVTAVLNode<K, V> succParent = succ.parent;
 										toRebalance = succParent;
 										toRebalance2 = succ;
-										synchronized(succParent) {
+										succParent.lock();
+										try {
 											if (leftNode.parent != succParent || leftNode.marked) continue;
-											synchronized(leftNode) {
+											leftNode.lock();
+											try {
 												if (leftNode.leftSnapshot != node || leftNode.marked) continue;
 												PaVTAVLNode<K, V> succRight = succ.right;
 												if (succRight != null) {
-													synchronized(succRight) {
+													succRight.lock();
+													try {
 														PaVTAVLNode<K, V> succRightSnapshot = succ.rightSnapshot;
 														if (succRightSnapshot != succRight) {
-															synchronized(succRightSnapshot) {
+															succRightSnapshot.lock();
+															try {
 																if (succRightSnapshot.leftSnapshot != succ || succRightSnapshot.marked) {
 																	continue;
 																}
 																applyRemove(rightNode, node, parent, left, right,
 																		leftChild, succ, succParent, succRight, succRightSnapshot);
+															} finally {
+																succRightSnapshot.unlock();
 															}
 														} else {
 															applyRemove(rightNode, node, parent, left, right,
 																	leftChild, succ, succParent, succRight, succRightSnapshot);
 														}
+													} finally {
+														succRight.unlock();
 													}
 												} else {
 													PaVTAVLNode<K, V> succRightSnapshot = succ.rightSnapshot;
 													applyRemove(rightNode, node, parent, left, right,
 															leftChild, succ, succParent, succRight, succRightSnapshot);
 												}											
+											} finally {
+												leftNode.unlock();
 											}
+										} finally {
+											succParent.unlock();
 										}
 									}
+								} finally {
+									rightNode.unlock();
 								}	
+							} finally {
+								right.unlock();
 							}
+						} finally {
+							left.unlock();
 						}
 					}
+				} finally {
+					node.unlock();
 				}
+			} finally {
+				parent.unlock();
 			}
-			rebalanceSynchronized(toRebalance); 
+			if (aggregator != null) reaggregate(root, toRebalance);
+			rebalanceSynchronized(root, toRebalance); 
 			if (toRebalance2 != null) {
-				rebalanceSynchronized(toRebalance2);
+				rebalanceSynchronized(root, toRebalance2);
 			}
 			return (V) node.item;
 		}
@@ -283,6 +427,7 @@ public class PaVTAVL <K,V> {
 			PaVTAVLNode<K, V> succRightSnapshot) {
 		node.marked = true;
 		succ.height = node.height;
+		if (aggregator != null) ((AggregateNode<K, V>) succ).aggregate = ((AggregateNode<K, V>) node).aggregate;
 		succ.right = right;
 		right.parent = succ;
 		succ.left = left;
@@ -304,11 +449,27 @@ public class PaVTAVL <K,V> {
 	}
 
 	public boolean contains(K val) {
+		final LatencyRecorder latencies = this.latencies;
+		if (latencies == null) return lookup(val);
+		final long start = latencies.start();
+		final boolean result = lookup(val);
+		latencies.record(LatencyRecorder.LOOKUP, start);
+		return result;
+	}
+
+	private boolean lookup(K val) {
 		final Comparable<? super K> value = comparable(val);
-		while (true) {
-			PaVTAVLNode<K, V> node = root;
-			PaVTAVLNode<K,V> child;
+		PaVTAVLNode<K, V> failedRoot = null, failed = null;
+		for (int attempt = 0; ; attempt++) {
+			final PaVTAVLNode<K, V> root = this.root;
+			PaVTAVLNode<K, V> node = attempt == 0? null : restartFrom(failedRoot, root, failed, attempt);
 			int res = -1;
+			if (node == null) {
+				node = root;
+			} else {
+				res = value.compareTo(node.value);
+			}
+			PaVTAVLNode<K,V> child;
 			while (true) {
 				if (res == 0) break;
 				if (res < 0) {
@@ -323,6 +484,8 @@ public class PaVTAVL <K,V> {
 				K v = node.value;
 				res = value.compareTo(v);
 			}
+			failedRoot = root;
+			failed = node;
 			if (res == 0) {
 				return true;
 			}
@@ -336,16 +499,534 @@ public class PaVTAVL <K,V> {
 	}
 
 
+	/**
+	 * Returns the node a retry of a failed operation begins from, instead of 
+	 * the root, which is the nearest unmarked ancestor of the node the failed
+	 * attempt reached. Since traversals are validated by the snapshots, a 
+	 * traversal may begin from any node (see {@link #containsAll}), but if the
+	 * key is outside the node's sub-tree the retry fails again, so only 
+	 * {@link #LOCAL_RESTARTS} consecutive retries begin from a nearby node.
+	 * 
+	 * @param failedRoot The root of the failed attempt
+	 * @param root The current root
+	 * @param node The node the failed attempt reached
+	 * @param attempt The number of the retry
+	 * @return The node to begin from, or null if the retry should begin from the root
+	 */
+	private PaVTAVLNode<K, V> restartFrom(final PaVTAVLNode<K, V> failedRoot, final PaVTAVLNode<K, V> root, 
+			PaVTAVLNode<K, V> node, final int attempt) {
+		if (attempt <= LOCAL_RESTARTS && failedRoot == root) {
+			for (int steps = 0; steps < RESTART_STEPS && node != null && node != root; steps++) {
+				if (!node.marked) {
+					localRestarts.increment();
+					return node;
+				}
+				node = node.parent;
+			}
+		}
+		rootRestarts.increment();
+		return null;
+	}
+
+	/**
+	 * Checks a batch of keys, and stores whether each key is present in the
+	 * corresponding entry of {@code results}.
+	 * Each traversal begins from the deepest unmarked node of the previous 
+	 * traversal whose range covers the key. As in {@link #contains}, the 
+	 * traversal is validated by the snapshots, so it may begin from any node; 
+	 * upon a validation failure it restarts from the root.
+	 * 
+	 * @param vals The keys, preferably in ascending order
+	 * @param results The array to store the results in
+	 * @return The number of keys that are present
+	 */
+	@SuppressWarnings({"unchecked", "rawtypes"})
+	public int containsAll(final K[] vals, final boolean[] results) {
+		PaVTAVLNode<K, V>[] path = new PaVTAVL.PaVTAVLNode[16];
+		PaVTAVLNode<K, V>[] leftNodes = new PaVTAVL.PaVTAVLNode[16];
+		PaVTAVLNode<K, V>[] rightNodes = new PaVTAVL.PaVTAVLNode[16];
+		int depth = 0;
+		int found = 0;
+		for (int i = 0; i < vals.length; i++) {
+			final Comparable<? super K> value = comparable(vals[i]);
+			while (true) {
+				while (depth > 1) {
+					int d = depth - 1;
+					if (!path[d].marked && 
+							(leftNodes[d] == null || value.compareTo(leftNodes[d].value) < 0) &&
+							(rightNodes[d] == null || value.compareTo(rightNodes[d].value) > 0)) {
+						break;
+					}
+					depth--;
+				}
+				if (depth == 0 || path[0] != root) {
+					path[0] = root;
+					leftNodes[0] = null;
+					rightNodes[0] = null;
+					depth = 1;
+				}
+				PaVTAVLNode<K, V> node = path[depth - 1];
+				PaVTAVLNode<K, V> leftNode = leftNodes[depth - 1];
+				PaVTAVLNode<K, V> rightNode = rightNodes[depth - 1];
+				PaVTAVLNode<K, V> child;
+				int res = depth == 1? -1 : value.compareTo(node.value);
+				while (true) {
+					if (res == 0) break;
+					if (res < 0) {
+						leftNode = node;
+						child = node.left;
+					} else {
+						rightNode = node;
+						child = node.right;
+					}
+					if (child == null) {
+						break;
+					}
+					node = child;
+					if (depth == path.length) {
+						path = Arrays.copyOf(path, depth * 2);
+						leftNodes = Arrays.copyOf(leftNodes, depth * 2);
+						rightNodes = Arrays.copyOf(rightNodes, depth * 2);
+					}
+					path[depth] = node;
+					leftNodes[depth] = leftNode;
+					rightNodes[depth] = rightNode;
+					depth++;
+					res = value.compareTo(node.value);
+				}
+				if (res == 0) {
+					results[i] = true;
+					found++;
+					break;
+				}
+				PaVTAVLNode<K, V> upperNode = res < 0? node.leftSnapshot : node.rightSnapshot;
+				if ((res < 0 && value.compareTo(upperNode.value) <= 0) || (res > 0 && value.compareTo(upperNode.value) >= 0)) {
+					depth = 0;
+					continue;
+				}
+				results[i] = false;
+				break;
+			}
+		}
+		return found;
+	}
+
+	/**
+	 * Replaces the tree with an empty one, in constant time.
+	 * Operations that began before the clear complete on the old tree, and 
+	 * are therefore linearized before it.
+	 */
+	public void clear() {
+		init(rightSentinel.value, leftSentinel.value);
+	}
+
+	/**
+	 * Returns the number of failed operations that were retried from a node 
+	 * near the point of failure, instead of from the root.
+	 * 
+	 * @return The number of local restarts
+	 */
+	public long localRestarts() {
+		return localRestarts.sum();
+	}
+
+	/**
+	 * Returns the number of failed operations that were retried from the root.
+	 * 
+	 * @return The number of restarts from the root
+	 */
+	public long rootRestarts() {
+		return rootRestarts.sum();
+	}
+
+	/**
+	 * Returns the strategy by which failed attempts to lock or validate are 
+	 * retried, whose counters report the tree's retries.
+	 * 
+	 * @return The backoff strategy
+	 */
+	public Backoff backoff() {
+		return backoff;
+	}
+
+	/**
+	 * Set the strategy by which failed attempts to lock or validate are 
+	 * retried. Operations in progress complete with the previous strategy.
+	 * 
+	 * @param backoff The backoff strategy
+	 */
+	public void setBackoff(final Backoff backoff) {
+		if (backoff == null) throw new NullPointerException();
+		this.backoff = backoff;
+	}
+
+	/**
+	 * Returns the recorder of the latencies of the tree's sampled lookups,
+	 * insertions and removals.
+	 * 
+	 * @return The recorder, or null if the latencies are not recorded
+	 */
+	public LatencyRecorder latencyRecorder() {
+		return latencies;
+	}
+
+	/**
+	 * Set the recorder of the latencies of the tree's sampled lookups, 
+	 * insertions and removals. A recorder may be shared by several trees.
+	 * 
+	 * @param latencies The recorder, or null to stop recording
+	 */
+	public void setLatencyRecorder(final LatencyRecorder latencies) {
+		this.latencies = latencies;
+	}
+
+	/**
+	 * Begin maintaining the aggregate of the items of every sub-tree, which 
+	 * {@link #aggregate} uses to aggregate a range of keys in time 
+	 * proportional to the tree's height. Every addition and removal then 
+	 * recomputes the aggregates of all the ancestors of the node it links or
+	 * unlinks, locking them one at a time, so updates contend on the upper 
+	 * levels of the tree. Since the items of the nodes are never replaced, 
+	 * nothing else changes the aggregates.
+	 * The aggregates are held by the nodes that are added once aggregation 
+	 * is enabled, so the keys that are in the tree already are added again.
+	 * Should be called before the tree is accessed by other threads.
+	 * 
+	 * @param aggregator The aggregator
+	 */
+	@SuppressWarnings("unchecked")
+	public synchronized void enableAggregation(final Aggregator<? super V, ?> aggregator) {
+		if (aggregator == null) throw new NullPointerException();
+		if (this.aggregator != null) {
+			aggregateAll((Aggregator<? super V, Object>) aggregator, root.left);
+			this.aggregator = (Aggregator<? super V, Object>) aggregator;
+			return;
+		}
+		final List<PaVTAVLNode<K, V>> nodes = new ArrayList<PaVTAVLNode<K, V>>();
+		for (PaVTAVLNode<K, V> node = rightSentinel.rightSnapshot; node != leftSentinel; node = node.rightSnapshot) {
+			if (!node.marked) nodes.add(node);
+		}
+		clear();
+		this.aggregator = (Aggregator<? super V, Object>) aggregator;
+		for (PaVTAVLNode<K, V> node : nodes) {
+			insert(node.value, (V) node.item);
+		}
+	}
+
+	/**
+	 * Sets the aggregates of the sub-trees rooted at the given node and at 
+	 * its descendants. The sub-tree is walked in post-order without 
+	 * recursion, so a degenerate sub-tree does not overflow the stack.
+	 * 
+	 * @param aggregator The aggregator
+	 * @param node The node, or null
+	 */
+	@SuppressWarnings({"unchecked", "rawtypes"})
+	private void aggregateAll(final Aggregator<? super V, Object> aggregator, PaVTAVLNode<K, V> node) {
+		if (node == null) return;
+		PaVTAVLNode<K, V>[] nodes = new PaVTAVL.PaVTAVLNode[16];
+		// has the sub-tree of the node on the stack been pushed?
+		boolean[] expanded = new boolean[16];
+		nodes[0] = node;
+		int top = 1;
+		while (top > 0) {
+			node = nodes[top - 1];
+			if (expanded[top - 1]) {
+				// the children's aggregates are set
+				((AggregateNode<K, V>) node).aggregate = aggregate(aggregator, node);
+				top--;
+				continue;
+			}
+			expanded[top - 1] = true;
+			if (top + 2 > nodes.length) {
+				nodes = Arrays.copyOf(nodes, nodes.length * 2);
+				expanded = Arrays.copyOf(expanded, expanded.length * 2);
+			}
+			if (node.right != null) {
+				nodes[top] = node.right;
+				expanded[top++] = false;
+			}
+			if (node.left != null) {
+				nodes[top] = node.left;
+				expanded[top++] = false;
+			}
+		}
+	}
+
+	/**
+	 * Returns the aggregate of the items of the keys that are greater than 
+	 * or equal to {@code fromKey} and smaller than {@code toKey}, in the 
+	 * order of the keys.
+	 * The aggregates of the sub-trees are read without locking, so under 
+	 * concurrent updates the result may miss a concurrent addition or 
+	 * include a concurrent removal, or be off by the nodes that a concurrent
+	 * rotation moves; when there are no concurrent updates, it is exact.
+	 * 
+	 * @param aggregator The tree's aggregator, which types the result
+	 * @param fromKey The lowest key to aggregate
+	 * @param toKey The key to stop at (which is not aggregated)
+	 * @return The aggregate of the range, or the aggregator's identity if it is empty
+	 * @throws IllegalStateException If aggregation is not enabled
+	 * @throws IllegalArgumentException If the aggregator is not the tree's one
+	 * @see #enableAggregation
+	 */
+	@SuppressWarnings("unchecked")
+	public <A> A aggregate(final Aggregator<? super V, A> aggregator, final K fromKey, final K toKey) {
+		final Aggregator<? super V, Object> current = this.aggregator;
+		if (current == null) throw new IllegalStateException("Aggregation is not enabled");
+		if (aggregator != current) throw new IllegalArgumentException("Not the tree's aggregator");
+		final Comparable<? super K> from = comparable(fromKey), to = comparable(toKey);
+		// the highest node whose key is in the range splits it
+		PaVTAVLNode<K, V> split = root.left;
+		while (split != null) {
+			if (from.compareTo(split.value) > 0) {
+				split = split.right;
+			} else if (to.compareTo(split.value) <= 0) {
+				split = split.left;
+			} else {
+				break;
+			}
+		}
+		if (split == null) return aggregator.identity();
+		// the keys of the split node's left sub-tree that are in the range, from the highest
+		A lower = aggregator.lift((V) split.item);
+		for (PaVTAVLNode<K, V> node = split.left; node != null; ) {
+			if (from.compareTo(node.value) > 0) {
+				node = node.right;
+			} else {
+				final PaVTAVLNode<K, V> right = node.right;
+				if (right != null) lower = aggregator.combine((A) ((AggregateNode<K, V>) right).aggregate, lower);
+				lower = aggregator.combine(aggregator.lift((V) node.item), lower);
+				node = node.left;
+			}
+		}
+		// the keys of the split node's right sub-tree that are in the range, from the lowest
+		A upper = aggregator.identity();
+		for (PaVTAVLNode<K, V> node = split.right; node != null; ) {
+			if (to.compareTo(node.value) <= 0) {
+				node = node.left;
+			} else {
+				final PaVTAVLNode<K, V> left = node.left;
+				if (left != null) upper = aggregator.combine(upper, (A) ((AggregateNode<K, V>) left).aggregate);
+				upper = aggregator.combine(upper, aggregator.lift((V) node.item));
+				node = node.right;
+			}
+		}
+		return aggregator.combine(lower, upper);
+	}
+
+	/**
+	 * Returns the number of keys in the tree, by walking the snapshot chain 
+	 * from the minimal sentinel to the maximal one, without recursion.
+	 * 
+	 * @return The number of keys
+	 */
 	public int size() {
-		PaVTAVLNode<K, V> n = root.left;
-		return size(n);
+		final PaVTAVLNode<K, V> root = this.root;
+		int size = 0;
+		for (PaVTAVLNode<K, V> n = root.parent.rightSnapshot; n != root; n = n.rightSnapshot) {
+			size++;
+		}
+		return size;
+	}
+
+	/**
+	 * Returns the statistics of the tree's shape, gathered by a full walk of
+	 * the tree, and of its snapshot chain. The tree is walked without
+	 * recursion or locking, in time proportional to its size.
+	 * 
+	 * @return The statistics
+	 * @see #stats(int)
+	 */
+	@SuppressWarnings({"unchecked", "rawtypes"})
+	public TreeStats stats() {
+		final PaVTAVLNode<K, V> root = this.root;
+		final long[] balanceFactors = new long[2 * TreeStats.MAX_BALANCE_FACTOR + 1];
+		long searches = 0, totalDepth = 0, validNodes = 0, invalidNodes = 0, treeNodes = 0;
+		int maxDepth = 0;
+		PaVTAVLNode<K, V>[] nodes = new PaVTAVL.PaVTAVLNode[16];
+		int[] depths = new int[16];
+		int top = 0;
+		if (root.left == null) {
+			searches++;
+		} else {
+			nodes[top] = root.left;
+			depths[top++] = 1;
+		}
+		while (top > 0) {
+			top--;
+			final PaVTAVLNode<K, V> node = nodes[top];
+			final int depth = depths[top];
+			treeNodes++;
+			if (!node.marked) {
+				validNodes++;
+			} else {
+				invalidNodes++;
+			}
+			final PaVTAVLNode<K, V> left = node.left, right = node.right;
+			balanceFactors[TreeStats.balanceFactorIndex((left == null? 0 : left.height) - (right == null? 0 : right.height))]++;
+			if (top + 2 > nodes.length) {
+				nodes = Arrays.copyOf(nodes, nodes.length * 2);
+				depths = Arrays.copyOf(depths, depths.length * 2);
+			}
+			if (left == null || right == null) {
+				// a search for a key of a missing child's range ends here
+				final int missing = left == null && right == null? 2 : 1;
+				searches += missing;
+				totalDepth += missing * depth;
+				maxDepth = Math.max(maxDepth, depth);
+			}
+			if (right != null) {
+				nodes[top] = right;
+				depths[top++] = depth + 1;
+			}
+			if (left != null) {
+				nodes[top] = left;
+				depths[top++] = depth + 1;
+			}
+		}
+		long listedNodes = 0;
+		for (PaVTAVLNode<K, V> node = root.parent.rightSnapshot; node != root; node = node.rightSnapshot) {
+			listedNodes++;
+		}
+		return new TreeStats(searches, totalDepth, maxDepth, balanceFactors, validNodes, invalidNodes, 
+				treeNodes, listedNodes);
+	}
+
+	/**
+	 * Returns the statistics of the tree's shape, gathered by the given 
+	 * number of random descents from the root, each of which costs time 
+	 * proportional to the tree's height, so it may be called periodically 
+	 * on a large tree. The nodes are not counted.
+	 * 
+	 * @param samples The number of descents
+	 * @return The statistics
+	 * @see #stats()
+	 */
+	public TreeStats stats(final int samples) {
+		if (samples < 0) throw new IllegalArgumentException();
+		final PaVTAVLNode<K, V> root = this.root;
+		final ThreadLocalRandom random = ThreadLocalRandom.current();
+		final long[] balanceFactors = new long[2 * TreeStats.MAX_BALANCE_FACTOR + 1];
+		long totalDepth = 0, validNodes = 0, invalidNodes = 0;
+		int maxDepth = 0;
+		for (int i = 0; i < samples; i++) {
+			int depth = 0;
+			for (PaVTAVLNode<K, V> node = root.left; node != null; node = random.nextBoolean()? node.left : node.right) {
+				depth++;
+				if (!node.marked) {
+					validNodes++;
+				} else {
+					invalidNodes++;
+				}
+				final PaVTAVLNode<K, V> left = node.left, right = node.right;
+				balanceFactors[TreeStats.balanceFactorIndex((left == null? 0 : left.height) - (right == null? 0 : right.height))]++;
+			}
+			totalDepth += depth;
+			maxDepth = Math.max(maxDepth, depth);
+		}
+		return new TreeStats(samples, totalDepth, maxDepth, balanceFactors, validNodes, invalidNodes, -1, -1);
+	}
+
+	/**
+	 * Validates the structure of the tree: the order of the keys, the parent
+	 * pointers, the heights and the balance of the tree, the symmetry of the snapshot chain, and 
+	 * whether the tree and the chain hold the same unmarked nodes. The tree and
+	 * the chain are walked once, in order, without recursion or locking, so 
+	 * the tree may be arbitrarily large, but a validation that is concurrent 
+	 * with updates may report their intermediate states.
+	 * 
+	 * @return The report of the validation
+	 */
+	public ValidationReport validate() {
+		final PaVTAVLNode<K, V> root = this.root;
+		return new Validation(root.left, root, root.parent, root, 0).compute().report(root.parent);
 	}
 
-	private int size(PaVTAVLNode<K, V> n) {
-		if (n == null) return 0;
-		return 1 + size(n.left) +  size(n.right);
+	/**
+	 * Validates the structure of the tree as {@link #validate()}, on the 
+	 * given pool. The upper levels of the tree are split, and the sub-trees
+	 * below them are validated in parallel, each against the segment of the
+	 * snapshot chain between its bounds.
+	 * 
+	 * @param pool The pool
+	 * @return The report of the validation
+	 */
+	public ValidationReport validate(final ForkJoinPool pool) {
+		final PaVTAVLNode<K, V> root = this.root;
+		return pool.invoke(new Validation(root.left, root, root.parent, root, VALIDATION_SPLITS)).report(root.parent);
 	}
 
+	/**
+	 * The validation of a sub-tree, and of the segment of the snapshot chain
+	 * between the sub-tree's bounds (see {@link PaVTAVL#validate()}).
+	 */
+	final class Validation extends TreeValidation<PaVTAVLNode<K, V>> {
+
+		private static final long serialVersionUID = 1L;
+
+		/**
+		 * Constructor, create the validation of a sub-tree.
+		 * 
+		 * @param node The root of the sub-tree, or null
+		 * @param parent The parent of the sub-tree's root
+		 * @param lower The node that precedes the sub-tree's keys
+		 * @param upper The node that follows the sub-tree's keys
+		 * @param splits The number of levels to split into sub-tasks
+		 */
+		Validation(final PaVTAVLNode<K, V> node, final PaVTAVLNode<K, V> parent,
+				final PaVTAVLNode<K, V> lower, final PaVTAVLNode<K, V> upper, final int splits) {
+			super(node, parent, lower, upper, splits, true);
+		}
+
+		@Override
+		protected Validation validation(final PaVTAVLNode<K, V> node, final PaVTAVLNode<K, V> parent,
+				final PaVTAVLNode<K, V> lower, final PaVTAVLNode<K, V> upper, final int splits) {
+			return new Validation(node, parent, lower, upper, splits);
+		}
+
+		@Override
+		protected PaVTAVLNode<K, V> left(final PaVTAVLNode<K, V> node) {
+			return node.left;
+		}
+
+		@Override
+		protected PaVTAVLNode<K, V> right(final PaVTAVLNode<K, V> node) {
+			return node.right;
+		}
+
+		@Override
+		protected PaVTAVLNode<K, V> parent(final PaVTAVLNode<K, V> node) {
+			return node.parent;
+		}
+
+		@Override
+		protected PaVTAVLNode<K, V> next(final PaVTAVLNode<K, V> node) {
+			return node.rightSnapshot;
+		}
+
+		@Override
+		protected PaVTAVLNode<K, V> previous(final PaVTAVLNode<K, V> node) {
+			return node.leftSnapshot;
+		}
+
+		@Override
+		protected boolean isListed(final PaVTAVLNode<K, V> node) {
+			return !node.marked;
+		}
+
+		@Override
+		protected int compare(final PaVTAVLNode<K, V> node, final PaVTAVLNode<K, V> other) {
+			return comparable(node.value).compareTo(other.value);
+		}
+
+		@Override
+		protected boolean hasHeights(final PaVTAVLNode<K, V> node, final int leftHeight, final int rightHeight) {
+			return node.height == Math.max(leftHeight, rightHeight) + 1;
+		}
+	}
+
+
 	public boolean check() {
 		PaVTAVLNode<K, V> n = root.parent;
 		K max = root.parent.value;
@@ -363,18 +1044,23 @@ public class PaVTAVL <K,V> {
 		return true;
 	}
 
-	final private void rebalanceSynchronized(PaVTAVLNode<K,V> node) {
+	final private void rebalanceSynchronized(final PaVTAVLNode<K,V> root, PaVTAVLNode<K,V> node) {
 		if (node == root) {
 			return;
 		}
 		PaVTAVLNode<K,V> parent = node.parent;
 		while (node != root) {
-			synchronized (parent) {
+			// the loop moves node and parent, so the locked nodes are kept aside
+			final PaVTAVLNode<K,V> lockedParent = parent;
+			lockedParent.lock();
+			try {
 				if (node.parent != parent) {
 					if (node.marked) return;
 					parent = node.parent; continue;
 				}
-				synchronized(node) {
+				final PaVTAVLNode<K,V> lockedNode = node;
+				lockedNode.lock();
+				try {
 					if (node.marked) return;
 					PaVTAVLNode<K, V> left = node.left;
 					PaVTAVLNode<K, V> right = node.right;
@@ -391,29 +1077,39 @@ public class PaVTAVL <K,V> {
 					boolean isLeft = bf >= 2;
 					if (Math.abs(bf) >= 2) {
 						if (child != null) {
-							synchronized(child) {
+							child.lock();
+							try {
 								left = child.left;
 								right = child.right;
 								leftHeight = left == null? 0 : left.height;
 								rightHeight = right == null? 0 : right.height;
 								if ((isLeft && (leftHeight - rightHeight) < 0) || (!isLeft && (leftHeight - rightHeight) > 0)) {
 									PaVTAVLNode<K,V> grandChild =  isLeft? child.right : child.left;
-									synchronized(grandChild) {
+									grandChild.lock();
+									try {
 										rotate(grandChild, child, node, isLeft);
 										rotate(grandChild, node, parent, !isLeft);
+									} finally {
+										grandChild.unlock();
 									}
 									node = grandChild;
 								} else {
 									rotate(child, node, parent, !isLeft);
 									node = child;
 								}
+							} finally {
+								child.unlock();
 							}
 						}
 					} else {
 						node = parent;
 						parent = node.parent;
 					}
+				} finally {
+					lockedNode.unlock();
 				}
+			} finally {
+				lockedParent.unlock();
 			}
 		}
 	}
@@ -476,7 +1172,65 @@ public class PaVTAVL <K,V> {
 				child.height = Math.max(node.height, leftC == null? 0 : leftC.height) + 1;
 			}
 		}
+		final Aggregator<? super V, Object> aggregator = this.aggregator;
+		if (aggregator != null) {
+			((AggregateNode<K, V>) node).aggregate = aggregate(aggregator, node);
+			((AggregateNode<K, V>) child).aggregate = aggregate(aggregator, child);
+		}
+	}
 
+	/**
+	 * Recompute the aggregates of the given node, whose sub-tree changed, 
+	 * and of its ancestors. The aggregate of a node is written while holding
+	 * its lock and its parent's, which are acquired as in 
+	 * {@link #rebalanceSynchronized}; a rotation, which holds the same locks, 
+	 * recomputes the aggregates of the nodes it rotates from their children.
+	 * A node that was removed meanwhile ends the walk, since its removal 
+	 * recomputes the aggregates of its former ancestors.
+	 * 
+	 * @param root The root of the tree
+	 * @param node The node
+	 */
+	final private void reaggregate(final PaVTAVLNode<K,V> root, PaVTAVLNode<K,V> node) {
+		final Aggregator<? super V, Object> aggregator = this.aggregator;
+		while (node != root) {
+			final PaVTAVLNode<K,V> parent = node.parent;
+			parent.lock();
+			try {
+				if (node.parent != parent) {
+					if (node.marked) return;
+					continue;
+				}
+				node.lock();
+				try {
+					if (node.marked) return;
+					((AggregateNode<K, V>) node).aggregate = aggregate(aggregator, node);
+				} finally {
+					node.unlock();
+				}
+			} finally {
+				parent.unlock();
+			}
+			node = parent;
+		}
+	}
+
+	/**
+	 * Returns the aggregate of the sub-tree rooted at the given node, 
+	 * computed from the aggregates of its children, which should not change
+	 * meanwhile.
+	 * 
+	 * @param aggregator The aggregator
+	 * @param node The node
+	 * @return The aggregate
+	 */
+	@SuppressWarnings("unchecked")
+	final private Object aggregate(final Aggregator<? super V, Object> aggregator, final PaVTAVLNode<K,V> node) {
+		final PaVTAVLNode<K,V> left = node.left, right = node.right;
+		Object aggregate = aggregator.lift((V) node.item);
+		if (left != null) aggregate = aggregator.combine(((AggregateNode<K, V>) left).aggregate, aggregate);
+		if (right != null) aggregate = aggregator.combine(aggregate, ((AggregateNode<K, V>) right).aggregate);
+		return aggregate;
 	}
 
 	class PaVTAVLNode<K, V> {
@@ -493,6 +1247,9 @@ public class PaVTAVL <K,V> {
 		public volatile PaVTAVLNode<K, V> right;
 		public volatile PaVTAVLNode<K, V> left;
 		
+		/** The node's lock. */
+		private final Lock lock = locking.newLock();
+		
 		public PaVTAVLNode(K value) {
 			this(value, null);
 		}
@@ -503,6 +1260,20 @@ public class PaVTAVL <K,V> {
 			this.marked = false;
 		}
 
+		/**
+		 * Lock the node.
+		 */
+		public void lock() {
+			lock.lock();
+		}
+
+		/**
+		 * Release the node's lock.
+		 */
+		public void unlock() {
+			lock.unlock();
+		}
+
 		@Override
 		public String toString() {
 			String delimiter = " ";
@@ -512,5 +1283,22 @@ public class PaVTAVL <K,V> {
 		
 	}
 
-}
+	/**
+	 * A node of a tree that aggregates its items, which holds the aggregate
+	 * of its sub-tree, so that the nodes of the trees that do not aggregate
+	 * do not pay for it.
+	 */
+	class AggregateNode<K, V> extends PaVTAVLNode<K, V> {
+		
+		/** 
+		 * The aggregate of the items in the sub-tree rooted at the node. 
+		 * Written while holding the node's lock and its parent's.
+		 */
+		public volatile Object aggregate;
+		
+		public AggregateNode(K value, Object item) {
+			super(value, item);
+		}
+	}
 
+}
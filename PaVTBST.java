@@ -1,6 +1,17 @@
 package trees.pavt;
 
+import java.util.Arrays;
 import java.util.Comparator;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Lock;
+
+import trees.Backoff;
+import trees.LatencyRecorder;
+import trees.TreeStats;
+import trees.TreeValidation;
+import trees.ValidationReport;
 
 /**
  * Implementation of concurrent BST tree based on the paper 
@@ -26,13 +37,53 @@ import java.util.Comparator;
  */
 public class PaVTBST <K,V> {
 	
-	protected PaVTNode<K, V> root;
+	protected volatile PaVTNode<K, V> root;
 	private Comparator<? super K> comparator;
 	private PaVTNode<K, V> rightSentinel;
 	private PaVTNode<K, V> leftSentinel;
 	
 	
+	/** The kind of the nodes' locks. */
+	private final Locking locking;
+
+	/** The strategy by which failed attempts to lock or validate are retried. */
+	private volatile Backoff backoff = new Backoff();
+
+	/** The recorder of the latencies of sampled operations, or null if they are not recorded. */
+	private volatile LatencyRecorder latencies;
+
+	/** The number of failed operations that were retried from a nearby node. */
+	private final LongAdder localRestarts = new LongAdder();
+
+	/** The number of failed operations that were retried from the root. */
+	private final LongAdder rootRestarts = new LongAdder();
+
+	/** The number of consecutive retries of an operation that may begin from a nearby node. */
+	private final static int LOCAL_RESTARTS = 2;
+
+	/** The maximal number of ancestors a retry visits to find an unmarked node. */
+	private final static int RESTART_STEPS = 4;
+
+	/** The number of upper levels of the tree that a parallel validation splits. */
+	private final static int VALIDATION_SPLITS = 6;
+
 	public PaVTBST(K min, K max) {
+		this(min, max, Locking.REENTRANT);
+	}
+
+	/**
+	 * Constructor, create a new tree whose nodes use the given kind of locks.
+	 * 
+	 * @param min The minimal key, which is smaller than every key in the tree
+	 * @param max The maximal key, which is larger than every key in the tree
+	 * @param locking The kind of the nodes' locks
+	 */
+	public PaVTBST(K min, K max, Locking locking) {
+		this.locking = locking;
+		init(min, max);
+	}
+	
+	private void init(K min, K max) {
 		rightSentinel = new PaVTNode<K, V>(min);
 		leftSentinel = new PaVTNode<K, V>(max);
 		leftSentinel.parent = rightSentinel;
@@ -59,11 +110,29 @@ public class PaVTBST <K,V> {
 	}
 	
 	public V add(final K val, final V item) {
+		final LatencyRecorder latencies = this.latencies;
+		if (latencies == null) return insert(val, item);
+		final long start = latencies.start();
+		final V result = insert(val, item);
+		latencies.record(LatencyRecorder.INSERT, start);
+		return result;
+	}
+
+	private V insert(final K val, final V item) {
 		final Comparable<? super K> value = comparable(val);
-		while (true) {
-			PaVTNode<K, V> node = root;
-			PaVTNode<K,V> child;
+		final Backoff backoff = this.backoff;
+		PaVTNode<K, V> failedRoot = null, failed = null;
+		for (int attempt = 0; ; attempt++) {
+			backoff.backoff(attempt);
+			final PaVTNode<K, V> root = this.root;
+			PaVTNode<K, V> node = attempt == 0? null : restartFrom(failedRoot, root, failed, attempt);
 			int res = -1;
+			if (node == null) {
+				node = root;
+			} else {
+				res = value.compareTo(node.value);
+			}
+			PaVTNode<K,V> child;
 			while (true) {
 				if (res == 0) break;
 				if (res < 0) {
@@ -78,12 +147,15 @@ public class PaVTBST <K,V> {
 				K v = node.value;
 				res = value.compareTo(v);
 			}
+			failedRoot = root;
+			failed = node;
 			if (res == 0) {
 				V item2 = (V) node.item;
 				return item2;
 			}
 			boolean leftLast = res < 0;
-			synchronized(node) {
+			node.lock();
+			try {
 				if (node.marked || (leftLast && node.left != null) || (!leftLast && node.right != null)) {
 					continue;
 				}
@@ -105,18 +177,38 @@ public class PaVTBST <K,V> {
 				node.leftSnapshot = newNode;
 				node.left = newNode;
 				return null;
+			} finally {
+				node.unlock();
 			}
 		}
 	}
 	
 	public V remove(K val) {
+		final LatencyRecorder latencies = this.latencies;
+		if (latencies == null) return delete(val);
+		final long start = latencies.start();
+		final V result = delete(val);
+		latencies.record(LatencyRecorder.REMOVE, start);
+		return result;
+	}
+
+	private V delete(K val) {
 		final Comparable<? super K> value = comparable(val);
-		while (true) {
-			PaVTNode<K, V> node = root;
-			PaVTNode<K, V> leftNode = leftSentinel;
-			PaVTNode<K, V> rightNode = rightSentinel;
-			PaVTNode<K,V> child;
+		final Backoff backoff = this.backoff;
+		PaVTNode<K, V> failedRoot = null, failed = null;
+		for (int attempt = 0; ; attempt++) {
+			backoff.backoff(attempt);
+			final PaVTNode<K, V> root = this.root;
+			PaVTNode<K, V> node = attempt == 0? null : restartFrom(failedRoot, root, failed, attempt);
 			int res = -1;
+			if (node == null) {
+				node = root;
+			} else {
+				res = value.compareTo(node.value);
+			}
+			PaVTNode<K, V> leftNode = node;
+			PaVTNode<K, V> rightNode = node == root? root.parent : node;
+			PaVTNode<K,V> child;
 			while (true) {
 				if (res == 0) break;
 				if (res < 0) {
@@ -133,6 +225,8 @@ public class PaVTBST <K,V> {
 				K v = node.value;
 				res = value.compareTo(v);
 			}
+			failedRoot = root;
+			failed = node;
 			if (res != 0) {
 				boolean leftLast = res < 0;
 				PaVTNode<K, V> ref = leftLast? node.leftSnapshot: node.rightSnapshot; 
@@ -144,12 +238,14 @@ public class PaVTBST <K,V> {
 				return null;
 			}
 			PaVTNode<K, V> parent = node.parent;
-			synchronized(parent) {
+			parent.lock();
+			try {
 				if (node.parent != parent) {
 					if (node.marked) return null;
 					continue;
 				}
-				synchronized(node) {
+				node.lock();
+				try {
 					if (node.marked) {
 						return null;
 					}
@@ -173,9 +269,11 @@ public class PaVTBST <K,V> {
 						child = left == null? right : left;
 						rightNode = node.leftSnapshot;
 						leftNode = node.rightSnapshot;
-						synchronized(child) {
+						child.lock();
+						try {
 							PaVTNode<K, V> snapshotToLock = left == null? leftNode : rightNode;
-							synchronized(snapshotToLock) {
+							snapshotToLock.lock();
+							try {
 								if ((left == null && snapshotToLock.leftSnapshot != node) ||
 										(left != null && snapshotToLock.rightSnapshot != node) || 
 										snapshotToLock.marked) {
@@ -191,14 +289,21 @@ public class PaVTBST <K,V> {
 								child.parent = parent;
 								rightNode.rightSnapshot = leftNode;
 								leftNode.leftSnapshot = rightNode;
+							} finally {
+								snapshotToLock.unlock();
 							}
+						} finally {
+							child.unlock();
 						}
 					} else {
-						synchronized(left) {
-							synchronized(right) {
+						left.lock();
+						try {
+							right.lock();
+							try {
 								rightNode = node.leftSnapshot;
 								leftNode = node.rightSnapshot;
-								synchronized(rightNode) {
+								rightNode.lock();
+								try {
 									if (rightNode.rightSnapshot != node || rightNode.marked) continue;
 									if (right.left == null) {
 										node.marked = true;
@@ -215,40 +320,62 @@ public class PaVTBST <K,V> {
 									} else {
 										PaVTNode<K, V> succ = leftNode;
 										PaVTNode<K, V> succParent = succ.parent;
-										synchronized(succParent) {
+										succParent.lock();
+										try {
 											if (leftNode.parent != succParent || leftNode.marked) continue;
-											synchronized(leftNode) {
+											leftNode.lock();
+											try {
 												if (leftNode.leftSnapshot != node || leftNode.marked) continue;
 												PaVTNode<K, V> succRight = succ.right;
 												if (succRight != null) {
-													synchronized(succRight) {
+													succRight.lock();
+													try {
 														PaVTNode<K, V> succRightSnapshot = succ.rightSnapshot;
 														if (succRightSnapshot != succRight) {
-															synchronized(succRightSnapshot) {
+															succRightSnapshot.lock();
+															try {
 																if (succRightSnapshot.leftSnapshot != succ || succRightSnapshot.marked) {
 																	continue;
 																}
 																applyRemove(rightNode, node, parent, left, right,
 																		leftChild, succ, succParent, succRight, succRightSnapshot);
+															} finally {
+																succRightSnapshot.unlock();
 															}
 														} else {
 															applyRemove(rightNode, node, parent, left, right,
 																	leftChild, succ, succParent, succRight, succRightSnapshot);
 														}
+													} finally {
+														succRight.unlock();
 													}
 												} else {
 													PaVTNode<K, V> succRightSnapshot = succ.rightSnapshot;
 													applyRemove(rightNode, node, parent, left, right,
 															leftChild, succ, succParent, succRight, succRightSnapshot);
 												}											
+											} finally {
+												leftNode.unlock();
 											}
+										} finally {
+											succParent.unlock();
 										}
 									}
+								} finally {
+									rightNode.unlock();
 								}	
+							} finally {
+								right.unlock();
 							}
+						} finally {
+							left.unlock();
 						}
 					}
+				} finally {
+					node.unlock();
 				}
+			} finally {
+				parent.unlock();
 			}
 			return (V) node.item;
 		}
@@ -285,11 +412,27 @@ public class PaVTBST <K,V> {
 	}
 
 	public boolean contains(K val) {
+		final LatencyRecorder latencies = this.latencies;
+		if (latencies == null) return lookup(val);
+		final long start = latencies.start();
+		final boolean result = lookup(val);
+		latencies.record(LatencyRecorder.LOOKUP, start);
+		return result;
+	}
+
+	private boolean lookup(K val) {
 		final Comparable<? super K> value = comparable(val);
-		while (true) {
-			PaVTNode<K, V> node = root;
-			PaVTNode<K,V> child;
+		PaVTNode<K, V> failedRoot = null, failed = null;
+		for (int attempt = 0; ; attempt++) {
+			final PaVTNode<K, V> root = this.root;
+			PaVTNode<K, V> node = attempt == 0? null : restartFrom(failedRoot, root, failed, attempt);
 			int res = -1;
+			if (node == null) {
+				node = root;
+			} else {
+				res = value.compareTo(node.value);
+			}
+			PaVTNode<K,V> child;
 			while (true) {
 				if (res == 0) break;
 				if (res < 0) {
@@ -304,6 +447,8 @@ public class PaVTBST <K,V> {
 				K v = node.value;
 				res = value.compareTo(v);
 			}
+			failedRoot = root;
+			failed = node;
 			if (res == 0) {
 				return true;
 			}
@@ -321,15 +466,392 @@ public class PaVTBST <K,V> {
 	}
 
 
+	/**
+	 * Returns the node a retry of a failed operation begins from, instead of 
+	 * the root, which is the nearest unmarked ancestor of the node the failed
+	 * attempt reached. Since traversals are validated by the snapshots, a 
+	 * traversal may begin from any node (see {@link #containsAll}), but if the
+	 * key is outside the node's sub-tree the retry fails again, so only 
+	 * {@link #LOCAL_RESTARTS} consecutive retries begin from a nearby node.
+	 * 
+	 * @param failedRoot The root of the failed attempt
+	 * @param root The current root
+	 * @param node The node the failed attempt reached
+	 * @param attempt The number of the retry
+	 * @return The node to begin from, or null if the retry should begin from the root
+	 */
+	private PaVTNode<K, V> restartFrom(final PaVTNode<K, V> failedRoot, final PaVTNode<K, V> root, 
+			PaVTNode<K, V> node, final int attempt) {
+		if (attempt <= LOCAL_RESTARTS && failedRoot == root) {
+			for (int steps = 0; steps < RESTART_STEPS && node != null && node != root; steps++) {
+				if (!node.marked) {
+					localRestarts.increment();
+					return node;
+				}
+				node = node.parent;
+			}
+		}
+		rootRestarts.increment();
+		return null;
+	}
+
+	/**
+	 * Checks a batch of keys, and stores whether each key is present in the
+	 * corresponding entry of {@code results}.
+	 * Each traversal begins from the deepest unmarked node of the previous 
+	 * traversal whose range covers the key. As in {@link #contains}, the 
+	 * traversal is validated by the snapshots, so it may begin from any node; 
+	 * upon a validation failure it restarts from the root.
+	 * 
+	 * @param vals The keys, preferably in ascending order
+	 * @param results The array to store the results in
+	 * @return The number of keys that are present
+	 */
+	@SuppressWarnings({"unchecked", "rawtypes"})
+	public int containsAll(final K[] vals, final boolean[] results) {
+		PaVTNode<K, V>[] path = new PaVTBST.PaVTNode[16];
+		PaVTNode<K, V>[] leftNodes = new PaVTBST.PaVTNode[16];
+		PaVTNode<K, V>[] rightNodes = new PaVTBST.PaVTNode[16];
+		int depth = 0;
+		int found = 0;
+		for (int i = 0; i < vals.length; i++) {
+			final Comparable<? super K> value = comparable(vals[i]);
+			while (true) {
+				while (depth > 1) {
+					int d = depth - 1;
+					if (!path[d].marked && 
+							(leftNodes[d] == null || value.compareTo(leftNodes[d].value) < 0) &&
+							(rightNodes[d] == null || value.compareTo(rightNodes[d].value) > 0)) {
+						break;
+					}
+					depth--;
+				}
+				if (depth == 0 || path[0] != root) {
+					path[0] = root;
+					leftNodes[0] = null;
+					rightNodes[0] = null;
+					depth = 1;
+				}
+				PaVTNode<K, V> node = path[depth - 1];
+				PaVTNode<K, V> leftNode = leftNodes[depth - 1];
+				PaVTNode<K, V> rightNode = rightNodes[depth - 1];
+				PaVTNode<K, V> child;
+				int res = depth == 1? -1 : value.compareTo(node.value);
+				while (true) {
+					if (res == 0) break;
+					if (res < 0) {
+						leftNode = node;
+						child = node.left;
+					} else {
+						rightNode = node;
+						child = node.right;
+					}
+					if (child == null) {
+						break;
+					}
+					node = child;
+					if (depth == path.length) {
+						path = Arrays.copyOf(path, depth * 2);
+						leftNodes = Arrays.copyOf(leftNodes, depth * 2);
+						rightNodes = Arrays.copyOf(rightNodes, depth * 2);
+					}
+					path[depth] = node;
+					leftNodes[depth] = leftNode;
+					rightNodes[depth] = rightNode;
+					depth++;
+					res = value.compareTo(node.value);
+				}
+				if (res == 0) {
+					results[i] = true;
+					found++;
+					break;
+				}
+				PaVTNode<K, V> upperNode = res < 0? node.leftSnapshot : node.rightSnapshot;
+				if ((res < 0 && value.compareTo(upperNode.value) <= 0) || (res > 0 && value.compareTo(upperNode.value) >= 0)) {
+					depth = 0;
+					continue;
+				}
+				results[i] = false;
+				break;
+			}
+		}
+		return found;
+	}
+
+	/**
+	 * Replaces the tree with an empty one, in constant time.
+	 * Operations that began before the clear complete on the old tree, and 
+	 * are therefore linearized before it.
+	 */
+	public void clear() {
+		init(rightSentinel.value, leftSentinel.value);
+	}
+
+	/**
+	 * Returns the number of failed operations that were retried from a node 
+	 * near the point of failure, instead of from the root.
+	 * 
+	 * @return The number of local restarts
+	 */
+	public long localRestarts() {
+		return localRestarts.sum();
+	}
+
+	/**
+	 * Returns the number of failed operations that were retried from the root.
+	 * 
+	 * @return The number of restarts from the root
+	 */
+	public long rootRestarts() {
+		return rootRestarts.sum();
+	}
+
+	/**
+	 * Returns the strategy by which failed attempts to lock or validate are 
+	 * retried, whose counters report the tree's retries.
+	 * 
+	 * @return The backoff strategy
+	 */
+	public Backoff backoff() {
+		return backoff;
+	}
+
+	/**
+	 * Set the strategy by which failed attempts to lock or validate are 
+	 * retried. Operations in progress complete with the previous strategy.
+	 * 
+	 * @param backoff The backoff strategy
+	 */
+	public void setBackoff(final Backoff backoff) {
+		if (backoff == null) throw new NullPointerException();
+		this.backoff = backoff;
+	}
+
+	/**
+	 * Returns the recorder of the latencies of the tree's sampled lookups,
+	 * insertions and removals.
+	 * 
+	 * @return The recorder, or null if the latencies are not recorded
+	 */
+	public LatencyRecorder latencyRecorder() {
+		return latencies;
+	}
+
+	/**
+	 * Set the recorder of the latencies of the tree's sampled lookups, 
+	 * insertions and removals. A recorder may be shared by several trees.
+	 * 
+	 * @param latencies The recorder, or null to stop recording
+	 */
+	public void setLatencyRecorder(final LatencyRecorder latencies) {
+		this.latencies = latencies;
+	}
+
+	/**
+	 * Returns the number of keys in the tree, by walking the snapshot chain 
+	 * from the minimal sentinel to the maximal one, without recursion.
+	 * 
+	 * @return The number of keys
+	 */
 	public int size() {
-        PaVTNode<K, V> n = root.left;
-        return size(n);
-    }
-
-	private int size(PaVTNode<K, V> n) {
-		if (n == null) return 0;
-        return 1 + size(n.left) +  size(n.right);
-    }
+		final PaVTNode<K, V> root = this.root;
+		int size = 0;
+		for (PaVTNode<K, V> n = root.parent.rightSnapshot; n != root; n = n.rightSnapshot) {
+			size++;
+		}
+		return size;
+	}
+
+	/**
+	 * Returns the statistics of the tree's shape, gathered by a full walk of
+	 * the tree and of its snapshot chain. The tree is walked without
+	 * recursion or locking, in time proportional to its size. Since the tree
+	 * records no heights, its balance factors are not counted.
+	 * 
+	 * @return The statistics
+	 * @see #stats(int)
+	 */
+	@SuppressWarnings({"unchecked", "rawtypes"})
+	public TreeStats stats() {
+		final PaVTNode<K, V> root = this.root;
+		final long[] balanceFactors = new long[2 * TreeStats.MAX_BALANCE_FACTOR + 1];
+		long searches = 0, totalDepth = 0, validNodes = 0, invalidNodes = 0, treeNodes = 0;
+		int maxDepth = 0;
+		PaVTNode<K, V>[] nodes = new PaVTBST.PaVTNode[16];
+		int[] depths = new int[16];
+		int top = 0;
+		if (root.left == null) {
+			searches++;
+		} else {
+			nodes[top] = root.left;
+			depths[top++] = 1;
+		}
+		while (top > 0) {
+			top--;
+			final PaVTNode<K, V> node = nodes[top];
+			final int depth = depths[top];
+			treeNodes++;
+			if (!node.marked) {
+				validNodes++;
+			} else {
+				invalidNodes++;
+			}
+			if (top + 2 > nodes.length) {
+				nodes = Arrays.copyOf(nodes, nodes.length * 2);
+				depths = Arrays.copyOf(depths, depths.length * 2);
+			}
+			final PaVTNode<K, V> left = node.left, right = node.right;
+			if (left == null || right == null) {
+				// a search for a key of a missing child's range ends here
+				final int missing = left == null && right == null? 2 : 1;
+				searches += missing;
+				totalDepth += missing * depth;
+				maxDepth = Math.max(maxDepth, depth);
+			}
+			if (right != null) {
+				nodes[top] = right;
+				depths[top++] = depth + 1;
+			}
+			if (left != null) {
+				nodes[top] = left;
+				depths[top++] = depth + 1;
+			}
+		}
+		long listedNodes = 0;
+		for (PaVTNode<K, V> node = root.parent.rightSnapshot; node != root; node = node.rightSnapshot) {
+			listedNodes++;
+		}
+		return new TreeStats(searches, totalDepth, maxDepth, balanceFactors, validNodes, invalidNodes, 
+				treeNodes, listedNodes);
+	}
+
+	/**
+	 * Returns the statistics of the tree's shape, gathered by the given 
+	 * number of random descents from the root, each of which costs time 
+	 * proportional to the tree's height, so it may be called periodically 
+	 * on a large tree. The nodes are not counted.
+	 * 
+	 * @param samples The number of descents
+	 * @return The statistics
+	 * @see #stats()
+	 */
+	public TreeStats stats(final int samples) {
+		if (samples < 0) throw new IllegalArgumentException();
+		final PaVTNode<K, V> root = this.root;
+		final ThreadLocalRandom random = ThreadLocalRandom.current();
+		final long[] balanceFactors = new long[2 * TreeStats.MAX_BALANCE_FACTOR + 1];
+		long totalDepth = 0, validNodes = 0, invalidNodes = 0;
+		int maxDepth = 0;
+		for (int i = 0; i < samples; i++) {
+			int depth = 0;
+			for (PaVTNode<K, V> node = root.left; node != null; node = random.nextBoolean()? node.left : node.right) {
+				depth++;
+				if (!node.marked) {
+					validNodes++;
+				} else {
+					invalidNodes++;
+				}
+			}
+			totalDepth += depth;
+			maxDepth = Math.max(maxDepth, depth);
+		}
+		return new TreeStats(samples, totalDepth, maxDepth, balanceFactors, validNodes, invalidNodes, -1, -1);
+	}
+
+	/**
+	 * Validates the structure of the tree: the order of the keys, the parent
+	 * pointers of the tree, the symmetry of the snapshot chain, and 
+	 * whether the tree and the chain hold the same unmarked nodes. The tree and
+	 * the chain are walked once, in order, without recursion or locking, so 
+	 * the tree may be arbitrarily large, but a validation that is concurrent 
+	 * with updates may report their intermediate states.
+	 * 
+	 * @return The report of the validation
+	 */
+	public ValidationReport validate() {
+		final PaVTNode<K, V> root = this.root;
+		return new Validation(root.left, root, root.parent, root, 0).compute().report(root.parent);
+	}
+
+	/**
+	 * Validates the structure of the tree as {@link #validate()}, on the 
+	 * given pool. The upper levels of the tree are split, and the sub-trees
+	 * below them are validated in parallel, each against the segment of the
+	 * snapshot chain between its bounds.
+	 * 
+	 * @param pool The pool
+	 * @return The report of the validation
+	 */
+	public ValidationReport validate(final ForkJoinPool pool) {
+		final PaVTNode<K, V> root = this.root;
+		return pool.invoke(new Validation(root.left, root, root.parent, root, VALIDATION_SPLITS)).report(root.parent);
+	}
+
+	/**
+	 * The validation of a sub-tree, and of the segment of the snapshot chain
+	 * between the sub-tree's bounds (see {@link PaVTBST#validate()}). The
+	 * nodes record no heights, so only the height of the tree is computed.
+	 */
+	final class Validation extends TreeValidation<PaVTNode<K, V>> {
+
+		private static final long serialVersionUID = 1L;
+
+		/**
+		 * Constructor, create the validation of a sub-tree.
+		 * 
+		 * @param node The root of the sub-tree, or null
+		 * @param parent The parent of the sub-tree's root
+		 * @param lower The node that precedes the sub-tree's keys
+		 * @param upper The node that follows the sub-tree's keys
+		 * @param splits The number of levels to split into sub-tasks
+		 */
+		Validation(final PaVTNode<K, V> node, final PaVTNode<K, V> parent,
+				final PaVTNode<K, V> lower, final PaVTNode<K, V> upper, final int splits) {
+			super(node, parent, lower, upper, splits, false);
+		}
+
+		@Override
+		protected Validation validation(final PaVTNode<K, V> node, final PaVTNode<K, V> parent,
+				final PaVTNode<K, V> lower, final PaVTNode<K, V> upper, final int splits) {
+			return new Validation(node, parent, lower, upper, splits);
+		}
+
+		@Override
+		protected PaVTNode<K, V> left(final PaVTNode<K, V> node) {
+			return node.left;
+		}
+
+		@Override
+		protected PaVTNode<K, V> right(final PaVTNode<K, V> node) {
+			return node.right;
+		}
+
+		@Override
+		protected PaVTNode<K, V> parent(final PaVTNode<K, V> node) {
+			return node.parent;
+		}
+
+		@Override
+		protected PaVTNode<K, V> next(final PaVTNode<K, V> node) {
+			return node.rightSnapshot;
+		}
+
+		@Override
+		protected PaVTNode<K, V> previous(final PaVTNode<K, V> node) {
+			return node.leftSnapshot;
+		}
+
+		@Override
+		protected boolean isListed(final PaVTNode<K, V> node) {
+			return !node.marked;
+		}
+
+		@Override
+		protected int compare(final PaVTNode<K, V> node, final PaVTNode<K, V> other) {
+			return comparable(node.value).compareTo(other.value);
+		}
+	}
+
 	
 	class PaVTNode<K, V> {
 		
@@ -344,6 +866,9 @@ public class PaVTBST <K,V> {
 		public volatile PaVTNode<K, V> right;
 		public volatile PaVTNode<K, V> left;
 		
+		/** The node's lock. */
+		private final Lock lock = locking.newLock();
+		
 		public PaVTNode(K value) {
 			this(value, null);
 		}
@@ -362,6 +887,20 @@ public class PaVTBST <K,V> {
 			this.rightSnapshot = rightSnapshot;
 		}
 
+		/**
+		 * Lock the node.
+		 */
+		public void lock() {
+			lock.lock();
+		}
+
+		/**
+		 * Release the node's lock.
+		 */
+		public void unlock() {
+			lock.unlock();
+		}
+
 		@Override
 		public String toString() {
 			String delimiter = "  ";
@@ -0,0 +1,728 @@
+package trees.pavt;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Lock;
+
+import trees.Backoff;
+import trees.LatencyRecorder;
+
+/**
+ * A variant of {@link PaVTBST} whose removal of a node with two children
+ * leaves the node in the tree as a routing node, instead of relocating its
+ * successor. A routing node still directs traversals by its key, but its key
+ * is absent from the tree; an {@link #add} of its key makes it a regular node
+ * again.
+ * The removal of a key therefore locks at most the node, its parent, its
+ * single child and one of its snapshot nodes, where {@link PaVTBST#remove}
+ * locks up to nine nodes to move the successor. A routing node is unlinked
+ * once it has fewer than two children, by the removal that unlinks its last
+ * but one child.
+ *
+ * Based on the paper "Practical Concurrent Traversals in Search Trees" by
+ * Dana Drachsler-Cohen (ETH), Martin Vechev (ETH) and Eran Yahav (Technion).
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+public class PaVTRoutingBST <K,V> {
+
+	protected volatile PaVTNode<K, V> root;
+	private Comparator<? super K> comparator;
+	private PaVTNode<K, V> rightSentinel;
+	private PaVTNode<K, V> leftSentinel;
+
+	/** The kind of the nodes' locks. */
+	private final Locking locking;
+
+	/** The strategy by which failed attempts to lock or validate are retried. */
+	private volatile Backoff backoff = new Backoff();
+
+	/** The recorder of the latencies of sampled operations, or null if they are not recorded. */
+	private volatile LatencyRecorder latencies;
+
+	/** The number of failed operations that were retried from a nearby node. */
+	private final LongAdder localRestarts = new LongAdder();
+
+	/** The number of failed operations that were retried from the root. */
+	private final LongAdder rootRestarts = new LongAdder();
+
+	/** The number of routing nodes that were unlinked. */
+	private final LongAdder unlinkedRoutingNodes = new LongAdder();
+
+	/** The number of consecutive retries of an operation that may begin from a nearby node. */
+	private final static int LOCAL_RESTARTS = 2;
+
+	/** The maximal number of ancestors a retry visits to find an unmarked node. */
+	private final static int RESTART_STEPS = 4;
+
+	public PaVTRoutingBST(K min, K max) {
+		this(min, max, Locking.REENTRANT);
+	}
+
+	/**
+	 * Constructor, create a new tree whose nodes use the given kind of locks.
+	 *
+	 * @param min The minimal key, which is smaller than every key in the tree
+	 * @param max The maximal key, which is larger than every key in the tree
+	 * @param locking The kind of the nodes' locks
+	 */
+	public PaVTRoutingBST(K min, K max, Locking locking) {
+		this.locking = locking;
+		init(min, max);
+	}
+
+	private void init(K min, K max) {
+		rightSentinel = new PaVTNode<K, V>(min);
+		leftSentinel = new PaVTNode<K, V>(max);
+		leftSentinel.parent = rightSentinel;
+		rightSentinel.right = leftSentinel;
+		leftSentinel.leftSnapshot = rightSentinel;
+		rightSentinel.rightSnapshot = leftSentinel;
+		root = leftSentinel;
+	}
+
+	@SuppressWarnings("unchecked")
+	private Comparable<? super K> comparable(final Object key) {
+		if (key == null) {
+			throw new NullPointerException();
+		}
+		if (comparator == null) {
+			return (Comparable<? super K>)key;
+		}
+		return new Comparable<K>() {
+			final Comparator<? super K> _cmp = comparator;
+
+			@SuppressWarnings("unchecked")
+			public int compareTo(final K rhs) { return _cmp.compare((K)key, rhs); }
+		};
+	}
+
+	/**
+	 * Add the given key with the given item, unless the key is present.
+	 * If the key belongs to a routing node, the node becomes a regular node
+	 * with the given item.
+	 *
+	 * @param val The key
+	 * @param item The item
+	 * @return The item of the present key, or null if the key was added
+	 */
+	public V add(final K val, final V item) {
+		final LatencyRecorder latencies = this.latencies;
+		if (latencies == null) return insert(val, item);
+		final long start = latencies.start();
+		final V result = insert(val, item);
+		latencies.record(LatencyRecorder.INSERT, start);
+		return result;
+	}
+
+	@SuppressWarnings("unchecked")
+	private V insert(final K val, final V item) {
+		final Comparable<? super K> value = comparable(val);
+		final Backoff backoff = this.backoff;
+		PaVTNode<K, V> failedRoot = null, failed = null;
+		for (int attempt = 0; ; attempt++) {
+			backoff.backoff(attempt);
+			final PaVTNode<K, V> root = this.root;
+			PaVTNode<K, V> node = attempt == 0? null : restartFrom(failedRoot, root, failed, attempt);
+			int res = -1;
+			if (node == null) {
+				node = root;
+			} else {
+				res = value.compareTo(node.value);
+			}
+			PaVTNode<K,V> child;
+			while (true) {
+				if (res == 0) break;
+				if (res < 0) {
+					child = node.left;
+				} else {
+					child = node.right;
+				}
+				if (child == null) {
+					break;
+				}
+				node = child;
+				K v = node.value;
+				res = value.compareTo(v);
+			}
+			failedRoot = root;
+			failed = node;
+			if (res == 0) {
+				if (!node.routing) {
+					return (V) node.item;
+				}
+				node.lock();
+				try {
+					// a marked routing node is unlinked, and the key is added below its former parent
+					if (node.marked) continue;
+					if (!node.routing) return (V) node.item;
+					node.item = item;
+					node.routing = false;
+					return null;
+				} finally {
+					node.unlock();
+				}
+			}
+			boolean leftLast = res < 0;
+			node.lock();
+			try {
+				if (node.marked || (leftLast && node.left != null) || (!leftLast && node.right != null)) {
+					continue;
+				}
+				PaVTNode<K, V> upperNode = leftLast? node.leftSnapshot : node.rightSnapshot;
+				if ((leftLast && (value.compareTo(upperNode.value) <= 0)) ||
+						(!leftLast && (value.compareTo(upperNode.value) >= 0)
+								)) {
+					continue;
+				}
+				PaVTNode<K, V> newNode = new PaVTNode<K, V>(val, item, node, res > 0? node : upperNode, res > 0? upperNode : node);
+
+				if (!leftLast) {
+					upperNode.leftSnapshot = newNode;
+					node.rightSnapshot = newNode;
+					node.right = newNode;
+					return null;
+				}
+				upperNode.rightSnapshot = newNode;
+				node.leftSnapshot = newNode;
+				node.left = newNode;
+				return null;
+			} finally {
+				node.unlock();
+			}
+		}
+	}
+
+	/**
+	 * Remove the given key. A node with two children becomes a routing node,
+	 * and any other node is unlinked. If the unlinked node was the child of
+	 * a routing node, which is left with fewer than two children, the
+	 * routing node is unlinked as well (see {@link #unlinkRouting}).
+	 *
+	 * @param val The key
+	 * @return The item of the removed key, or null if the key was absent
+	 */
+	public V remove(K val) {
+		final LatencyRecorder latencies = this.latencies;
+		if (latencies == null) return delete(val);
+		final long start = latencies.start();
+		final V result = delete(val);
+		latencies.record(LatencyRecorder.REMOVE, start);
+		return result;
+	}
+
+	@SuppressWarnings("unchecked")
+	private V delete(K val) {
+		final Comparable<? super K> value = comparable(val);
+		final Backoff backoff = this.backoff;
+		PaVTNode<K, V> failedRoot = null, failed = null;
+		for (int attempt = 0; ; attempt++) {
+			backoff.backoff(attempt);
+			final PaVTNode<K, V> root = this.root;
+			PaVTNode<K, V> node = attempt == 0? null : restartFrom(failedRoot, root, failed, attempt);
+			int res = -1;
+			if (node == null) {
+				node = root;
+			} else {
+				res = value.compareTo(node.value);
+			}
+			PaVTNode<K,V> child;
+			while (true) {
+				if (res == 0) break;
+				if (res < 0) {
+					child = node.left;
+				} else {
+					child = node.right;
+				}
+				if (child == null) {
+					break;
+				}
+				node = child;
+				K v = node.value;
+				res = value.compareTo(v);
+			}
+			failedRoot = root;
+			failed = node;
+			if (res != 0) {
+				boolean leftLast = res < 0;
+				PaVTNode<K, V> ref = leftLast? node.leftSnapshot: node.rightSnapshot;
+				if (
+						(leftLast && value.compareTo(ref.value) <= 0) ||
+						(!leftLast && value.compareTo(ref.value) >= 0)) {
+					continue;
+				}
+				return null;
+			}
+			if (node.routing) return null;
+			final Object item;
+			PaVTNode<K, V> parent = node.parent;
+			parent.lock();
+			try {
+				if (node.parent != parent) {
+					if (node.marked) return null;
+					continue;
+				}
+				node.lock();
+				try {
+					if (node.marked || node.routing) {
+						return null;
+					}
+					item = node.item;
+					if (node.left != null && node.right != null) {
+						node.routing = true;
+						return (V) item;
+					}
+					if (!unlink(parent, node)) continue;
+				} finally {
+					node.unlock();
+				}
+			} finally {
+				parent.unlock();
+			}
+			if (parent.routing) {
+				unlinkRouting(parent);
+			}
+			return (V) item;
+		}
+	}
+
+	/**
+	 * Unlink the given node, which has at most one child, from the tree.
+	 * The caller holds the locks of the node and of its parent; the node's
+	 * child and the snapshot node that is replaced are locked by this method.
+	 *
+	 * @param parent The node's parent
+	 * @param node The node
+	 * @return true if the node was unlinked, and false if a snapshot changed
+	 * and the removal should be retried
+	 */
+	private boolean unlink(final PaVTNode<K, V> parent, final PaVTNode<K, V> node) {
+		final PaVTNode<K, V> left = node.left;
+		final PaVTNode<K, V> right = node.right;
+		final boolean leftChild = parent.left == node;
+		final PaVTNode<K, V> rightNode = node.leftSnapshot;
+		final PaVTNode<K, V> leftNode = node.rightSnapshot;
+		if (left == null && right == null) {
+			node.marked = true;
+			if (leftChild) {
+				parent.left = null;
+				parent.leftSnapshot = rightNode;
+				rightNode.rightSnapshot = parent;
+			} else {
+				parent.right = null;
+				parent.rightSnapshot = leftNode;
+				leftNode.leftSnapshot = parent;
+			}
+			return true;
+		}
+		final PaVTNode<K, V> child = left == null? right : left;
+		child.lock();
+		try {
+			PaVTNode<K, V> snapshotToLock = left == null? leftNode : rightNode;
+			snapshotToLock.lock();
+			try {
+				if ((left == null && snapshotToLock.leftSnapshot != node) ||
+						(left != null && snapshotToLock.rightSnapshot != node) ||
+						snapshotToLock.marked) {
+					return false;
+				}
+				node.marked = true;
+				if (leftChild) {
+					parent.left = child;
+				} else {
+					parent.right = child;
+				}
+				child.parent = parent;
+				rightNode.rightSnapshot = leftNode;
+				leftNode.leftSnapshot = rightNode;
+				return true;
+			} finally {
+				snapshotToLock.unlock();
+			}
+		} finally {
+			child.unlock();
+		}
+	}
+
+	/**
+	 * Unlink the given routing node if it has fewer than two children, and
+	 * then its ancestors that are routing nodes and are left with fewer than
+	 * two children by the unlinking. The nodes are unlinked by the same steps
+	 * as a removal of a node with at most one child.
+	 *
+	 * @param node The routing node
+	 */
+	private void unlinkRouting(PaVTNode<K, V> node) {
+		final Backoff backoff = this.backoff;
+		for (int attempt = 0; node.routing && !node.marked && (node.left == null || node.right == null); attempt++) {
+			backoff.backoff(attempt);
+			final PaVTNode<K, V> parent = node.parent;
+			parent.lock();
+			try {
+				if (node.parent != parent) continue;
+				node.lock();
+				try {
+					if (node.marked || !node.routing || (node.left != null && node.right != null)) {
+						return;
+					}
+					if (!unlink(parent, node)) continue;
+				} finally {
+					node.unlock();
+				}
+			} finally {
+				parent.unlock();
+			}
+			unlinkedRoutingNodes.increment();
+			node = parent;
+			attempt = -1;
+		}
+	}
+
+	/**
+	 * Returns whether the given key is present. A key that belongs to a
+	 * routing node is absent.
+	 *
+	 * @param val The key
+	 * @return true if the key is present, and false otherwise
+	 */
+	public boolean contains(K val) {
+		final LatencyRecorder latencies = this.latencies;
+		if (latencies == null) return lookup(val);
+		final long start = latencies.start();
+		final boolean result = lookup(val);
+		latencies.record(LatencyRecorder.LOOKUP, start);
+		return result;
+	}
+
+	private boolean lookup(K val) {
+		final Comparable<? super K> value = comparable(val);
+		PaVTNode<K, V> failedRoot = null, failed = null;
+		for (int attempt = 0; ; attempt++) {
+			final PaVTNode<K, V> root = this.root;
+			PaVTNode<K, V> node = attempt == 0? null : restartFrom(failedRoot, root, failed, attempt);
+			int res = -1;
+			if (node == null) {
+				node = root;
+			} else {
+				res = value.compareTo(node.value);
+			}
+			PaVTNode<K,V> child;
+			while (true) {
+				if (res == 0) break;
+				if (res < 0) {
+					child = node.left;
+				} else {
+					child = node.right;
+				}
+				if (child == null) {
+					break;
+				}
+				node = child;
+				K v = node.value;
+				res = value.compareTo(v);
+			}
+			failedRoot = root;
+			failed = node;
+			if (res == 0) {
+				return !node.routing;
+			}
+			PaVTNode<K, V> upperNode = res < 0? node.leftSnapshot : node.rightSnapshot;
+
+			if (
+					(res < 0 && (value.compareTo(upperNode.value) <= 0)) ||
+					(res > 0 && (value.compareTo(upperNode.value) >= 0))
+					) {
+				continue;
+			}
+
+			return false;
+		}
+	}
+
+	/**
+	 * Returns the node a retry of a failed operation begins from, instead of
+	 * the root, which is the nearest unmarked ancestor of the node the failed
+	 * attempt reached. See {@link PaVTBST}.
+	 *
+	 * @param failedRoot The root of the failed attempt
+	 * @param root The current root
+	 * @param node The node the failed attempt reached
+	 * @param attempt The number of the retry
+	 * @return The node to begin from, or null if the retry should begin from the root
+	 */
+	private PaVTNode<K, V> restartFrom(final PaVTNode<K, V> failedRoot, final PaVTNode<K, V> root,
+			PaVTNode<K, V> node, final int attempt) {
+		if (attempt <= LOCAL_RESTARTS && failedRoot == root) {
+			for (int steps = 0; steps < RESTART_STEPS && node != null && node != root; steps++) {
+				if (!node.marked) {
+					localRestarts.increment();
+					return node;
+				}
+				node = node.parent;
+			}
+		}
+		rootRestarts.increment();
+		return null;
+	}
+
+	/**
+	 * Checks a batch of keys, and stores whether each key is present in the
+	 * corresponding entry of {@code results}, as {@link PaVTBST#containsAll}.
+	 *
+	 * @param vals The keys, preferably in ascending order
+	 * @param results The array to store the results in
+	 * @return The number of keys that are present
+	 */
+	@SuppressWarnings({"unchecked", "rawtypes"})
+	public int containsAll(final K[] vals, final boolean[] results) {
+		PaVTNode<K, V>[] path = new PaVTRoutingBST.PaVTNode[16];
+		PaVTNode<K, V>[] leftNodes = new PaVTRoutingBST.PaVTNode[16];
+		PaVTNode<K, V>[] rightNodes = new PaVTRoutingBST.PaVTNode[16];
+		int depth = 0;
+		int found = 0;
+		for (int i = 0; i < vals.length; i++) {
+			final Comparable<? super K> value = comparable(vals[i]);
+			while (true) {
+				while (depth > 1) {
+					int d = depth - 1;
+					if (!path[d].marked &&
+							(leftNodes[d] == null || value.compareTo(leftNodes[d].value) < 0) &&
+							(rightNodes[d] == null || value.compareTo(rightNodes[d].value) > 0)) {
+						break;
+					}
+					depth--;
+				}
+				if (depth == 0 || path[0] != root) {
+					path[0] = root;
+					leftNodes[0] = null;
+					rightNodes[0] = null;
+					depth = 1;
+				}
+				PaVTNode<K, V> node = path[depth - 1];
+				PaVTNode<K, V> leftNode = leftNodes[depth - 1];
+				PaVTNode<K, V> rightNode = rightNodes[depth - 1];
+				PaVTNode<K, V> child;
+				int res = depth == 1? -1 : value.compareTo(node.value);
+				while (true) {
+					if (res == 0) break;
+					if (res < 0) {
+						leftNode = node;
+						child = node.left;
+					} else {
+						rightNode = node;
+						child = node.right;
+					}
+					if (child == null) {
+						break;
+					}
+					node = child;
+					if (depth == path.length) {
+						path = Arrays.copyOf(path, depth * 2);
+						leftNodes = Arrays.copyOf(leftNodes, depth * 2);
+						rightNodes = Arrays.copyOf(rightNodes, depth * 2);
+					}
+					path[depth] = node;
+					leftNodes[depth] = leftNode;
+					rightNodes[depth] = rightNode;
+					depth++;
+					res = value.compareTo(node.value);
+				}
+				if (res == 0) {
+					results[i] = !node.routing;
+					if (results[i]) found++;
+					break;
+				}
+				PaVTNode<K, V> upperNode = res < 0? node.leftSnapshot : node.rightSnapshot;
+				if ((res < 0 && value.compareTo(upperNode.value) <= 0) || (res > 0 && value.compareTo(upperNode.value) >= 0)) {
+					depth = 0;
+					continue;
+				}
+				results[i] = false;
+				break;
+			}
+		}
+		return found;
+	}
+
+	/**
+	 * Replaces the tree with an empty one, in constant time.
+	 * Operations that began before the clear complete on the old tree, and
+	 * are therefore linearized before it.
+	 */
+	public void clear() {
+		init(rightSentinel.value, leftSentinel.value);
+	}
+
+	/**
+	 * Returns the number of failed operations that were retried from a node
+	 * near the point of failure, instead of from the root.
+	 *
+	 * @return The number of local restarts
+	 */
+	public long localRestarts() {
+		return localRestarts.sum();
+	}
+
+	/**
+	 * Returns the number of failed operations that were retried from the root.
+	 *
+	 * @return The number of restarts from the root
+	 */
+	public long rootRestarts() {
+		return rootRestarts.sum();
+	}
+
+	/**
+	 * Returns the number of routing nodes that were unlinked after they were
+	 * left with fewer than two children.
+	 *
+	 * @return The number of unlinked routing nodes
+	 */
+	public long unlinkedRoutingNodes() {
+		return unlinkedRoutingNodes.sum();
+	}
+
+	/**
+	 * Returns the strategy by which failed attempts to lock or validate are
+	 * retried, whose counters report the tree's retries.
+	 *
+	 * @return The backoff strategy
+	 */
+	public Backoff backoff() {
+		return backoff;
+	}
+
+	/**
+	 * Set the strategy by which failed attempts to lock or validate are
+	 * retried. Operations in progress complete with the previous strategy.
+	 *
+	 * @param backoff The backoff strategy
+	 */
+	public void setBackoff(final Backoff backoff) {
+		if (backoff == null) throw new NullPointerException();
+		this.backoff = backoff;
+	}
+
+	/**
+	 * Returns the recorder of the latencies of the tree's sampled lookups,
+	 * insertions and removals.
+	 * 
+	 * @return The recorder, or null if the latencies are not recorded
+	 */
+	public LatencyRecorder latencyRecorder() {
+		return latencies;
+	}
+
+	/**
+	 * Set the recorder of the latencies of the tree's sampled lookups, 
+	 * insertions and removals. A recorder may be shared by several trees.
+	 * 
+	 * @param latencies The recorder, or null to stop recording
+	 */
+	public void setLatencyRecorder(final LatencyRecorder latencies) {
+		this.latencies = latencies;
+	}
+
+	/**
+	 * Returns the number of keys in the tree, which excludes the routing
+	 * nodes, by walking the snapshot chain without recursion.
+	 *
+	 * @return The number of keys
+	 */
+	public int size() {
+		final PaVTNode<K, V> root = this.root;
+		int size = 0;
+		for (PaVTNode<K, V> n = root.parent.rightSnapshot; n != root; n = n.rightSnapshot) {
+			if (!n.routing) size++;
+		}
+		return size;
+	}
+
+	/**
+	 * Returns the number of routing nodes in the tree, by walking the
+	 * snapshot chain without recursion.
+	 *
+	 * @return The number of routing nodes
+	 */
+	public int routingNodes() {
+		final PaVTNode<K, V> root = this.root;
+		int routingNodes = 0;
+		for (PaVTNode<K, V> n = root.parent.rightSnapshot; n != root; n = n.rightSnapshot) {
+			if (n.routing) routingNodes++;
+		}
+		return routingNodes;
+	}
+
+	class PaVTNode<K, V> {
+
+		public final K value;
+		/** The item, which is replaced only when a routing node becomes a regular node. */
+		public volatile Object item;
+		public volatile PaVTNode<K, V> leftSnapshot;
+		public volatile PaVTNode<K, V> rightSnapshot;
+
+		public volatile boolean marked = false;
+
+		/** Is the node's key absent, so that the node only directs traversals? */
+		public volatile boolean routing = false;
+
+		public PaVTNode<K, V> parent;
+		public volatile PaVTNode<K, V> right;
+		public volatile PaVTNode<K, V> left;
+
+		/** The node's lock. */
+		private final Lock lock = locking.newLock();
+
+		public PaVTNode(K value) {
+			this(value, null);
+		}
+
+		public PaVTNode(K value, Object item) {
+			this.value = value;
+			this.item = item;
+		}
+
+		public PaVTNode(K val, V item2, PaVTNode<K, V> parent,
+				PaVTNode<K, V> leftSnapshot, PaVTNode<K, V> rightSnapshot) {
+			this(val, item2);
+			this.parent = parent;
+			this.leftSnapshot = leftSnapshot;
+			this.rightSnapshot = rightSnapshot;
+		}
+
+		/**
+		 * Lock the node.
+		 */
+		public void lock() {
+			lock.lock();
+		}
+
+		/**
+		 * Release the node's lock.
+		 */
+		public void unlock() {
+			lock.unlock();
+		}
+
+		@Override
+		public String toString() {
+			String delimiter = "  ";
+			StringBuilder sb = new StringBuilder();
+			return sb.append(value + (marked? "(marked)" : "") + (routing? "(routing)" : "") + delimiter).toString();
+		}
+
+	}
+
+}
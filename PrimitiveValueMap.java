@@ -0,0 +1,218 @@
+package trees.logicalordering;
+
+import java.util.Comparator;
+import java.util.concurrent.atomic.AtomicLongFieldUpdater;
+
+import trees.Backoff;
+
+/**
+ * The common part of the maps whose values are primitives, which are kept
+ * in a {@link LogicalOrderingAVL} tree whose items are mutable cells.
+ * A cell is allocated when its key is inserted, and its value is then
+ * updated in place by a compare-and-set of its bits, without locking and
+ * without allocating a boxed value. Only insertions and removals of keys
+ * lock the tree.
+ *
+ * A removal first seals the key's cell, by setting its bits to a reserved
+ * pattern, and then removes the cell from the tree; the removal takes
+ * effect when the cell is sealed, so an update never changes the cell of a
+ * removed key. An update that finds a sealed cell waits until it is removed,
+ * and inserts a new one.
+ *
+ * @param <K> The keys' type
+ */
+abstract class PrimitiveValueMap<K> {
+
+	/** The tree, whose items are the values' cells. */
+	final LogicalOrderingAVL<K,Cell> tree;
+
+	/** The bits of a sealed cell, which no value is encoded to. */
+	private final long sealed;
+
+	/**
+	 * Constructor, create an empty map.
+	 *
+	 * @param min The minimal value
+	 * @param max The maximal value
+	 * @param comparator The keys' comparator, or null if the keys are
+	 * {@link Comparable}
+	 * @param sealed The bits of a sealed cell
+	 */
+	PrimitiveValueMap(final K min, final K max, final Comparator<? super K> comparator, final long sealed) {
+		tree = new LogicalOrderingAVL<K,Cell>(min, max, comparator);
+		this.sealed = sealed;
+	}
+
+	/**
+	 * Returns whether the map contains the given key.
+	 *
+	 * @param key The key
+	 * @return true if the map contains the key, and false otherwise
+	 */
+	public boolean containsKey(final K key) {
+		final Cell cell = tree.get(key);
+		return cell != null && cell.bits != sealed;
+	}
+
+	/**
+	 * Returns the number of keys in the map. A key whose removal is in
+	 * progress may be counted.
+	 *
+	 * @return The number of keys
+	 */
+	public int size() {
+		return tree.size();
+	}
+
+	/**
+	 * Returns whether the map is empty.
+	 *
+	 * @return true if the map contains no keys, and false otherwise
+	 */
+	public boolean isEmpty() {
+		return size() == 0;
+	}
+
+	/**
+	 * Remove all the keys, as {@link LogicalOrderingAVL#clear}. Updates that
+	 * began before the clear may complete on the previous cells, and are
+	 * therefore linearized before it.
+	 */
+	public void clear() {
+		tree.clear();
+	}
+
+	/**
+	 * Returns the bits of the value of the given key.
+	 *
+	 * @param key The key
+	 * @param absent The bits to return if the key is absent
+	 * @return The value's bits, or {@code absent}
+	 */
+	final long getBits(final K key, final long absent) {
+		final Cell cell = tree.get(key);
+		if (cell == null) return absent;
+		final long bits = cell.bits;
+		return bits == sealed? absent : bits;
+	}
+
+	/**
+	 * Set the bits of the value of the given key, inserting the key if it is
+	 * absent.
+	 *
+	 * @param key The key
+	 * @param bits The value's bits
+	 * @param absent The bits to return if the key was absent
+	 * @return The previous value's bits, or {@code absent}
+	 */
+	final long putBits(final K key, final long bits, final long absent) {
+		final Backoff backoff = tree.backoff();
+		for (int attempt = 0; ; attempt++) {
+			backoff.backoff(attempt);
+			final Cell cell = tree.get(key);
+			if (cell == null) {
+				if (tree.putIfAbsent(key, new Cell(bits)) == null) return absent;
+				continue;
+			}
+			final long previous = cell.bits;
+			if (previous != sealed && cell.compareAndSet(previous, bits)) return previous;
+		}
+	}
+
+	/**
+	 * Set the bits of the value of the given key, if they equal the expected
+	 * bits. An absent key has no bits.
+	 *
+	 * @param key The key
+	 * @param expect The expected bits
+	 * @param update The new bits
+	 * @return true if the bits were set, and false otherwise
+	 */
+	final boolean compareAndSetBits(final K key, final long expect, final long update) {
+		final Cell cell = tree.get(key);
+		return cell != null && expect != sealed && cell.compareAndSet(expect, update);
+	}
+
+	/**
+	 * Returns the cell of the given key, inserting one with the given bits if
+	 * the key is absent, or null if it was inserted. A sealed cell is
+	 * returned, and should be retried.
+	 *
+	 * @param key The key
+	 * @param bits The bits of a new cell
+	 * @return The key's cell, or null if a new cell was inserted
+	 */
+	final Cell cellOrInsert(final K key, final long bits) {
+		final Backoff backoff = tree.backoff();
+		for (int attempt = 0; ; attempt++) {
+			backoff.backoff(attempt);
+			final Cell cell = tree.get(key);
+			if (cell != null) return cell;
+			if (tree.putIfAbsent(key, new Cell(bits)) == null) return null;
+		}
+	}
+
+	/**
+	 * Returns whether the given bits are those of a sealed cell.
+	 *
+	 * @param bits The bits
+	 * @return true if the bits seal a cell, and false otherwise
+	 */
+	final boolean isSealed(final long bits) {
+		return bits == sealed;
+	}
+
+	/**
+	 * Remove the given key.
+	 *
+	 * @param key The key
+	 * @param absent The bits to return if the key is absent
+	 * @return The removed value's bits, or {@code absent}
+	 */
+	final long removeBits(final K key, final long absent) {
+		while (true) {
+			final Cell cell = tree.get(key);
+			if (cell == null) return absent;
+			final long bits = cell.bits;
+			// a sealed key is already removed
+			if (bits == sealed) return absent;
+			if (cell.compareAndSet(bits, sealed)) {
+				tree.remove(key, cell);
+				return bits;
+			}
+		}
+	}
+
+	/**
+	 * The mutable cell of a value, which is compared by its identity.
+	 */
+	static final class Cell {
+
+		/** The updater of {@code bits}. */
+		private static final AtomicLongFieldUpdater<Cell> BITS =
+				AtomicLongFieldUpdater.newUpdater(Cell.class, "bits");
+
+		/** The bits of the value. */
+		volatile long bits;
+
+		/**
+		 * Constructor, create a cell.
+		 *
+		 * @param bits The bits of the value
+		 */
+		Cell(final long bits) {
+			this.bits = bits;
+		}
+
+		/**
+		 * Set the bits if they equal the expected ones.
+		 *
+		 * @param expect The expected bits
+		 * @param update The new bits
+		 * @return true if the bits were set, and false otherwise
+		 */
+		boolean compareAndSet(final long expect, final long update) {
+			return BITS.compareAndSet(this, expect, update);
+		}
+	}
+}
@@ -0,0 +1,601 @@
+package trees.logicalordering;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.locks.StampedLock;
+
+/**
+ * A concurrent map that partitions its keys by ranges into several
+ * independent {@link LogicalOrderingAVL} trees (shards), so that writes to
+ * different ranges do not contend on the same tree.
+ *
+ * The ranges are defined by an immutable routing table of splitter keys,
+ * and a key is routed to its shard by a binary search. The operations hold
+ * the read lock of their shard (lookups read it optimistically), and
+ * validate that the routing table did not change. The shards are rebalanced
+ * online by {@link #rebalance}, which moves the entries of a range between
+ * two shards while holding their write locks, so only the operations on
+ * these two shards wait.
+ *
+ * Iteration visits the shards in the order of their ranges, and is
+ * therefore ordered. It is weakly consistent, like the iteration of a
+ * single tree; an entry that is moved by a concurrent rebalance may be
+ * missed.
+ *
+ * @param <K> The keys' type
+ * @param <V> The items' type
+ */
+public class ShardedLogicalOrderingMap<K, V> extends AbstractMap<K,V> implements ConcurrentMap<K,V> {
+
+	/**
+	 * The fraction of the average shard size by which a shard may deviate
+	 * from it before {@link #rebalance} moves its entries.
+	 */
+	private final static int REBALANCE_SLACK = 8;
+
+	/** The minimal value. */
+	private final K min;
+
+	/** The maximal value. */
+	private final K max;
+
+	/** The keys' comparator, or null if the keys are {@link Comparable}. */
+	private final Comparator<? super K> comparator;
+
+	/** The number of shards that {@link #rebalance} splits the keys into. */
+	private final int shards;
+
+	/** The current routing table. */
+	private volatile Routing routing;
+
+	/**
+	 * Constructor, create a map with a single shard, which is split by
+	 * {@link #rebalance} into the given number of shards.
+	 *
+	 * @param min The minimal value
+	 * @param max The maximal value
+	 * @param comparator The keys' comparator, or null if the keys are
+	 * {@link Comparable}
+	 * @param shards The number of shards
+	 */
+	public ShardedLogicalOrderingMap(final K min, final K max, final Comparator<? super K> comparator,
+			final int shards) {
+		this(min, max, comparator, shards, new ArrayList<K>());
+	}
+
+	/**
+	 * Constructor, create a map whose shards are split by splitters chosen
+	 * from the given sample of keys, so that every shard receives a similar
+	 * share of the sampled keys.
+	 *
+	 * @param min The minimal value
+	 * @param max The maximal value
+	 * @param comparator The keys' comparator, or null if the keys are
+	 * {@link Comparable}
+	 * @param shards The number of shards
+	 * @param sample The sample of keys
+	 */
+	@SuppressWarnings({"unchecked", "rawtypes"})
+	public ShardedLogicalOrderingMap(final K min, final K max, final Comparator<? super K> comparator,
+			final int shards, final Collection<? extends K> sample) {
+		if (shards <= 0) throw new IllegalArgumentException();
+		this.min = min;
+		this.max = max;
+		this.comparator = comparator;
+		this.shards = shards;
+		final K[] keys = (K[]) sample.toArray();
+		Arrays.sort(keys, (Comparator<Object>) (Comparator<?>) comparator);
+		final List<K> splitters = new ArrayList<K>();
+		for (int i = 1; i < shards; i++) {
+			final K splitter = keys.length == 0 ? null : keys[(int) ((long) i * keys.length / shards)];
+			if (splitter != null && (splitters.isEmpty() ||
+					compare(splitter, splitters.get(splitters.size() - 1)) > 0)) {
+				splitters.add(splitter);
+			}
+		}
+		final Shard[] table = new ShardedLogicalOrderingMap.Shard[splitters.size() + 1];
+		for (int i = 0; i < table.length; i++) {
+			table[i] = new Shard();
+		}
+		routing = new Routing((K[]) splitters.toArray(), table);
+	}
+
+	/**
+	 * Compares the given key with the given key.
+	 *
+	 * @param key The first key
+	 * @param other The second key
+	 * @return A negative number, zero, or a positive number if the first key
+	 * is smaller than, equal to, or greater than the second key
+	 */
+	@SuppressWarnings("unchecked")
+	private int compare(final Object key, final K other) {
+		if (key == null) throw new NullPointerException();
+		if (comparator == null) return ((Comparable<? super K>) key).compareTo(other);
+		return comparator.compare((K) key, other);
+	}
+
+	/**
+	 * @see java.util.Map#get(java.lang.Object)
+	 */
+	@Override
+	public V get(final Object key) {
+		final Routing routing = this.routing;
+		final Shard shard = routing.shards[routing.index(key)];
+		final long stamp = shard.lock.tryOptimisticRead();
+		if (stamp != 0 && routing == this.routing) {
+			final V item = shard.tree.get(key);
+			if (shard.lock.validate(stamp)) return item;
+		}
+		while (true) {
+			final Routing current = this.routing;
+			final Shard locked = current.shards[current.index(key)];
+			final long readStamp = locked.lock.readLock();
+			try {
+				if (current == this.routing) return locked.tree.get(key);
+			} finally {
+				locked.lock.unlockRead(readStamp);
+			}
+		}
+	}
+
+	/**
+	 * @see java.util.Map#containsKey(java.lang.Object)
+	 */
+	@Override
+	public boolean containsKey(final Object key) {
+		return get(key) != null;
+	}
+
+	/**
+	 * @see java.util.Map#put(java.lang.Object, java.lang.Object)
+	 */
+	@Override
+	public V put(final K key, final V value) {
+		while (true) {
+			final Routing routing = this.routing;
+			final Shard shard = routing.shards[routing.index(key)];
+			final long stamp = shard.lock.readLock();
+			try {
+				if (routing == this.routing) return shard.tree.put(key, value);
+			} finally {
+				shard.lock.unlockRead(stamp);
+			}
+		}
+	}
+
+	/**
+	 * @see java.util.concurrent.ConcurrentMap#putIfAbsent(java.lang.Object, java.lang.Object)
+	 */
+	@Override
+	public V putIfAbsent(final K key, final V value) {
+		while (true) {
+			final Routing routing = this.routing;
+			final Shard shard = routing.shards[routing.index(key)];
+			final long stamp = shard.lock.readLock();
+			try {
+				if (routing == this.routing) return shard.tree.putIfAbsent(key, value);
+			} finally {
+				shard.lock.unlockRead(stamp);
+			}
+		}
+	}
+
+	/**
+	 * @see java.util.concurrent.ConcurrentMap#replace(java.lang.Object, java.lang.Object)
+	 */
+	@Override
+	public V replace(final K key, final V value) {
+		while (true) {
+			final Routing routing = this.routing;
+			final Shard shard = routing.shards[routing.index(key)];
+			final long stamp = shard.lock.readLock();
+			try {
+				if (routing == this.routing) return shard.tree.replace(key, value);
+			} finally {
+				shard.lock.unlockRead(stamp);
+			}
+		}
+	}
+
+	/**
+	 * @see java.util.concurrent.ConcurrentMap#replace(java.lang.Object, java.lang.Object, java.lang.Object)
+	 */
+	@Override
+	public boolean replace(final K key, final V oldValue, final V newValue) {
+		while (true) {
+			final Routing routing = this.routing;
+			final Shard shard = routing.shards[routing.index(key)];
+			final long stamp = shard.lock.readLock();
+			try {
+				if (routing == this.routing) return shard.tree.replace(key, oldValue, newValue);
+			} finally {
+				shard.lock.unlockRead(stamp);
+			}
+		}
+	}
+
+	/**
+	 * @see java.util.Map#remove(java.lang.Object)
+	 */
+	@Override
+	public V remove(final Object key) {
+		while (true) {
+			final Routing routing = this.routing;
+			final Shard shard = routing.shards[routing.index(key)];
+			final long stamp = shard.lock.readLock();
+			try {
+				if (routing == this.routing) return shard.tree.remove(key);
+			} finally {
+				shard.lock.unlockRead(stamp);
+			}
+		}
+	}
+
+	/**
+	 * @see java.util.concurrent.ConcurrentMap#remove(java.lang.Object, java.lang.Object)
+	 */
+	@Override
+	public boolean remove(final Object key, final Object value) {
+		while (true) {
+			final Routing routing = this.routing;
+			final Shard shard = routing.shards[routing.index(key)];
+			final long stamp = shard.lock.readLock();
+			try {
+				if (routing == this.routing) return shard.tree.remove(key, value);
+			} finally {
+				shard.lock.unlockRead(stamp);
+			}
+		}
+	}
+
+	/**
+	 * @see java.util.AbstractMap#size()
+	 */
+	@Override
+	public int size() {
+		long size = 0;
+		for (Shard shard : routing.shards) {
+			size += shard.tree.size();
+		}
+		return (int) Math.min(size, Integer.MAX_VALUE);
+	}
+
+	/**
+	 * @see java.util.AbstractMap#isEmpty()
+	 */
+	@Override
+	public boolean isEmpty() {
+		for (Shard shard : routing.shards) {
+			if (!shard.tree.isEmpty()) return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Clears the shards one by one; the clear is therefore not atomic.
+	 *
+	 * @see java.util.AbstractMap#clear()
+	 */
+	@Override
+	public void clear() {
+		for (Shard shard : routing.shards) {
+			final long stamp = shard.lock.readLock();
+			try {
+				shard.tree.clear();
+			} finally {
+				shard.lock.unlockRead(stamp);
+			}
+		}
+	}
+
+	/**
+	 * @return The number of shards
+	 */
+	public int shards() {
+		return routing.shards.length;
+	}
+
+	/**
+	 * Rebalances the shards online. Shards are first split, largest first,
+	 * until there are as many shards as requested upon creation; then the
+	 * boundary between every two adjacent shards is moved, from the smallest
+	 * keys to the largest ones, so that the first shard of the two holds the
+	 * average number of keys, if it deviates from it by more than
+	 * 1/{@value #REBALANCE_SLACK} of the average.
+	 * Moving a boundary holds the write locks of the two shards while the
+	 * entries between the old and the new boundary are moved.
+	 *
+	 * @return The number of moved entries
+	 */
+	public synchronized int rebalance() {
+		int moved = 0;
+		while (routing.shards.length < shards) {
+			final Shard[] table = routing.shards;
+			int largest = 0;
+			for (int i = 1; i < table.length; i++) {
+				if (table[i].tree.size() > table[largest].tree.size()) largest = i;
+			}
+			if (table[largest].tree.size() < 2) break;
+			moved += split(largest);
+		}
+		final int target = size() / routing.shards.length;
+		for (int i = 0; i < routing.shards.length - 1; i++) {
+			moved += shift(i, target, target / REBALANCE_SLACK);
+		}
+		return moved;
+	}
+
+	/**
+	 * Splits the given shard at its median key, and moves the upper half of
+	 * its keys to a new shard.
+	 *
+	 * @param index The shard's index
+	 * @return The number of moved entries
+	 */
+	private int split(final int index) {
+		final Shard shard = routing.shards[index];
+		final long stamp = shard.lock.writeLock();
+		try {
+			final int size = shard.tree.size();
+			if (size < 2) return 0;
+			final K splitter = keyAt(shard, size / 2);
+			final Shard upper = new Shard();
+			final int moved = copy(shard, upper, splitter, null);
+			routing = routing.split(index, splitter, upper);
+			shard.tree.removeEach(splitter, max);
+			return moved;
+		} finally {
+			shard.lock.unlockWrite(stamp);
+		}
+	}
+
+	/**
+	 * Moves the boundary between the given shard and the following one, so
+	 * that the given shard holds the target number of keys.
+	 *
+	 * @param index The index of the shard
+	 * @param target The target number of keys
+	 * @param slack The deviation from the target that is tolerated
+	 * @return The number of moved entries
+	 */
+	private int shift(final int index, final int target, final int slack) {
+		final Shard lower = routing.shards[index];
+		final Shard upper = routing.shards[index + 1];
+		final long lowerStamp = lower.lock.writeLock();
+		final long upperStamp = upper.lock.writeLock();
+		try {
+			final int lowerSize = lower.tree.size();
+			if (lowerSize > target + slack) {
+				final K splitter = keyAt(lower, target);
+				final int moved = copy(lower, upper, splitter, null);
+				routing = routing.shift(index, splitter);
+				lower.tree.removeEach(splitter, max);
+				return moved;
+			}
+			final int count = Math.min(target - lowerSize, upper.tree.size() - 1);
+			if (lowerSize < target - slack && count > 0) {
+				final K splitter = keyAt(upper, count);
+				final int moved = copy(upper, lower, null, splitter);
+				routing = routing.shift(index, splitter);
+				upper.tree.removeEachBefore(splitter);
+				return moved;
+			}
+			return 0;
+		} finally {
+			upper.lock.unlockWrite(upperStamp);
+			lower.lock.unlockWrite(lowerStamp);
+		}
+	}
+
+	/**
+	 * Returns the key of the given rank in the given shard, whose write lock
+	 * is held.
+	 *
+	 * @param shard The shard
+	 * @param rank The rank
+	 * @return The key
+	 */
+	private K keyAt(final Shard shard, int rank) {
+		final Iterator<K> keys = shard.tree.keySet().iterator();
+		K key = keys.next();
+		while (rank-- > 0) {
+			key = keys.next();
+		}
+		return key;
+	}
+
+	/**
+	 * Copies the entries in the given range from one shard to another, while
+	 * holding the write locks of both.
+	 *
+	 * @param source The shard to copy from
+	 * @param target The shard to copy to
+	 * @param from The lowest key to copy, or null
+	 * @param to The key to stop at, or null
+	 * @return The number of copied entries
+	 */
+	private int copy(final Shard source, final Shard target, final K from, final K to) {
+		int copied = 0;
+		try (LogicalOrderingAVL<K,V>.Snapshot snapshot = source.tree.snapshot()) {
+			final Iterator<Map.Entry<K,V>> entries = snapshot.iterator(from, to);
+			while (entries.hasNext()) {
+				final Map.Entry<K,V> entry = entries.next();
+				target.tree.put(entry.getKey(), entry.getValue());
+				copied++;
+			}
+		}
+		return copied;
+	}
+
+	/**
+	 * @see java.util.AbstractMap#entrySet()
+	 */
+	@Override
+	public Set<Map.Entry<K,V>> entrySet() {
+		return new AbstractSet<Map.Entry<K,V>>() {
+
+			@Override
+			public int size() {
+				return ShardedLogicalOrderingMap.this.size();
+			}
+
+			@Override
+			public boolean isEmpty() {
+				return ShardedLogicalOrderingMap.this.isEmpty();
+			}
+
+			@Override
+			public Iterator<Map.Entry<K,V>> iterator() {
+				return new Iterator<Map.Entry<K,V>>() {
+
+					/** The shards, in the order of their ranges. */
+					private final Shard[] table = routing.shards;
+
+					/** The index of the current shard. */
+					private int index = -1;
+
+					/** The iterator of the current shard. */
+					private Iterator<Map.Entry<K,V>> entries;
+
+					/** The next entry, or null. */
+					private Map.Entry<K,V> next;
+
+					/** The last returned entry, or null. */
+					private Map.Entry<K,V> last;
+
+					@Override
+					public boolean hasNext() {
+						while (next == null) {
+							if (entries != null && entries.hasNext()) {
+								final Map.Entry<K,V> entry = entries.next();
+								// an entry that was moved forward by a rebalance
+								if (last != null && compare(entry.getKey(), last.getKey()) <= 0) continue;
+								next = entry;
+							} else if (index + 1 < table.length) {
+								entries = table[++index].tree.entrySet().iterator();
+							} else {
+								return false;
+							}
+						}
+						return true;
+					}
+
+					@Override
+					public Map.Entry<K,V> next() {
+						if (!hasNext()) throw new NoSuchElementException();
+						last = next;
+						next = null;
+						return last;
+					}
+
+					@Override
+					public void remove() {
+						if (last == null) throw new IllegalStateException();
+						ShardedLogicalOrderingMap.this.remove(last.getKey());
+					}
+				};
+			}
+		};
+	}
+
+	/**
+	 * A shard: a tree and the lock that protects its range.
+	 */
+	private class Shard {
+
+		/** The shard's tree. */
+		final LogicalOrderingAVL<K,V> tree = new LogicalOrderingAVL<K,V>(min, max, comparator);
+
+		/**
+		 * The lock of the shard's range. The operations hold its read lock,
+		 * and the rebalance holds its write lock while moving entries.
+		 */
+		final StampedLock lock = new StampedLock();
+	}
+
+	/**
+	 * An immutable routing table, which maps the ranges of keys to shards.
+	 */
+	private class Routing {
+
+		/** The smallest key of every shard but the first, in ascending order. */
+		final K[] splitters;
+
+		/** The shards, in the order of their ranges. */
+		final Shard[] shards;
+
+		/**
+		 * Constructor, create a new routing table.
+		 *
+		 * @param splitters The smallest key of every shard but the first
+		 * @param shards The shards
+		 */
+		Routing(final K[] splitters, final Shard[] shards) {
+			this.splitters = splitters;
+			this.shards = shards;
+		}
+
+		/**
+		 * Returns the index of the shard of the given key.
+		 *
+		 * @param key The key
+		 * @return The index of the shard
+		 */
+		int index(final Object key) {
+			int low = 0;
+			int high = splitters.length;
+			while (low < high) {
+				final int middle = (low + high) >>> 1;
+				if (compare(key, splitters[middle]) >= 0) {
+					low = middle + 1;
+				} else {
+					high = middle;
+				}
+			}
+			return low;
+		}
+
+		/**
+		 * Returns a routing table in which the given shard is split.
+		 *
+		 * @param index The index of the split shard
+		 * @param splitter The smallest key of the new shard
+		 * @param shard The new shard, which follows the split shard
+		 * @return The new routing table
+		 */
+		Routing split(final int index, final K splitter, final Shard shard) {
+			final K[] splitters = Arrays.copyOf(this.splitters, this.splitters.length + 1);
+			System.arraycopy(this.splitters, index, splitters, index + 1, this.splitters.length - index);
+			splitters[index] = splitter;
+			final Shard[] shards = Arrays.copyOf(this.shards, this.shards.length + 1);
+			System.arraycopy(this.shards, index + 1, shards, index + 2, this.shards.length - index - 1);
+			shards[index + 1] = shard;
+			return new Routing(splitters, shards);
+		}
+
+		/**
+		 * Returns a routing table in which the boundary between the given
+		 * shard and the following one is moved.
+		 *
+		 * @param index The index of the shard
+		 * @param splitter The smallest key of the following shard
+		 * @return The new routing table
+		 */
+		Routing shift(final int index, final K splitter) {
+			final K[] splitters = this.splitters.clone();
+			splitters[index] = splitter;
+			return new Routing(splitters, shards);
+		}
+	}
+}
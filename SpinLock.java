@@ -0,0 +1,111 @@
+package trees.pavt;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+
+/**
+ * A reentrant lock that is acquired by a compare-and-set of its owner.
+ * A thread that finds the lock held spins for a short while, and then
+ * yields between attempts. Since it never blocks on a monitor, a virtual
+ * thread that waits for the lock unmounts from its carrier when it yields.
+ *
+ * The lock is meant for the short critical sections of the trees' nodes,
+ * and does not support conditions.
+ */
+public final class SpinLock implements Lock {
+
+	/** The number of attempts before a waiting thread begins to yield. */
+	private final static int SPINS = 1 << 6;
+
+	/** The thread that holds the lock, or null. */
+	private final AtomicReference<Thread> owner = new AtomicReference<Thread>();
+
+	/** The number of times the owner acquired the lock, accessed only by the owner. */
+	private int holds;
+
+	@Override
+	public void lock() {
+		final Thread current = Thread.currentThread();
+		if (owner.get() == current) {
+			holds++;
+			return;
+		}
+		for (int spins = 0; !owner.compareAndSet(null, current); spins++) {
+			if (spins < SPINS) {
+				Thread.onSpinWait();
+			} else {
+				Thread.yield();
+			}
+		}
+		holds = 1;
+	}
+
+	@Override
+	public void lockInterruptibly() throws InterruptedException {
+		final Thread current = Thread.currentThread();
+		if (owner.get() == current) {
+			holds++;
+			return;
+		}
+		for (int spins = 0; !owner.compareAndSet(null, current); spins++) {
+			if (Thread.interrupted()) throw new InterruptedException();
+			if (spins < SPINS) {
+				Thread.onSpinWait();
+			} else {
+				Thread.yield();
+			}
+		}
+		holds = 1;
+	}
+
+	@Override
+	public boolean tryLock() {
+		final Thread current = Thread.currentThread();
+		if (owner.get() == current) {
+			holds++;
+			return true;
+		}
+		if (!owner.compareAndSet(null, current)) return false;
+		holds = 1;
+		return true;
+	}
+
+	@Override
+	public boolean tryLock(final long time, final TimeUnit unit) throws InterruptedException {
+		final long deadline = System.nanoTime() + unit.toNanos(time);
+		while (!tryLock()) {
+			if (Thread.interrupted()) throw new InterruptedException();
+			if (System.nanoTime() - deadline >= 0) return false;
+			Thread.yield();
+		}
+		return true;
+	}
+
+	@Override
+	public void unlock() {
+		if (owner.get() != Thread.currentThread()) {
+			throw new IllegalMonitorStateException();
+		}
+		if (--holds == 0) {
+			owner.set(null);
+		}
+	}
+
+	/**
+	 * Conditions are not supported.
+	 *
+	 * @throws UnsupportedOperationException Always
+	 */
+	@Override
+	public Condition newCondition() {
+		throw new UnsupportedOperationException();
+	}
+
+	@Override
+	public String toString() {
+		final Thread o = owner.get();
+		return super.toString() + (o == null? "[Unlocked]" : "[Locked by thread " + o.getName() + "]");
+	}
+}
@@ -0,0 +1,217 @@
+package trees;
+
+import java.util.Arrays;
+
+/**
+ * Statistics of the shape of a tree: the depths of its searches, the balance
+ * factors and the validity of its nodes, and the number of nodes in its tree
+ * layout and in its ordered list (the ordering layout of
+ * {@link trees.logicalordering.LogicalOrderingAVL}, or the snapshot chain of
+ * the PaVT trees).
+ *
+ * The statistics are gathered either by a full walk of the tree, or by a
+ * number of random descents from the root, which cost time proportional to
+ * the tree's height each, and do not count the nodes. A search depth is the
+ * number of nodes a search for an absent key visits before it reaches a
+ * missing child; a full walk measures every missing child, while a descent
+ * measures the one it reaches, so the sampled depths favor the shallow
+ * parts of the tree. The balance factors and the states of the nodes are
+ * those of the nodes that were visited. A visited node is either valid, that
+ * is, of a present key, invalid (marked), deleted (left in place by a lazy
+ * removal until it is unlinked by maintenance) or expired (whose expiration
+ * time passed, but which was not removed yet); the last two count the
+ * removed keys that still occupy nodes. The walks do not lock, so the
+ * statistics of a tree that is updated concurrently are approximate.
+ */
+public class TreeStats {
+
+	/** The largest balance factor that has its own entry in the histogram. */
+	public final static int MAX_BALANCE_FACTOR = 3;
+
+	/** The number of searches that were measured. */
+	private final long searches;
+
+	/** The sum of the depths of the measured searches. */
+	private final long totalDepth;
+
+	/** The maximal depth of a measured search. */
+	private final int maxDepth;
+
+	/**
+	 * The number of visited nodes by balance factor, from
+	 * {@code -MAX_BALANCE_FACTOR} to {@code MAX_BALANCE_FACTOR}; the extreme
+	 * entries count the larger factors as well.
+	 */
+	private final long[] balanceFactors;
+
+	/** The number of visited nodes that are valid, of present keys. */
+	private final long validNodes;
+
+	/** The number of visited nodes that are invalid (marked). */
+	private final long invalidNodes;
+
+	/** The number of visited nodes of keys that were removed lazily but not unlinked yet. */
+	private final long deletedNodes;
+
+	/** The number of visited nodes of keys whose expiration time passed, which were not removed yet. */
+	private final long expiredNodes;
+
+	/** The number of nodes in the tree layout, or -1 if they were not counted. */
+	private final long treeNodes;
+
+	/** The number of nodes in the ordered list, or -1 if they were not counted. */
+	private final long listedNodes;
+
+	/**
+	 * Constructor, create statistics of a tree whose keys are removed
+	 * eagerly and do not expire.
+	 *
+	 * @param searches The number of searches that were measured
+	 * @param totalDepth The sum of the depths of the measured searches
+	 * @param maxDepth The maximal depth of a measured search
+	 * @param balanceFactors The number of visited nodes by balance factor, from
+	 * {@code -MAX_BALANCE_FACTOR} to {@code MAX_BALANCE_FACTOR}, or all zeros if
+	 * the tree does not record heights
+	 * @param validNodes The number of visited nodes that are valid
+	 * @param invalidNodes The number of visited nodes that are invalid
+	 * @param treeNodes The number of nodes in the tree layout, or -1 if they were not counted
+	 * @param listedNodes The number of nodes in the ordered list, or -1 if they were not counted
+	 */
+	public TreeStats(final long searches, final long totalDepth, final int maxDepth, final long[] balanceFactors,
+			final long validNodes, final long invalidNodes, final long treeNodes, final long listedNodes) {
+		this(searches, totalDepth, maxDepth, balanceFactors, validNodes, invalidNodes, 0, 0, treeNodes, listedNodes);
+	}
+
+	/**
+	 * Constructor, create statistics.
+	 *
+	 * @param searches The number of searches that were measured
+	 * @param totalDepth The sum of the depths of the measured searches
+	 * @param maxDepth The maximal depth of a measured search
+	 * @param balanceFactors The number of visited nodes by balance factor, from
+	 * {@code -MAX_BALANCE_FACTOR} to {@code MAX_BALANCE_FACTOR}, or all zeros if
+	 * the tree does not record heights
+	 * @param validNodes The number of visited nodes that are valid, of present keys
+	 * @param invalidNodes The number of visited nodes that are invalid
+	 * @param deletedNodes The number of visited nodes of keys that were removed lazily
+	 * @param expiredNodes The number of visited nodes of keys whose expiration time passed
+	 * @param treeNodes The number of nodes in the tree layout, or -1 if they were not counted
+	 * @param listedNodes The number of nodes in the ordered list, or -1 if they were not counted
+	 */
+	public TreeStats(final long searches, final long totalDepth, final int maxDepth, final long[] balanceFactors,
+			final long validNodes, final long invalidNodes, final long deletedNodes, final long expiredNodes,
+			final long treeNodes, final long listedNodes) {
+		if (balanceFactors.length != 2 * MAX_BALANCE_FACTOR + 1) throw new IllegalArgumentException();
+		this.searches = searches;
+		this.totalDepth = totalDepth;
+		this.maxDepth = maxDepth;
+		this.balanceFactors = balanceFactors.clone();
+		this.validNodes = validNodes;
+		this.invalidNodes = invalidNodes;
+		this.deletedNodes = deletedNodes;
+		this.expiredNodes = expiredNodes;
+		this.treeNodes = treeNodes;
+		this.listedNodes = listedNodes;
+	}
+
+	/**
+	 * Returns the index of the histogram's entry of the given balance factor.
+	 *
+	 * @param balanceFactor The balance factor
+	 * @return The entry's index
+	 */
+	public static int balanceFactorIndex(final int balanceFactor) {
+		return Math.max(-MAX_BALANCE_FACTOR, Math.min(MAX_BALANCE_FACTOR, balanceFactor)) + MAX_BALANCE_FACTOR;
+	}
+
+	/**
+	 * @return The number of searches that were measured
+	 */
+	public long searches() {
+		return searches;
+	}
+
+	/**
+	 * @return The average depth of the measured searches, or 0 if none was measured
+	 */
+	public double averageDepth() {
+		return searches == 0? 0 : (double) totalDepth / searches;
+	}
+
+	/**
+	 * @return The maximal depth of a measured search
+	 */
+	public int maxDepth() {
+		return maxDepth;
+	}
+
+	/**
+	 * Returns the number of visited nodes whose balance factor is the given
+	 * one, or at least as extreme if it is {@code -MAX_BALANCE_FACTOR} or
+	 * {@code MAX_BALANCE_FACTOR}.
+	 *
+	 * @param balanceFactor The balance factor
+	 * @return The number of nodes
+	 */
+	public long balanceFactorCount(final int balanceFactor) {
+		return balanceFactors[balanceFactorIndex(balanceFactor)];
+	}
+
+	/**
+	 * @return The number of visited nodes by balance factor, from
+	 * {@code -MAX_BALANCE_FACTOR} to {@code MAX_BALANCE_FACTOR}
+	 */
+	public long[] balanceFactors() {
+		return balanceFactors.clone();
+	}
+
+	/**
+	 * @return The number of visited nodes that are valid, of present keys
+	 */
+	public long validNodes() {
+		return validNodes;
+	}
+
+	/**
+	 * @return The number of visited nodes that are invalid (marked)
+	 */
+	public long invalidNodes() {
+		return invalidNodes;
+	}
+
+	/**
+	 * @return The number of visited nodes of keys that were removed lazily but not unlinked yet
+	 */
+	public long deletedNodes() {
+		return deletedNodes;
+	}
+
+	/**
+	 * @return The number of visited nodes of keys whose expiration time passed, which were not removed yet
+	 */
+	public long expiredNodes() {
+		return expiredNodes;
+	}
+
+	/**
+	 * @return The number of nodes in the tree layout, or -1 if they were not counted
+	 */
+	public long treeNodes() {
+		return treeNodes;
+	}
+
+	/**
+	 * @return The number of nodes in the ordered list, or -1 if they were not counted
+	 */
+	public long listedNodes() {
+		return listedNodes;
+	}
+
+	@Override
+	public String toString() {
+		return "TreeStats[searches=" + searches + ", averageDepth=" + averageDepth() + ", maxDepth=" + maxDepth +
+				", balanceFactors=" + Arrays.toString(balanceFactors) + ", validNodes=" + validNodes +
+				", invalidNodes=" + invalidNodes + ", deletedNodes=" + deletedNodes + ", expiredNodes=" + expiredNodes +
+				", treeNodes=" + treeNodes + ", listedNodes=" + listedNodes + "]";
+	}
+}
@@ -0,0 +1,293 @@
+package trees;
+
+import java.util.Arrays;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * The validation of a sub-tree of a tree, and of the segment of the tree's
+ * ordered list of nodes between the sub-tree's bounds (see
+ * {@link ValidationReport}). The task splits the sub-tree's upper levels into
+ * sub-tasks, and walks the rest in order, iteratively, in step with the
+ * list.
+ *
+ * The trees extend it with the accessors of their nodes. A tree that is
+ * balanced has its recorded heights and its balance checked, against the
+ * heights that the walk computes in post-order; the heights of the nodes of
+ * a tree that is not balanced are not computed.
+ *
+ * @param <N> The nodes' type
+ */
+public abstract class TreeValidation<N> extends RecursiveTask<TreeValidation<N>> {
+
+	private static final long serialVersionUID = 1L;
+
+	/** The root of the sub-tree, or null. */
+	private final N node;
+
+	/** The parent of the sub-tree's root. */
+	private final N parent;
+
+	/** The node that precedes the sub-tree's keys, in the tree and in the list. */
+	private final N lower;
+
+	/** The node that follows the sub-tree's keys, in the tree and in the list. */
+	private final N upper;
+
+	/** The number of levels to split into sub-tasks. */
+	private final int splits;
+
+	/** Is the tree balanced, and does it record the heights of its nodes? */
+	private final boolean balanced;
+
+	/** The counts of the validation, see {@link ValidationReport}. */
+	private long nodes, orderViolations, parentViolations, heightViolations, balanceViolations,
+			asymmetries, unreachable, unlisted;
+
+	/** The height of the sub-tree. */
+	private int height;
+
+	/**
+	 * Constructor, create the validation of a sub-tree.
+	 *
+	 * @param node The root of the sub-tree, or null
+	 * @param parent The parent of the sub-tree's root
+	 * @param lower The node that precedes the sub-tree's keys
+	 * @param upper The node that follows the sub-tree's keys
+	 * @param splits The number of levels to split into sub-tasks
+	 * @param balanced Is the tree balanced, and does it record the heights of its nodes?
+	 */
+	protected TreeValidation(final N node, final N parent, final N lower, final N upper,
+			final int splits, final boolean balanced) {
+		this.node = node;
+		this.parent = parent;
+		this.lower = lower;
+		this.upper = upper;
+		this.splits = splits;
+		this.balanced = balanced;
+	}
+
+	/**
+	 * Returns the validation of another sub-tree of the same tree.
+	 *
+	 * @param node The root of the sub-tree, or null
+	 * @param parent The parent of the sub-tree's root
+	 * @param lower The node that precedes the sub-tree's keys
+	 * @param upper The node that follows the sub-tree's keys
+	 * @param splits The number of levels to split into sub-tasks
+	 * @return The validation
+	 */
+	protected abstract TreeValidation<N> validation(N node, N parent, N lower, N upper, int splits);
+
+	/**
+	 * @param node The node
+	 * @return The node's left child, or null
+	 */
+	protected abstract N left(N node);
+
+	/**
+	 * @param node The node
+	 * @return The node's right child, or null
+	 */
+	protected abstract N right(N node);
+
+	/**
+	 * @param node The node
+	 * @return The node's parent pointer
+	 */
+	protected abstract N parent(N node);
+
+	/**
+	 * @param node The node
+	 * @return The node that follows the given one in the ordered list
+	 */
+	protected abstract N next(N node);
+
+	/**
+	 * @param node The node
+	 * @return The node that precedes the given one in the ordered list
+	 */
+	protected abstract N previous(N node);
+
+	/**
+	 * Returns whether the given node belongs in the ordered list, that is,
+	 * whether it was not removed.
+	 *
+	 * @param node The node
+	 * @return true if the node should be listed, and false otherwise
+	 */
+	protected abstract boolean isListed(N node);
+
+	/**
+	 * Compares the keys of the given nodes.
+	 *
+	 * @param node The first node
+	 * @param other The second node
+	 * @return A negative integer, zero, or a positive integer as the first
+	 * node's key is smaller than, equal to, or greater than the second's
+	 */
+	protected abstract int compare(N node, N other);
+
+	/**
+	 * Returns whether the heights that the given node records are the actual
+	 * ones. Called only if the tree is balanced.
+	 *
+	 * @param node The node
+	 * @param leftHeight The actual height of the node's left sub-tree
+	 * @param rightHeight The actual height of the node's right sub-tree
+	 * @return true if the recorded heights are correct, and false otherwise
+	 */
+	protected boolean hasHeights(final N node, final int leftHeight, final int rightHeight) {
+		return true;
+	}
+
+	/**
+	 * Validates the sub-tree, in the calling thread unless it is split.
+	 *
+	 * @return This validation
+	 */
+	@Override
+	public TreeValidation<N> compute() {
+		if (node == null || splits == 0) {
+			walk();
+			return this;
+		}
+		final TreeValidation<N> left = validation(left(node), node, lower, node, splits - 1);
+		final TreeValidation<N> right = validation(right(node), node, node, upper, splits - 1);
+		invokeAll(left, right);
+		nodes = left.nodes + right.nodes + 1;
+		height = Math.max(left.height, right.height) + 1;
+		orderViolations = left.orderViolations + right.orderViolations;
+		parentViolations = left.parentViolations + right.parentViolations;
+		heightViolations = left.heightViolations + right.heightViolations;
+		balanceViolations = left.balanceViolations + right.balanceViolations;
+		asymmetries = left.asymmetries + right.asymmetries;
+		unreachable = left.unreachable + right.unreachable;
+		unlisted = left.unlisted + right.unlisted;
+		if (parent(node) != parent) parentViolations++;
+		if (compare(node, lower) <= 0 || compare(node, upper) >= 0) orderViolations++;
+		if (balanced) check(node, left.height, right.height);
+		if (!isListed(node) || next(previous(node)) != node) unlisted++;
+		if (previous(next(node)) != node) asymmetries++;
+		return this;
+	}
+
+	/**
+	 * Walk the sub-tree in order, and the list from {@code lower} to
+	 * {@code upper} in step with it. The heights of the nodes of a balanced
+	 * tree are computed in post-order, on the same explicit stack; otherwise
+	 * only the sub-tree's height is, as the depth of the stack.
+	 */
+	@SuppressWarnings("unchecked")
+	private void walk() {
+		Object[] stack = new Object[16];
+		// 0: the left sub-tree is next, 1: the right sub-tree is next, 2: done
+		int[] states = new int[16];
+		int[] leftHeights = balanced ? new int[16] : null;
+		int[] rightHeights = balanced ? new int[16] : null;
+		int top = 0;
+		N listed = next(lower);
+		N previous = lower;
+		if (node != null) {
+			if (parent(node) != parent) parentViolations++;
+			stack[top++] = node;
+			if (!balanced) height = 1;
+		}
+		while (top > 0) {
+			final N current = (N) stack[top - 1];
+			final int state = states[top - 1];
+			N child = null;
+			if (state == 0) {
+				child = left(current);
+			} else if (state == 1) {
+				// the in-order visit
+				nodes++;
+				if (compare(previous, current) >= 0) orderViolations++;
+				previous = current;
+				while (listed != upper && listed != current && compare(listed, current) <= 0) {
+					if (isListed(listed)) unreachable++;
+					listed = step(listed);
+				}
+				if (listed == current && isListed(current)) {
+					listed = step(listed);
+				} else {
+					unlisted++;
+				}
+				child = right(current);
+			}
+			if (state < 2) {
+				states[top - 1] = state + 1;
+				if (child != null) {
+					if (parent(child) != current) parentViolations++;
+					if (top == stack.length) {
+						stack = Arrays.copyOf(stack, top * 2);
+						states = Arrays.copyOf(states, top * 2);
+						if (balanced) {
+							leftHeights = Arrays.copyOf(leftHeights, top * 2);
+							rightHeights = Arrays.copyOf(rightHeights, top * 2);
+						}
+					}
+					stack[top] = child;
+					states[top] = 0;
+					if (balanced) leftHeights[top] = rightHeights[top] = 0;
+					top++;
+					if (!balanced) height = Math.max(height, top);
+				}
+				continue;
+			}
+			stack[--top] = null;
+			if (!balanced) continue;
+			check(current, leftHeights[top], rightHeights[top]);
+			final int height = Math.max(leftHeights[top], rightHeights[top]) + 1;
+			if (top == 0) {
+				this.height = height;
+			} else if (states[top - 1] == 1) {
+				leftHeights[top - 1] = height;
+			} else {
+				rightHeights[top - 1] = height;
+			}
+		}
+		if (compare(previous, upper) >= 0) orderViolations++;
+		while (listed != upper && compare(listed, upper) < 0) {
+			if (isListed(listed)) unreachable++;
+			listed = step(listed);
+		}
+	}
+
+	/**
+	 * Returns the node that follows the given one in the ordered list, and
+	 * counts an asymmetry or an order violation between them.
+	 *
+	 * @param node The node
+	 * @return The next node
+	 */
+	private N step(final N node) {
+		final N next = next(node);
+		if (previous(next) != node) asymmetries++;
+		if (compare(node, next) >= 0) orderViolations++;
+		return next;
+	}
+
+	/**
+	 * Counts the height and balance violations of the given node.
+	 *
+	 * @param node The node
+	 * @param leftHeight The actual height of the node's left sub-tree
+	 * @param rightHeight The actual height of the node's right sub-tree
+	 */
+	private void check(final N node, final int leftHeight, final int rightHeight) {
+		if (!hasHeights(node, leftHeight, rightHeight)) heightViolations++;
+		if (Math.abs(leftHeight - rightHeight) > 1) balanceViolations++;
+	}
+
+	/**
+	 * Returns the report of the validation of the whole tree.
+	 *
+	 * @param first The node with the minimal key, which heads the ordered list
+	 * @return The report
+	 */
+	public ValidationReport report(final N first) {
+		if (previous(next(first)) != first) asymmetries++;
+		return new ValidationReport(nodes, height, orderViolations, parentViolations,
+				heightViolations, balanceViolations, asymmetries, unreachable, unlisted);
+	}
+}
@@ -0,0 +1,151 @@
+package trees;
+
+/**
+ * The result of a structural validation of a tree, which walks both its
+ * tree layout and the ordered list of its nodes (the ordering layout of
+ * {@link trees.logicalordering.LogicalOrderingAVL}, or the snapshot chain of
+ * the PaVT trees), without recursion, and compares them.
+ *
+ * The walks do not lock, so a validation that is concurrent with updates
+ * may report violations that are only the updates in progress; the counts
+ * are exact when the tree is quiescent.
+ */
+public class ValidationReport {
+
+	/** The number of nodes in the tree layout. */
+	private final long nodes;
+
+	/** The height of the tree layout. */
+	private final int height;
+
+	/** The number of nodes whose keys are out of order, in either layout. */
+	private final long orderViolations;
+
+	/** The number of nodes whose parent pointer is not their parent. */
+	private final long parentViolations;
+
+	/** The number of nodes whose recorded heights differ from the actual ones. */
+	private final long heightViolations;
+
+	/** The number of nodes whose sub-trees' heights differ by more than one. */
+	private final long balanceViolations;
+
+	/** The number of nodes that are not the predecessor of their successor. */
+	private final long asymmetries;
+
+	/** The number of valid nodes in the ordered list that are not in the tree layout. */
+	private final long unreachable;
+
+	/** The number of nodes in the tree layout that are not in the ordered list. */
+	private final long unlisted;
+
+	/**
+	 * Constructor, create a report.
+	 *
+	 * @param nodes The number of nodes in the tree layout
+	 * @param height The height of the tree layout
+	 * @param orderViolations The number of nodes whose keys are out of order
+	 * @param parentViolations The number of nodes whose parent pointer is not their parent
+	 * @param heightViolations The number of nodes whose recorded heights are wrong,
+	 * or 0 if the tree does not record heights
+	 * @param balanceViolations The number of unbalanced nodes, or 0 if the tree
+	 * is not balanced
+	 * @param asymmetries The number of nodes that are not the predecessor of their successor
+	 * @param unreachable The number of valid listed nodes that are not in the tree layout
+	 * @param unlisted The number of nodes in the tree layout that are not listed
+	 */
+	public ValidationReport(final long nodes, final int height, final long orderViolations,
+			final long parentViolations, final long heightViolations, final long balanceViolations,
+			final long asymmetries, final long unreachable, final long unlisted) {
+		this.nodes = nodes;
+		this.height = height;
+		this.orderViolations = orderViolations;
+		this.parentViolations = parentViolations;
+		this.heightViolations = heightViolations;
+		this.balanceViolations = balanceViolations;
+		this.asymmetries = asymmetries;
+		this.unreachable = unreachable;
+		this.unlisted = unlisted;
+	}
+
+	/**
+	 * @return The number of nodes in the tree layout
+	 */
+	public long nodes() {
+		return nodes;
+	}
+
+	/**
+	 * @return The height of the tree layout
+	 */
+	public int height() {
+		return height;
+	}
+
+	/**
+	 * @return The number of nodes whose keys are out of order, in either layout
+	 */
+	public long orderViolations() {
+		return orderViolations;
+	}
+
+	/**
+	 * @return The number of nodes whose parent pointer is not their parent
+	 */
+	public long parentViolations() {
+		return parentViolations;
+	}
+
+	/**
+	 * @return The number of nodes whose recorded heights differ from the actual ones
+	 */
+	public long heightViolations() {
+		return heightViolations;
+	}
+
+	/**
+	 * @return The number of nodes whose sub-trees' heights differ by more than one
+	 */
+	public long balanceViolations() {
+		return balanceViolations;
+	}
+
+	/**
+	 * @return The number of nodes that are not the predecessor of their successor
+	 */
+	public long asymmetries() {
+		return asymmetries;
+	}
+
+	/**
+	 * @return The number of valid nodes in the ordered list that are not in the tree layout
+	 */
+	public long unreachable() {
+		return unreachable;
+	}
+
+	/**
+	 * @return The number of nodes in the tree layout that are not in the ordered list
+	 */
+	public long unlisted() {
+		return unlisted;
+	}
+
+	/**
+	 * Returns whether no violation was found.
+	 *
+	 * @return true if the tree is valid, and false otherwise
+	 */
+	public boolean isValid() {
+		return orderViolations == 0 && parentViolations == 0 && heightViolations == 0 &&
+				balanceViolations == 0 && asymmetries == 0 && unreachable == 0 && unlisted == 0;
+	}
+
+	@Override
+	public String toString() {
+		return "ValidationReport[nodes=" + nodes + ", height=" + height + ", orderViolations=" + orderViolations +
+				", parentViolations=" + parentViolations + ", heightViolations=" + heightViolations +
+				", balanceViolations=" + balanceViolations + ", asymmetries=" + asymmetries +
+				", unreachable=" + unreachable + ", unlisted=" + unlisted + "]";
+	}
+}
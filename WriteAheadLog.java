@@ -0,0 +1,602 @@
+package trees.logicalordering;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import java.util.zip.CRC32;
+
+/**
+ * An append-only log of the writes to a {@link LogicalOrderingAVL}, kept in
+ * numbered segment files in a directory.
+ *
+ * Writers hand their records to the log while they hold their locks, which
+ * only enqueues them, so the records are ordered as the writes were applied.
+ * A dedicated thread encodes the records, writes them to the current
+ * segment, and forces them to the disk in batches, so that concurrent
+ * writers share the cost of a force (group commit). The writers wait until
+ * their records are durable after releasing their locks.
+ *
+ * A record is made of the length of its payload, the CRC32 of the payload,
+ * and the payload: the operation, the expiration time (in milliseconds since
+ * the epoch, or 0 if the key does not expire), and the length-prefixed
+ * representations of the key and the item (where the length is -1 if there
+ * is none). All numbers are big-endian.
+ *
+ * @param <K> The keys' type
+ * @param <V> The items' type
+ */
+final class WriteAheadLog<K,V> {
+
+	/** The operation of a record that associates an item with a key. */
+	static final byte PUT = 1;
+
+	/** The operation of a record that removes a key. */
+	static final byte REMOVE = 2;
+
+	/** The operation of a record that removes all the keys. */
+	static final byte CLEAR = 3;
+
+	/** The operation of a request to begin a new segment, which is not written. */
+	private static final byte ROTATE = 4;
+
+	/** The size of the buffer the records are written through. */
+	private static final int BUFFER = 1 << 16;
+
+	/** The prefix of the names of the segment files. */
+	static final String SEGMENT = "log.";
+
+	/** The prefix of the names of the snapshot files. */
+	static final String SNAPSHOT = "snapshot.";
+
+	/** The directory of the segment files. */
+	private final Path directory;
+
+	/** The keys' codec. */
+	private final Codec<K> keyCodec;
+
+	/** The items' codec. */
+	private final Codec<V> itemCodec;
+
+	/** The records that were not written yet. */
+	private final ConcurrentLinkedQueue<Record> queue = new ConcurrentLinkedQueue<Record>();
+
+	/** The thread that writes the records. */
+	private final Thread writer;
+
+	/** Is the writer waiting for records? */
+	private volatile boolean sleeping;
+
+	/** Was the log closed? */
+	private volatile boolean closed;
+
+	/** The failure that stopped the writer, or null. */
+	private volatile IOException failure;
+
+	/** The current segment file (accessed by the writer only). */
+	private FileChannel channel;
+
+	/** The number of the current segment (accessed by the writer only). */
+	private long segment;
+
+	/**
+	 * The root of the tree layout that the written records apply to, which
+	 * is replaced by every clear (accessed by the writer only).
+	 */
+	private Object root;
+
+	/** The buffer the records are written through (accessed by the writer only). */
+	private final ByteBuffer buffer = ByteBuffer.allocate(BUFFER);
+
+	/** The checksum of the records (accessed by the writer only). */
+	private final CRC32 crc = new CRC32();
+
+	/**
+	 * Constructor, create a new segment and start the writer.
+	 *
+	 * @param directory The directory of the segment files
+	 * @param segment The number of the new segment
+	 * @param root The current root of the tree layout
+	 * @param keyCodec The keys' codec
+	 * @param itemCodec The items' codec
+	 * @throws IOException If creating the segment fails
+	 */
+	WriteAheadLog(final Path directory, final long segment, final Object root,
+			final Codec<K> keyCodec, final Codec<V> itemCodec) throws IOException {
+		this.directory = directory;
+		this.segment = segment;
+		this.root = root;
+		this.keyCodec = keyCodec;
+		this.itemCodec = itemCodec;
+		channel = create(segment);
+		writer = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				write();
+			}
+		}, "write-ahead-log");
+		writer.setDaemon(true);
+		writer.start();
+	}
+
+	/**
+	 * @return The keys' codec
+	 */
+	Codec<K> keyCodec() {
+		return keyCodec;
+	}
+
+	/**
+	 * @return The items' codec
+	 */
+	Codec<V> itemCodec() {
+		return itemCodec;
+	}
+
+	/**
+	 * @return The directory of the segment files
+	 */
+	Path directory() {
+		return directory;
+	}
+
+	/**
+	 * Enqueue a record. Called while holding the locks of the write.
+	 *
+	 * @param op The operation
+	 * @param root The root of the tree layout the write applies to
+	 * @param key The key, or null
+	 * @param item The item, or null
+	 * @param expiresAt The expiration time of the key (with respect to
+	 * {@link System#nanoTime}), or 0 if it does not expire
+	 * @return The record
+	 */
+	Record append(final byte op, final Object root, final K key, final Object item, final long expiresAt) {
+		final Record record = new Record(this, op, root, key, item, expiresAt);
+		queue.offer(record);
+		if (sleeping) {
+			LockSupport.unpark(writer);
+		}
+		return record;
+	}
+
+	/**
+	 * Ends the current segment and begins a new one.
+	 * The records that were enqueued before the call are in the ended
+	 * segment or in earlier ones.
+	 *
+	 * @return The number of the new segment
+	 */
+	long rotate() {
+		final Record record = append(ROTATE, null, null, null, 0);
+		record.await();
+		return record.segment;
+	}
+
+	/**
+	 * Stop the writer after it writes the enqueued records.
+	 */
+	void close() {
+		closed = true;
+		LockSupport.unpark(writer);
+		boolean interrupted = false;
+		while (writer.isAlive()) {
+			try {
+				writer.join();
+			} catch (InterruptedException e) {
+				interrupted = true;
+			}
+		}
+		if (interrupted) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * The writer's loop: take the enqueued records, write them, and when
+	 * there are no more records, force them and release their writers.
+	 */
+	private void write() {
+		final List<Record> batch = new ArrayList<Record>();
+		try {
+			while (true) {
+				final Record record = queue.poll();
+				if (record == null) {
+					if (!batch.isEmpty()) {
+						commit(batch);
+						continue;
+					}
+					if (closed) break;
+					sleeping = true;
+					if (queue.isEmpty() && !closed) {
+						LockSupport.park(this);
+					}
+					sleeping = false;
+					continue;
+				}
+				if (record.op == ROTATE) {
+					commit(batch);
+					channel.close();
+					channel = create(++segment);
+					record.segment = segment;
+					batch.add(record);
+					commit(batch);
+					continue;
+				}
+				if (record.op == CLEAR) {
+					root = record.root;
+				}
+				// records of the tree layouts that were cleared are dropped,
+				// since the clear is linearized after them
+				if (record.root == root) {
+					encode(record);
+				}
+				batch.add(record);
+			}
+		} catch (IOException e) {
+			failure = e;
+		} finally {
+			try {
+				channel.close();
+			} catch (IOException e) {
+				if (failure == null) failure = e;
+			}
+			synchronized (this) {
+				notifyAll();
+			}
+		}
+	}
+
+	/**
+	 * Write the given record to the buffer, or directly to the segment if it
+	 * is larger than the buffer.
+	 *
+	 * @param record The record
+	 * @throws IOException If writing fails
+	 */
+	@SuppressWarnings("unchecked")
+	private void encode(final Record record) throws IOException {
+		final byte[] key = record.key == null ? null : keyCodec.encode((K) record.key);
+		final byte[] item = record.op != PUT ? null : itemCodec.encode((V) record.item);
+		final int length = 17 + (key == null ? 0 : key.length) + (item == null ? 0 : item.length);
+		if (buffer.remaining() < 8 + length) {
+			flush();
+		}
+		final ByteBuffer target = buffer.remaining() < 8 + length ? ByteBuffer.allocate(8 + length) : buffer;
+		final int start = target.position();
+		target.putInt(length).putInt(0).put(record.op).putLong(wallClock(record.expiresAt));
+		put(target, key);
+		put(target, item);
+		crc.reset();
+		crc.update(target.array(), start + 8, length);
+		target.putInt(start + 4, (int) crc.getValue());
+		if (target != buffer) {
+			target.flip();
+			while (target.hasRemaining()) {
+				channel.write(target);
+			}
+		}
+	}
+
+	/**
+	 * Put the given length-prefixed bytes in the given buffer.
+	 *
+	 * @param buffer The buffer
+	 * @param bytes The bytes, or null
+	 */
+	private static void put(final ByteBuffer buffer, final byte[] bytes) {
+		if (bytes == null) {
+			buffer.putInt(-1);
+		} else {
+			buffer.putInt(bytes.length).put(bytes);
+		}
+	}
+
+	/**
+	 * Converts an expiration time with respect to {@link System#nanoTime} to
+	 * milliseconds since the epoch.
+	 *
+	 * @param expiresAt The expiration time, or 0
+	 * @return The expiration time in milliseconds since the epoch, or 0
+	 */
+	static long wallClock(final long expiresAt) {
+		if (expiresAt == 0) return 0;
+		final long wallClock = System.currentTimeMillis() +
+				TimeUnit.NANOSECONDS.toMillis(expiresAt - System.nanoTime());
+		return wallClock == 0 ? 1 : wallClock;
+	}
+
+	/**
+	 * Write the buffer to the segment.
+	 *
+	 * @throws IOException If writing fails
+	 */
+	private void flush() throws IOException {
+		buffer.flip();
+		while (buffer.hasRemaining()) {
+			channel.write(buffer);
+		}
+		buffer.clear();
+	}
+
+	/**
+	 * Write and force the written records, and release their writers.
+	 *
+	 * @param batch The written records
+	 * @throws IOException If writing fails
+	 */
+	private void commit(final List<Record> batch) throws IOException {
+		if (batch.isEmpty()) return;
+		flush();
+		channel.force(false);
+		for (Record record : batch) {
+			record.durable = true;
+		}
+		batch.clear();
+		synchronized (this) {
+			notifyAll();
+		}
+	}
+
+	/**
+	 * Create the given segment.
+	 *
+	 * @param segment The segment's number
+	 * @return The segment file
+	 * @throws IOException If creating the file fails
+	 */
+	private FileChannel create(final long segment) throws IOException {
+		final FileChannel channel = FileChannel.open(file(directory, SEGMENT, segment),
+				StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+		sync(directory);
+		return channel;
+	}
+
+	/**
+	 * Force the entries of the given directory to the disk, where the
+	 * platform allows it.
+	 *
+	 * @param directory The directory
+	 */
+	static void sync(final Path directory) {
+		try (FileChannel channel = FileChannel.open(directory, StandardOpenOption.READ)) {
+			channel.force(true);
+		} catch (IOException e) {
+			// not supported on all platforms
+		}
+	}
+
+	/**
+	 * Returns the path of the given numbered file.
+	 *
+	 * @param directory The directory
+	 * @param prefix The prefix of the file's name
+	 * @param number The file's number
+	 * @return The path
+	 */
+	static Path file(final Path directory, final String prefix, final long number) {
+		return directory.resolve(prefix + String.format("%020d", number));
+	}
+
+	/**
+	 * Returns the numbers of the files in the given directory whose names
+	 * begin with the given prefix, in ascending order.
+	 *
+	 * @param directory The directory
+	 * @param prefix The prefix
+	 * @return The numbers
+	 * @throws IOException If listing the directory fails
+	 */
+	static List<Long> list(final Path directory, final String prefix) throws IOException {
+		final List<Long> numbers = new ArrayList<Long>();
+		try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, prefix + "*")) {
+			for (Path file : files) {
+				try {
+					numbers.add(Long.parseLong(file.getFileName().toString().substring(prefix.length())));
+				} catch (NumberFormatException e) {
+					// not a numbered file
+				}
+			}
+		}
+		Collections.sort(numbers);
+		return numbers;
+	}
+
+	/**
+	 * Apply the records of the given segment.
+	 * If the segment ends with a partially written record, which is the
+	 * result of a crash during the write, the segment is truncated before it
+	 * if it is the last segment, and an exception is thrown otherwise.
+	 *
+	 * @param file The segment file
+	 * @param last Is this the last segment?
+	 * @param keyCodec The keys' codec
+	 * @param itemCodec The items' codec
+	 * @param replay The operations to apply the records with
+	 * @return The number of applied records
+	 * @throws IOException If reading the segment fails, or it is corrupt
+	 */
+	static <K,V> long replay(final Path file, final boolean last, final Codec<K> keyCodec,
+			final Codec<V> itemCodec, final Replay<K,V> replay) throws IOException {
+		final long size = Files.size(file);
+		final CRC32 crc = new CRC32();
+		long position = 0;
+		long count = 0;
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file), BUFFER))) {
+			while (position < size) {
+				final int length;
+				final int checksum;
+				final byte[] payload;
+				try {
+					length = in.readInt();
+					checksum = in.readInt();
+					if (length < 17 || length > size - position - 8) break;
+					payload = new byte[length];
+					in.readFully(payload);
+				} catch (EOFException e) {
+					break;
+				}
+				crc.reset();
+				crc.update(payload, 0, length);
+				if ((int) crc.getValue() != checksum) break;
+				final ByteBuffer record = ByteBuffer.wrap(payload);
+				final byte op = record.get();
+				final long expires = record.getLong();
+				final K key = op == CLEAR ? null : keyCodec.decode(slice(record));
+				final V item = op == PUT ? itemCodec.decode(slice(record)) : null;
+				if (op == PUT) {
+					replay.put(key, item, expires);
+				} else if (op == REMOVE) {
+					replay.remove(key);
+				} else {
+					replay.clear();
+				}
+				position += 8 + length;
+				count++;
+			}
+		}
+		if (position < size) {
+			if (!last) throw new IOException("Corrupt log segment: " + file);
+			try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+				channel.truncate(position);
+				channel.force(true);
+			}
+		}
+		return count;
+	}
+
+	/**
+	 * Returns a view of the next length-prefixed bytes of the given buffer,
+	 * and advances its position past them.
+	 *
+	 * @param buffer The buffer
+	 * @return The view
+	 */
+	private static ByteBuffer slice(final ByteBuffer buffer) {
+		final int length = buffer.getInt();
+		final ByteBuffer slice = buffer.slice();
+		slice.limit(length);
+		buffer.position(buffer.position() + length);
+		return slice;
+	}
+
+	/**
+	 * The operations that apply the records of a log.
+	 *
+	 * @param <K> The keys' type
+	 * @param <V> The items' type
+	 */
+	interface Replay<K,V> {
+
+		/**
+		 * Associate the given item with the given key.
+		 *
+		 * @param key The key
+		 * @param item The item
+		 * @param expires The expiration time in milliseconds since the
+		 * epoch, or 0 if the key does not expire
+		 */
+		void put(K key, V item, long expires);
+
+		/**
+		 * Remove the given key.
+		 *
+		 * @param key The key
+		 */
+		void remove(K key);
+
+		/**
+		 * Remove all the keys.
+		 */
+		void clear();
+	}
+
+	/**
+	 * A record of a write.
+	 */
+	static final class Record {
+
+		/** The log. */
+		private final WriteAheadLog<?,?> log;
+
+		/** The operation. */
+		private final byte op;
+
+		/** The root of the tree layout the write applies to. */
+		private final Object root;
+
+		/** The key, or null. */
+		private final Object key;
+
+		/** The item, or null. */
+		private final Object item;
+
+		/** The expiration time (with respect to {@link System#nanoTime}), or 0. */
+		private final long expiresAt;
+
+		/** The number of the segment begun by a rotation. */
+		private long segment;
+
+		/** Was the record forced to the disk? */
+		private volatile boolean durable;
+
+		/**
+		 * Constructor, create a new record.
+		 *
+		 * @param log The log
+		 * @param op The operation
+		 * @param root The root of the tree layout the write applies to
+		 * @param key The key, or null
+		 * @param item The item, or null
+		 * @param expiresAt The expiration time, or 0
+		 */
+		Record(final WriteAheadLog<?,?> log, final byte op, final Object root,
+				final Object key, final Object item, final long expiresAt) {
+			this.log = log;
+			this.op = op;
+			this.root = root;
+			this.key = key;
+			this.item = item;
+			this.expiresAt = expiresAt;
+		}
+
+		/**
+		 * Wait until the record is durable.
+		 *
+		 * @throws UncheckedIOException If writing the log failed
+		 * @throws IllegalStateException If the log was closed before the
+		 * record was written
+		 */
+		void await() {
+			if (durable) return;
+			boolean interrupted = false;
+			synchronized (log) {
+				while (!durable) {
+					if (log.failure != null) throw new UncheckedIOException(log.failure);
+					if (!log.writer.isAlive()) throw new IllegalStateException("The log is closed");
+					try {
+						log.wait();
+					} catch (InterruptedException e) {
+						interrupted = true;
+					}
+				}
+			}
+			if (interrupted) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+}